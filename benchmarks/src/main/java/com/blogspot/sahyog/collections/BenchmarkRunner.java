@@ -0,0 +1,23 @@
+package com.blogspot.sahyog.collections;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the gc profiler always on, so that allocation
+ * rates on the hot paths are reported with every run. Accepts the usual JMH
+ * command line options.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String args[]) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
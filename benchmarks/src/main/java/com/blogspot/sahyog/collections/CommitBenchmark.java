@@ -0,0 +1,82 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of commit as a function of the size of the transaction delta. The
+ * delta is built outside of the measurement so that only the merge into the
+ * wrapped map is timed. Half of the delta updates existing keys, a quarter
+ * inserts new keys and a quarter removes keys. The base map is built once per
+ * trial; before each invocation the keys the previous commit touched are put
+ * back, so the setup costs as much as the delta and not as much as the base.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommitBenchmark {
+
+    @Param({ "100000" })
+    int baseSize;
+
+    @Param({ "10", "1000", "100000" })
+    int deltaSize;
+
+    SingleThreadedTransactionableMap<Integer, Integer> map;
+
+    @Setup(Level.Trial)
+    public void buildBase() {
+        Map<Integer, Integer> base = new HashMap<Integer, Integer>();
+        for (int i = 0; i < baseSize; i++) {
+            base.put(i, i);
+        }
+        map = new SingleThreadedTransactionableMap<Integer, Integer>(base);
+    }
+
+    @Setup(Level.Invocation)
+    public void buildTransaction() {
+        for (int i = 0; i < deltaSize; i++) {
+            if (i % 4 == 0) {
+                map.remove(baseSize + i);
+            } else {
+                map.put(i % baseSize, i % baseSize);
+            }
+        }
+        map.beginTransaction();
+        for (int i = 0; i < deltaSize; i++) {
+            switch (i % 4) {
+            case 0:
+                map.put(baseSize + i, i);
+                break;
+            case 1:
+                map.remove(i % baseSize);
+                break;
+            default:
+                map.put(i % baseSize, -i);
+            }
+        }
+    }
+
+    @Benchmark
+    public Map<Integer, Integer> commit() {
+        map.commit();
+        return map;
+    }
+}
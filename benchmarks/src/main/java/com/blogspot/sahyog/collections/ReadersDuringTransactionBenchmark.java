@@ -0,0 +1,82 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of reader threads outside of a transaction while one writer
+ * thread keeps running small transactions against the same map.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class ReadersDuringTransactionBenchmark {
+
+    @Param({ "100000" })
+    int size;
+
+    @Param({ "16" })
+    int writesPerTransaction;
+
+    SingleThreadedTransactionableMap<Integer, Integer> map;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int nextKey(int size) {
+            int key = next++;
+            if (next == size) {
+                next = 0;
+            }
+            return key;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Map<Integer, Integer> base = new HashMap<Integer, Integer>();
+        for (int i = 0; i < size; i++) {
+            base.put(i, i);
+        }
+        map = new SingleThreadedTransactionableMap<Integer, Integer>(base);
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(3)
+    public Integer reader(Cursor cursor) {
+        return map.get(cursor.nextKey(size));
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(1)
+    public void writer(Cursor cursor) {
+        map.beginTransaction();
+        for (int i = 0; i < writesPerTransaction; i++) {
+            int key = cursor.nextKey(size);
+            map.put(key, key);
+        }
+        map.commit();
+    }
+}
@@ -0,0 +1,79 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of a full scan through entrySet() inside a transaction, for deltas of
+ * different sizes laid over the committed map, and of a scan of the raw
+ * wrapped map for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TransactionIterationBenchmark {
+
+    @Param({ "1000000" })
+    int baseSize;
+
+    @Param({ "0", "100", "10000" })
+    int overlaySize;
+
+    Map<Integer, Integer> base;
+    SingleThreadedTransactionableMap<Integer, Integer> map;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        base = new HashMap<Integer, Integer>();
+        for (int i = 0; i < baseSize; i++) {
+            base.put(i, i);
+        }
+        map = new SingleThreadedTransactionableMap<Integer, Integer>(base);
+        map.beginTransaction();
+        for (int i = 0; i < overlaySize; i++) {
+            if (i % 2 == 0) {
+                map.put(baseSize + i, i);
+            } else {
+                map.remove(i);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        map.abort();
+    }
+
+    @Benchmark
+    public void iterateTransactionView(Blackhole blackhole) {
+        for (Map.Entry<Integer, Integer> entry : map.entrySet()) {
+            blackhole.consume(entry.getValue());
+        }
+    }
+
+    @Benchmark
+    public void iterateWrappedMap(Blackhole blackhole) {
+        for (Map.Entry<Integer, Integer> entry : base.entrySet()) {
+            blackhole.consume(entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of single key operations on {@link SingleThreadedTransactionableMap},
+ * with and without a transaction open on the benchmark thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TransactionalMapOperationsBenchmark {
+
+    @Param({ "1000", "1000000" })
+    int size;
+
+    @Param({ "false", "true" })
+    boolean inTransaction;
+
+    SingleThreadedTransactionableMap<Integer, Integer> map;
+    Integer[] keys;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Map<Integer, Integer> base = new HashMap<Integer, Integer>();
+        keys = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = i;
+            base.put(keys[i], i);
+        }
+        map = new SingleThreadedTransactionableMap<Integer, Integer>(base);
+    }
+
+    /**
+     * Each iteration starts a fresh transaction so the delta does not grow without bound.
+     */
+    @Setup(Level.Iteration)
+    public void beginTransaction() {
+        if (inTransaction) {
+            map.beginTransaction();
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void abortTransaction() {
+        if (inTransaction) {
+            map.abort();
+        }
+    }
+
+    private Integer nextKey() {
+        int i = next++;
+        if (next == size) {
+            next = 0;
+        }
+        return keys[i];
+    }
+
+    @Benchmark
+    public Integer get() {
+        return map.get(nextKey());
+    }
+
+    @Benchmark
+    public boolean containsKey() {
+        return map.containsKey(nextKey());
+    }
+
+    @Benchmark
+    public Integer put() {
+        Integer key = nextKey();
+        return map.put(key, key);
+    }
+
+    @Benchmark
+    public Integer removeAndPut() {
+        Integer key = nextKey();
+        Integer value = map.remove(key);
+        map.put(key, key);
+        return value;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean containsValueMissing() {
+        return map.containsValue(-1);
+    }
+}
@@ -0,0 +1,297 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link SingleThreadedTransactionableMap} that keeps its size, or the total
+ * weight of its entries, under a maximum by evicting entries chosen by an
+ * {@link EvictionPolicy}. <br />
+ *
+ * Evictions only happen when changes are applied to the map. A commit chooses
+ * the entries to evict before it merges and removes them as part of the
+ * transaction, so readers see the transaction's changes and its evictions in
+ * the same step, and change listeners receive them in the same event. The
+ * entries written by the committing transaction are pinned and never chosen,
+ * so a transaction that writes more than the maximum leaves the map above it
+ * until later changes bring it down. Listeners see the removals as evictions,
+ * so that a {@link WriteBehindSink} does not delete the entries from the
+ * source of the data. Values read through from a loader count as writes made
+ * from outside of a transaction. No entry is evicted while a transaction
+ * is open, so nothing the transaction has read or written disappears under
+ * it. Writes from outside of a transaction evict right after they are applied,
+ * holding the transaction lock so that no transaction can begin in between. <br />
+ *
+ * Reads are recorded in striped, lossy buffers (see {@link ReadBuffer}) and
+ * handed to the eviction policy in batches, before every change to the map and
+ * whenever a buffer fills up. A read never waits for the policy; under heavy
+ * contention some reads are dropped, which only makes the policy a little
+ * less accurate.
+ * Removing entries through the key set, values or entry set views bypasses
+ * the policy's bookkeeping, use remove() instead.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class BoundedTransactionableMap<K, V> extends SingleThreadedTransactionableMap<K, V> {
+    private final long maximumWeight;
+    private final Weigher<? super K, ? super V> weigher;
+    private final EvictionTracker<K> tracker;
+    /** Guards the tracker. Changes to it are also serialized by the transaction lock */
+    private final ReentrantLock trackerLock = new ReentrantLock();
+    private final ReadBuffer<K> readBuffer = new ReadBuffer<K>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maximumSize largest number of entries the map keeps
+     */
+    public BoundedTransactionableMap(long maximumSize, EvictionPolicy policy) {
+        this(maximumSize, null, policy);
+    }
+
+    /**
+     * @param maximumWeight largest total weight of the entries the map keeps
+     * @param weigher computes the weight of each entry, null to count every entry as 1
+     */
+    public BoundedTransactionableMap(long maximumWeight, Weigher<? super K, ? super V> weigher, EvictionPolicy policy) {
+        super(new HashMap<K, V>());
+        if (maximumWeight < 0) {
+            throw new IllegalArgumentException("Maximum weight must not be negative " + maximumWeight);
+        }
+        if (policy == null) {
+            throw new NullPointerException("Eviction policy is null");
+        }
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.tracker = EvictionTracker.create(policy, maximumWeight);
+    }
+
+    @Override
+    public V get(Object key) {
+        V value = super.get(key);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+            recordAccess(key);
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void recordAccess(Object key) {
+        if (readBuffer.record((K) key) && trackerLock.tryLock()) {
+            try {
+                readBuffer.drainTo(tracker);
+            } finally {
+                trackerLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes the tracker's lock and brings the tracker up to date with the
+     * buffered reads, so that they count before the change about to be
+     * recorded.
+     */
+    private void lockTracker() {
+        trackerLock.lock();
+        readBuffer.drainTo(tracker);
+    }
+
+    @Override
+    protected Set<K> selectEvictions(TransactionContext<K, V> context) {
+        Map<K, V> changes = context.getChanges();
+        List<K> victims;
+        lockTracker();
+        try {
+            if (context.isCleared()) {
+                tracker.onClear();
+            }
+            for (Object key : context.getRemovedKeys()) {
+                tracker.onRemove(key);
+            }
+            for (Map.Entry<K, V> entry : changes.entrySet()) {
+                tracker.onWrite(entry.getKey(), weigh(entry.getKey(), entry.getValue()));
+            }
+            victims = tracker.evict(maximumWeight, changes.keySet());
+        } finally {
+            trackerLock.unlock();
+        }
+        evictions.add(victims.size());
+        return new HashSet<K>(victims);
+    }
+
+    @Override
+    @WriteOperation
+    public V put(K key, V value) {
+        if (getTransactionContext() != null) {
+            return super.put(key, value);
+        }
+        boolean locked = lockWriteOutsideTransaction(true);
+        try {
+            V oldValue = super.put(key, value);
+            recordWritesAndEvict(Collections.singletonMap(key, value));
+            return oldValue;
+        } finally {
+            unlockWriteOutsideTransaction(locked);
+        }
+    }
+
+    @Override
+    @WriteOperation
+    public V remove(Object key) {
+        if (getTransactionContext() != null) {
+            return super.remove(key);
+        }
+        boolean locked = lockWriteOutsideTransaction(true);
+        try {
+            V oldValue = super.remove(key);
+            lockTracker();
+            try {
+                tracker.onRemove(key);
+            } finally {
+                trackerLock.unlock();
+            }
+            return oldValue;
+        } finally {
+            unlockWriteOutsideTransaction(locked);
+        }
+    }
+
+    @Override
+    @WriteOperation
+    public void putAll(Map<? extends K, ? extends V> m) {
+        if (m == null || m.isEmpty() || getTransactionContext() != null) {
+            super.putAll(m);
+            return;
+        }
+        boolean locked = lockWriteOutsideTransaction(true);
+        try {
+            super.putAll(m);
+            recordWritesAndEvict(m);
+        } finally {
+            unlockWriteOutsideTransaction(locked);
+        }
+    }
+
+    @Override
+    @WriteOperation
+    public void clear() {
+        if (getTransactionContext() != null) {
+            super.clear();
+            return;
+        }
+        boolean locked = lockWriteOutsideTransaction(true);
+        try {
+            super.clear();
+            lockTracker();
+            try {
+                tracker.onClear();
+            } finally {
+                trackerLock.unlock();
+            }
+        } finally {
+            unlockWriteOutsideTransaction(locked);
+        }
+    }
+
+    @Override
+    protected boolean installLoaded(K key, V value) {
+        if (!super.installLoaded(key, value)) {
+            return false;
+        }
+        recordWritesAndEvict(Collections.singletonMap(key, value));
+        return true;
+    }
+
+    /**
+     * Records entries put from outside of a transaction and evicts others to
+     * make room for them. Called holding the transaction lock.
+     */
+    private void recordWritesAndEvict(Map<? extends K, ? extends V> written) {
+        List<K> victims;
+        lockTracker();
+        try {
+            for (Map.Entry<? extends K, ? extends V> entry : written.entrySet()) {
+                tracker.onWrite(entry.getKey(), weigh(entry.getKey(), entry.getValue()));
+            }
+            victims = tracker.evict(maximumWeight, written.keySet());
+        } finally {
+            trackerLock.unlock();
+        }
+        removeEvicted(victims);
+        evictions.add(victims.size());
+    }
+
+    private long weigh(K key, V value) {
+        if (weigher == null) {
+            return 1;
+        }
+        long weight = weigher.weigh(key, value);
+        if (weight < 0) {
+            throw new IllegalArgumentException("Negative weight " + weight + " for key " + key);
+        }
+        return weight;
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * @return total weight of the committed entries, their number if there is no weigher
+     */
+    public long getWeightedSize() {
+        trackerLock.lock();
+        try {
+            return tracker.getTotalWeight();
+        } finally {
+            trackerLock.unlock();
+        }
+    }
+
+    /**
+     * @return number of get() calls that returned a value
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of get() calls that returned null
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return ratio of hits to all get() calls, 1 if there were none
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long requests = hitCount + misses.sum();
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Resets the hit, miss and eviction counts to zero.
+     */
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+}
@@ -0,0 +1,26 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Implemented by maps which can apply a whole transaction delta faster than a
+ * series of individual remove and put calls. {@link TransactionContext} uses it
+ * when committing into such a map.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public interface BulkMergeable<K, V> {
+
+    /**
+     * Applies a transaction delta: optionally clears the map, then removes the
+     * removed keys and then puts the changes. The keys and changes may be
+     * views backed by the transaction, they must not be kept after the call.
+     *
+     * @param cleared if true the map is cleared first
+     * @param removedKeys keys to remove, may be null
+     * @param changes entries to put, may be null
+     */
+    public void applyDelta(boolean cleared, Collection<?> removedKeys, Map<? extends K, ? extends V> changes);
+}
@@ -0,0 +1,16 @@
+package com.blogspot.sahyog.collections;
+
+/**
+ * Reads values missing from a map from the source of the data, such as a
+ * database.
+ *
+ * @see SingleThreadedTransactionableMap#setLoader(CacheLoader, java.util.concurrent.Executor)
+ */
+public interface CacheLoader<K, V> {
+    /**
+     * Called from the loader's executor. Concurrent misses on one key share a single call.
+     *
+     * @return the value of the key, or null if the source has none
+     */
+    V load(K key) throws Exception;
+}
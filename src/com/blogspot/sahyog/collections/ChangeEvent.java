@@ -0,0 +1,95 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes made to a map by one commit, or by one write from outside of a
+ * transaction. Applying the events of a map in sequence order to a copy of the
+ * map taken before the first of them keeps the copy identical to the map:
+ * first clear if {@link #isCleared()}, then remove the removed and the evicted
+ * keys, then put the puts. <br />
+ *
+ * Not every change is a write by a user of the map. Keys dropped by a
+ * {@link BoundedTransactionableMap} to stay within its maximum are reported as
+ * evicted rather than removed, and values read through from a
+ * {@link CacheLoader} come in events of their own marked as loaded. Listeners
+ * that write changes back to the source of the data, such as a
+ * {@link WriteBehindSink}, ignore both.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public final class ChangeEvent<K, V> {
+    private final long sequence;
+    private final boolean cleared;
+    private final Set<K> removedKeys;
+    private final Set<K> evictedKeys;
+    private final Map<K, V> puts;
+    private final boolean loaded;
+
+    ChangeEvent(long sequence, boolean cleared, Set<K> removedKeys, Set<K> evictedKeys, Map<K, V> puts, boolean loaded) {
+        this.sequence = sequence;
+        this.cleared = cleared;
+        this.removedKeys = Collections.unmodifiableSet(removedKeys);
+        this.evictedKeys = Collections.unmodifiableSet(evictedKeys);
+        this.puts = Collections.unmodifiableMap(puts);
+        this.loaded = loaded;
+    }
+
+    /**
+     * @return the position of this change among all the changes of the map, starting at 1 and without gaps
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public boolean isCleared() {
+        return cleared;
+    }
+
+    public Set<K> getRemovedKeys() {
+        return removedKeys;
+    }
+
+    /**
+     * @return keys dropped to keep the map within its maximum, they are still valid at the source of the data
+     */
+    public Set<K> getEvictedKeys() {
+        return evictedKeys;
+    }
+
+    public Map<K, V> getPuts() {
+        return puts;
+    }
+
+    /**
+     * @return true if the puts are values read through from the map's loader rather than writes
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Applies this change to a copy of the map.
+     */
+    public void applyTo(Map<K, V> mirror) {
+        if (cleared) {
+            mirror.clear();
+        }
+        for (K key : removedKeys) {
+            mirror.remove(key);
+        }
+        for (K key : evictedKeys) {
+            mirror.remove(key);
+        }
+        mirror.putAll(puts);
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeEvent [sequence=" + sequence + ", cleared=" + cleared + ", removedKeys=" + removedKeys + ", evictedKeys=" + evictedKeys + ", puts=" + puts
+                + ", loaded=" + loaded + "]";
+    }
+}
@@ -0,0 +1,18 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.List;
+
+/**
+ * Receives the changes committed to a map. Called from the subscription's own
+ * thread, never concurrently, with events in sequence order.
+ *
+ * @see SingleThreadedTransactionableMap#subscribe(ChangeListener, int, int)
+ */
+public interface ChangeListener<K, V> {
+    /**
+     * @param events one or more consecutive changes. A listener must not
+     *            write to the map it listens to, as writers may be waiting for
+     *            it to make room.
+     */
+    void onChanges(List<ChangeEvent<K, V>> events);
+}
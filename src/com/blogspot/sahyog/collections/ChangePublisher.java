@@ -0,0 +1,120 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Hands the changes of a map to its subscriptions. Writers hold the publisher's
+ * lock from applying a change to the map until it is in every subscription's
+ * buffer, so the order of the events is the order in which the map changed.
+ * Writers which find no subscription skip the lock, but hold a shared gate
+ * which subscribing waits on, so that a new subscription misses no change
+ * made after it was added.
+ */
+final class ChangePublisher<K, V> {
+    private final CopyOnWriteArrayList<ChangeSubscription<K, V>> subscriptions = new CopyOnWriteArrayList<ChangeSubscription<K, V>>();
+    private final Object lock = new Object();
+    /** Held shared by writers which publish nothing, see {@link #startUnpublishedWrite()} */
+    private final ReentrantReadWriteLock unpublishedWrites = new ReentrantReadWriteLock();
+    private long sequence = 0;
+
+    ChangeSubscription<K, V> subscribe(ChangeListener<K, V> listener, int bufferSize, int maxBatchSize) {
+        ChangeSubscription<K, V> subscription = new ChangeSubscription<K, V>(this, listener, bufferSize, maxBatchSize);
+        unpublishedWrites.writeLock().lock();
+        try {
+            synchronized (lock) {
+                subscriptions.add(subscription);
+            }
+        } finally {
+            unpublishedWrites.writeLock().unlock();
+        }
+        subscription.start();
+        return subscription;
+    }
+
+    void unsubscribe(ChangeSubscription<K, V> subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * Called by a writer before it changes the map. When it returns true the
+     * writer applies the change without taking {@link #lock()} and then calls
+     * {@link #endUnpublishedWrite()}. When it returns false the writer applies
+     * and publishes the change holding {@link #lock()}.
+     *
+     * @return true if no subscription is listening
+     */
+    boolean startUnpublishedWrite() {
+        unpublishedWrites.readLock().lock();
+        if (subscriptions.isEmpty()) {
+            return true;
+        }
+        unpublishedWrites.readLock().unlock();
+        return false;
+    }
+
+    void endUnpublishedWrite() {
+        unpublishedWrites.readLock().unlock();
+    }
+
+    Object lock() {
+        return lock;
+    }
+
+    /**
+     * Must be called holding {@link #lock()}, right after the change was applied to the map.
+     */
+    void publish(boolean cleared, Set<K> removedKeys, Map<K, V> puts) {
+        publish(cleared, removedKeys, Collections.<K> emptySet(), puts, false);
+    }
+
+    void publish(boolean cleared, Set<K> removedKeys, Set<K> evictedKeys, Map<K, V> puts, boolean loaded) {
+        ChangeEvent<K, V> event = new ChangeEvent<K, V>(++sequence, cleared, removedKeys, evictedKeys, puts, loaded);
+        Iterator<ChangeSubscription<K, V>> remaining = subscriptions.iterator();
+        while (remaining.hasNext()) {
+            ChangeSubscription<K, V> subscription = remaining.next();
+            try {
+                subscription.publish(event);
+            } catch (InterruptedException e) {
+                // The subscriptions which did not get the change cannot follow the map any more
+                TransactionException missed = new TransactionException("Missed change " + event.getSequence()
+                        + ": the writer was interrupted while waiting for a change listener to catch up. The change was applied.", e);
+                subscription.fail(missed);
+                while (remaining.hasNext()) {
+                    remaining.next().fail(missed);
+                }
+                Thread.currentThread().interrupt();
+                throw missed;
+            }
+        }
+    }
+
+    void publishPut(K key, V value) {
+        publish(false, Collections.<K> emptySet(), Collections.singletonMap(key, value));
+    }
+
+    void publishRemove(K key) {
+        publish(false, Collections.singleton(key), Collections.<K, V> emptyMap());
+    }
+
+    void publishEvictions(Set<K> keys) {
+        publish(false, Collections.<K> emptySet(), keys, Collections.<K, V> emptyMap(), false);
+    }
+
+    void publishLoad(K key, V value) {
+        publish(false, Collections.<K> emptySet(), Collections.<K> emptySet(), Collections.singletonMap(key, value), true);
+    }
+
+    /**
+     * @return the sequence number of the last published change
+     */
+    long getSequence() {
+        synchronized (lock) {
+            return sequence;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.blogspot.sahyog.collections;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Delivers the changes of a map to one listener. Events wait in a bounded
+ * buffer and are handed to the listener in batches by a daemon thread owned
+ * by the subscription. When the buffer is full, writers to the map wait for
+ * the listener to catch up, so a slow listener slows the map down instead of
+ * losing changes. <br />
+ *
+ * If the listener throws, the subscription is closed and the exception can be
+ * read from {@link #getFailure()}. The same happens when a writer is
+ * interrupted before it could hand a change to the subscription, so that a
+ * listener never silently misses a change.
+ */
+public final class ChangeSubscription<K, V> implements Closeable {
+    private final ChangeListener<K, V> listener;
+    private final ArrayDeque<ChangeEvent<K, V>> buffer;
+    private final int bufferSize;
+    private final int maxBatchSize;
+    private final ChangePublisher<K, V> publisher;
+    private final Thread deliveryThread;
+    /** Guards the buffer. Writers wait on notFull, the delivery thread on notEmpty */
+    private final ReentrantLock bufferLock = new ReentrantLock();
+    private final Condition notFull = bufferLock.newCondition();
+    private final Condition notEmpty = bufferLock.newCondition();
+    private final Condition delivered = bufferLock.newCondition();
+    private volatile boolean closed = false;
+    private volatile long lastDeliveredSequence = 0;
+    private volatile RuntimeException failure;
+
+    ChangeSubscription(ChangePublisher<K, V> publisher, ChangeListener<K, V> listener, int bufferSize, int maxBatchSize) {
+        if (bufferSize < 1 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("Buffer and batch sizes must be positive");
+        }
+        this.publisher = publisher;
+        this.listener = listener;
+        this.buffer = new ArrayDeque<ChangeEvent<K, V>>(bufferSize);
+        this.bufferSize = bufferSize;
+        this.maxBatchSize = maxBatchSize;
+        this.deliveryThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliver();
+            }
+        }, "change-subscription-" + System.identityHashCode(this));
+        this.deliveryThread.setDaemon(true);
+    }
+
+    void start() {
+        deliveryThread.start();
+    }
+
+    /**
+     * Waits for room in the buffer. Gives up if the subscription is closed while waiting.
+     */
+    void publish(ChangeEvent<K, V> event) throws InterruptedException {
+        bufferLock.lockInterruptibly();
+        try {
+            while (buffer.size() >= bufferSize) {
+                if (closed) {
+                    return;
+                }
+                notFull.await();
+            }
+            if (!closed) {
+                buffer.add(event);
+                notEmpty.signal();
+            }
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    private void deliver() {
+        List<ChangeEvent<K, V>> batch = new ArrayList<ChangeEvent<K, V>>(maxBatchSize);
+        while (true) {
+            bufferLock.lock();
+            try {
+                while (buffer.isEmpty() && !closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (closed) {
+                    return;
+                }
+                while (!buffer.isEmpty() && batch.size() < maxBatchSize) {
+                    batch.add(buffer.poll());
+                }
+                notFull.signalAll();
+            } finally {
+                bufferLock.unlock();
+            }
+            try {
+                listener.onChanges(Collections.unmodifiableList(batch));
+            } catch (RuntimeException e) {
+                fail(e);
+                return;
+            }
+            bufferLock.lock();
+            try {
+                lastDeliveredSequence = batch.get(batch.size() - 1).getSequence();
+                delivered.signalAll();
+            } finally {
+                bufferLock.unlock();
+            }
+            batch = new ArrayList<ChangeEvent<K, V>>(maxBatchSize);
+        }
+    }
+
+    /**
+     * @return the sequence number of the last change handed to the listener, 0 if none
+     */
+    public long getLastDeliveredSequence() {
+        return lastDeliveredSequence;
+    }
+
+    /**
+     * Waits until the listener has been handed the change with the given sequence number.
+     *
+     * @return false if the timeout elapsed or the subscription was closed first
+     */
+    public boolean awaitDelivered(long sequence, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        bufferLock.lockInterruptibly();
+        try {
+            while (lastDeliveredSequence < sequence) {
+                if (closed || nanos <= 0) {
+                    return false;
+                }
+                nanos = delivered.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    /**
+     * @return the exception which closed the subscription: thrown by the
+     *         listener, or recording a change the subscription missed. Null if
+     *         there is none
+     */
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the subscription, keeping the cause for {@link #getFailure()} unless there already is one.
+     */
+    void fail(RuntimeException cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+        close();
+    }
+
+    /**
+     * Stops delivery. Changes not yet handed to the listener are dropped.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        publisher.unsubscribe(this);
+        bufferLock.lock();
+        try {
+            buffer.clear();
+            notFull.signalAll();
+            notEmpty.signalAll();
+            delivered.signalAll();
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map whose state is a set of hash partitioned segments which are never
+ * modified once published. A write copies only the segments it touches and
+ * publishes the new state with a single volatile reference swap, so readers
+ * never take a lock and always see a consistent version of the whole map. <br />
+ *
+ * Single entry writes copy a whole segment and are therefore much more
+ * expensive than on a {@link HashMap}. The map is meant to be wrapped by a
+ * {@link SingleThreadedTransactionableMap}: a commit then builds the new state
+ * off to the side with {@link #applyDelta(boolean, Collection, Map)} and readers
+ * outside of the transaction either see none or all of the committed changes.
+ * Writers are serialized.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class CopyOnWriteSegmentMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, BulkMergeable<K, V> {
+    private static final int DEFAULT_SEGMENTS = 256;
+
+    private final Object writeLock = new Object();
+    private volatile State<K, V> state;
+    private Set<Map.Entry<K, V>> entrySet;
+
+    public CopyOnWriteSegmentMap() {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param numSegments number of segments the keys are partitioned into. Rounded up to a power of two.
+     */
+    public CopyOnWriteSegmentMap(int numSegments) {
+        int n = 1;
+        while (n < numSegments) {
+            n <<= 1;
+        }
+        state = new State<K, V>(emptySegments(n), 0);
+    }
+
+    public CopyOnWriteSegmentMap(Map<? extends K, ? extends V> m) {
+        this();
+        putAll(m);
+    }
+
+    @Override
+    public V get(Object key) {
+        State<K, V> current = state;
+        return current.segmentFor(key).get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        State<K, V> current = state;
+        return current.segmentFor(key).containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return state.size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return state.size == 0;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        synchronized (writeLock) {
+            State<K, V> current = state;
+            int index = current.indexFor(key);
+            HashMap<K, V> segment = new HashMap<K, V>(current.segments[index]);
+            boolean existed = segment.containsKey(key);
+            V oldValue = segment.put(key, value);
+            state = current.withSegment(index, segment, existed ? current.size : current.size + 1);
+            return oldValue;
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        synchronized (writeLock) {
+            State<K, V> current = state;
+            int index = current.indexFor(key);
+            if (!current.segments[index].containsKey(key)) {
+                return null;
+            }
+            HashMap<K, V> segment = new HashMap<K, V>(current.segments[index]);
+            V oldValue = segment.remove(key);
+            state = current.withSegment(index, segment, current.size - 1);
+            return oldValue;
+        }
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        applyDelta(false, null, m);
+    }
+
+    @Override
+    public void clear() {
+        synchronized (writeLock) {
+            state = new State<K, V>(emptySegments(state.segments.length), 0);
+        }
+    }
+
+    /**
+     * Applies a whole transaction delta and publishes the result in one step.
+     * Each touched segment is copied exactly once.
+     *
+     * @param cleared if true the map is cleared before the removals and changes are applied
+     * @param removedKeys keys to remove, may be null
+     * @param changes entries to put, may be null
+     */
+    @Override
+    public void applyDelta(boolean cleared, Collection<?> removedKeys, Map<? extends K, ? extends V> changes) {
+        synchronized (writeLock) {
+            State<K, V> current = state;
+            int numSegments = current.segments.length;
+            HashMap<K, V>[] segments = cleared ? emptySegments(numSegments) : current.segments.clone();
+            boolean[] copied = new boolean[numSegments];
+            int size = cleared ? 0 : current.size;
+            if (removedKeys != null && !cleared) {
+                for (Object key : removedKeys) {
+                    int index = current.indexFor(key);
+                    if (!segments[index].containsKey(key)) {
+                        continue;
+                    }
+                    if (!copied[index]) {
+                        segments[index] = new HashMap<K, V>(segments[index]);
+                        copied[index] = true;
+                    }
+                    segments[index].remove(key);
+                    size--;
+                }
+            }
+            if (changes != null) {
+                for (Map.Entry<? extends K, ? extends V> entry : changes.entrySet()) {
+                    int index = current.indexFor(entry.getKey());
+                    if (!copied[index]) {
+                        segments[index] = new HashMap<K, V>(segments[index]);
+                        copied[index] = true;
+                    }
+                    if (!segments[index].containsKey(entry.getKey())) {
+                        size++;
+                    }
+                    segments[index].put(entry.getKey(), entry.getValue());
+                }
+            }
+            state = new State<K, V>(segments, size);
+        }
+    }
+
+    /**
+     * The returned set iterates over the version of the map that was current
+     * when iteration began. Removal through the iterator removes from the live
+     * map.
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<K, V>>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new SnapshotIterator(state);
+                }
+
+                @Override
+                public int size() {
+                    return CopyOnWriteSegmentMap.this.size();
+                }
+
+                @Override
+                public void clear() {
+                    CopyOnWriteSegmentMap.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <K, V> HashMap<K, V>[] emptySegments(int n) {
+        HashMap<K, V>[] segments = new HashMap[n];
+        for (int i = 0; i < n; i++) {
+            segments[i] = new HashMap<K, V>();
+        }
+        return segments;
+    }
+
+    /**
+     * An immutable version of the map. Neither the array nor the segments are
+     * modified once a state is published.
+     */
+    private static final class State<K, V> {
+        final HashMap<K, V>[] segments;
+        final int size;
+
+        State(HashMap<K, V>[] segments, int size) {
+            this.segments = segments;
+            this.size = size;
+        }
+
+        int indexFor(Object key) {
+            if (key == null) {
+                return 0;
+            }
+            int h = key.hashCode();
+            h ^= (h >>> 16);
+            return h & (segments.length - 1);
+        }
+
+        HashMap<K, V> segmentFor(Object key) {
+            return segments[indexFor(key)];
+        }
+
+        State<K, V> withSegment(int index, HashMap<K, V> segment, int newSize) {
+            HashMap<K, V>[] newSegments = segments.clone();
+            newSegments[index] = segment;
+            return new State<K, V>(newSegments, newSize);
+        }
+    }
+
+    private final class SnapshotIterator implements Iterator<Map.Entry<K, V>> {
+        private final State<K, V> snapshot;
+        private int segmentIndex = 0;
+        private Iterator<Map.Entry<K, V>> segmentIterator;
+        private Map.Entry<K, V> current;
+
+        SnapshotIterator(State<K, V> snapshot) {
+            this.snapshot = snapshot;
+            this.segmentIterator = snapshot.segments[0].entrySet().iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!segmentIterator.hasNext()) {
+                if (++segmentIndex >= snapshot.segments.length) {
+                    return false;
+                }
+                segmentIterator = snapshot.segments[segmentIndex].entrySet().iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> entry = segmentIterator.next();
+            current = new SimpleImmutableEntry<K, V>(entry.getKey(), entry.getValue());
+            return current;
+        }
+
+        @Override
+        public void remove() {
+            if (current == null) {
+                throw new IllegalStateException();
+            }
+            CopyOnWriteSegmentMap.this.remove(current.getKey());
+            current = null;
+        }
+    }
+}
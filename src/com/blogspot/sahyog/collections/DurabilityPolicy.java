@@ -0,0 +1,24 @@
+package com.blogspot.sahyog.collections;
+
+/**
+ * Controls when a commit to a {@link DurableTransactionableMap} is considered
+ * durable, trading commit latency for safety.
+ */
+public enum DurabilityPolicy {
+    /**
+     * Every commit forces the log to disk before it returns.
+     */
+    SYNC_EACH_COMMIT,
+    /**
+     * Commits wait for a background flusher which forces the log every group
+     * sync interval, so the cost of one fsync is shared by all the commits in
+     * the interval.
+     */
+    GROUP_SYNC,
+    /**
+     * Commits return as soon as the log record is written. The log is forced
+     * every group sync interval and commits made since the last force can be
+     * lost on a crash.
+     */
+    ASYNC
+}
@@ -0,0 +1,434 @@
+package com.blogspot.sahyog.collections;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link SingleThreadedTransactionableMap} whose commits survive a crash. <br />
+ *
+ * Before a commit is applied its delta (the changes, the removed keys and the
+ * cleared flag of the {@link TransactionContext}) is appended to a
+ * {@link TransactionLog} in the map's directory. Writes made outside of a
+ * transaction are logged the same way as single entry deltas. When the log
+ * grows past the checkpoint size the whole map is written to a snapshot file
+ * and a new, empty log is started. Opening a map on an existing directory
+ * loads the latest complete snapshot and replays the log written after it.
+ * A checkpoint that fails leaves the current log in use. It is not retried
+ * until the log has grown by another checkpoint size, and the failure is kept
+ * for {@link #getCheckpointFailure()}. <br />
+ *
+ * Keys and values are written with java serialization and must be
+ * Serializable. A commit is visible to other threads as soon as it is applied
+ * but, depending on the {@link DurabilityPolicy}, commit() only returns once
+ * it is on disk.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class DurableTransactionableMap<K, V> extends SingleThreadedTransactionableMap<K, V> implements Closeable {
+    public static final long DEFAULT_GROUP_SYNC_MILLIS = 10;
+    public static final long DEFAULT_CHECKPOINT_LOG_BYTES = 64L * 1024 * 1024;
+    private static final String LOG_PREFIX = "wal-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+
+    private final File directory;
+    private final DurabilityPolicy policy;
+    private final long groupSyncMillis;
+    private final long checkpointLogBytes;
+    private final Map<K, V> committedMap;
+    /** Guards the log and the committed map so that log order is apply order */
+    private final Object logLock = new Object();
+    private TransactionLog log;
+    private long generation;
+    /** Log size at which checkpointIfNeeded() next takes a checkpoint */
+    private long nextCheckpointBytes;
+    private volatile IOException checkpointFailure;
+
+    public DurableTransactionableMap(File directory, DurabilityPolicy policy) throws IOException {
+        this(directory, policy, DEFAULT_GROUP_SYNC_MILLIS, DEFAULT_CHECKPOINT_LOG_BYTES);
+    }
+
+    /**
+     * @param directory where the log and snapshots are kept. Created if it does not exist.
+     * @param policy when a commit is considered durable
+     * @param groupSyncMillis how often the log is forced for {@link DurabilityPolicy#GROUP_SYNC} and {@link DurabilityPolicy#ASYNC}
+     * @param checkpointLogBytes size of the log after which a snapshot is taken and the log truncated
+     */
+    public DurableTransactionableMap(File directory, DurabilityPolicy policy, long groupSyncMillis, long checkpointLogBytes) throws IOException {
+        this(directory, policy, groupSyncMillis, checkpointLogBytes, new HashMap<K, V>());
+    }
+
+    private DurableTransactionableMap(File directory, DurabilityPolicy policy, long groupSyncMillis, long checkpointLogBytes, Map<K, V> committedMap)
+            throws IOException {
+        super(committedMap);
+        this.directory = directory;
+        this.policy = policy;
+        this.groupSyncMillis = groupSyncMillis;
+        this.checkpointLogBytes = checkpointLogBytes;
+        this.committedMap = committedMap;
+        this.nextCheckpointBytes = checkpointLogBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        recover();
+    }
+
+    @Override
+    public void commit() throws IllegalStateException {
+        TransactionContext<K, V> context = getTransactionContext();
+        if (context == null) {
+            throw new TransactionException("No active transaction.");
+        }
+        if (context.isReadOnly() || context.getNestingDepth() > 0) {
+            super.commit();
+            return;
+        }
+        TransactionLog usedLog;
+        long sequence;
+        synchronized (logLock) {
+            usedLog = log;
+            try {
+                sequence = log.append(encodeDelta(context.isCleared(), context.getRemovedKeys(), context.getChanges()));
+            } catch (IOException e) {
+                throw new TransactionException("Could not log the commit. The transaction is still open.", e);
+            }
+            super.commit();
+            checkpointIfNeeded();
+        }
+        awaitDurable(usedLog, sequence);
+    }
+
+    @Override
+    @WriteOperation
+    public V put(K key, V value) {
+        if (getTransactionContext() != null) {
+            return super.put(key, value);
+        }
+        TransactionLog usedLog;
+        long sequence;
+        V oldValue;
+        boolean locked = lockWriteOutsideTransaction(true);
+        try {
+            // Holding the transaction lock, no transaction can begin in between
+            synchronized (logLock) {
+                usedLog = log;
+                sequence = appendNonTransactional(false, Collections.emptySet(), Collections.singletonMap(key, value));
+                oldValue = super.put(key, value);
+                checkpointIfNeeded();
+            }
+        } finally {
+            unlockWriteOutsideTransaction(locked);
+        }
+        awaitDurable(usedLog, sequence);
+        return oldValue;
+    }
+
+    @Override
+    @WriteOperation
+    public V remove(Object key) {
+        if (getTransactionContext() != null) {
+            return super.remove(key);
+        }
+        TransactionLog usedLog;
+        long sequence;
+        V oldValue;
+        boolean locked = lockWriteOutsideTransaction(true);
+        try {
+            synchronized (logLock) {
+                usedLog = log;
+                sequence = appendNonTransactional(false, Collections.singleton(key), Collections.<K, V> emptyMap());
+                oldValue = super.remove(key);
+                checkpointIfNeeded();
+            }
+        } finally {
+            unlockWriteOutsideTransaction(locked);
+        }
+        awaitDurable(usedLog, sequence);
+        return oldValue;
+    }
+
+    @Override
+    @WriteOperation
+    public void putAll(Map<? extends K, ? extends V> m) {
+        if (m == null || m.isEmpty() || getTransactionContext() != null) {
+            super.putAll(m);
+            return;
+        }
+        TransactionLog usedLog;
+        long sequence;
+        boolean locked = lockWriteOutsideTransaction(true);
+        try {
+            synchronized (logLock) {
+                usedLog = log;
+                sequence = appendNonTransactional(false, Collections.emptySet(), m);
+                super.putAll(m);
+                checkpointIfNeeded();
+            }
+        } finally {
+            unlockWriteOutsideTransaction(locked);
+        }
+        awaitDurable(usedLog, sequence);
+    }
+
+    @Override
+    @WriteOperation
+    public void clear() {
+        if (getTransactionContext() != null) {
+            super.clear();
+            return;
+        }
+        TransactionLog usedLog;
+        long sequence;
+        boolean locked = lockWriteOutsideTransaction(true);
+        try {
+            synchronized (logLock) {
+                usedLog = log;
+                sequence = appendNonTransactional(true, Collections.emptySet(), Collections.<K, V> emptyMap());
+                super.clear();
+                checkpointIfNeeded();
+            }
+        } finally {
+            unlockWriteOutsideTransaction(locked);
+        }
+        awaitDurable(usedLog, sequence);
+    }
+
+    /**
+     * Loaded values are not logged, but they change the committed map, which
+     * a checkpoint iterates holding only the log lock. Commits checkpoint after
+     * the transaction lock is released, so the log lock is what keeps a load
+     * from changing the map under a snapshot being written.
+     */
+    @Override
+    protected boolean installLoaded(K key, V value) {
+        synchronized (logLock) {
+            return super.installLoaded(key, value);
+        }
+    }
+
+    /**
+     * Writes the committed state of the map to a new snapshot and starts a new
+     * log. The previous snapshot and log are deleted once the new ones are in
+     * place and the directory is synced. If it fails the current snapshot and
+     * log stay in use.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (logLock) {
+            long next = generation + 1;
+            File tmp = new File(directory, SNAPSHOT_PREFIX + next + SNAPSHOT_SUFFIX + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(fos));
+                out.writeInt(committedMap.size());
+                for (Map.Entry<K, V> entry : committedMap.entrySet()) {
+                    out.writeObject(entry.getKey());
+                    out.writeObject(entry.getValue());
+                }
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            File snapshot = snapshotFile(next);
+            if (!tmp.renameTo(snapshot)) {
+                throw new IOException("Could not rename " + tmp + " to " + snapshot);
+            }
+            TransactionLog newLog;
+            try {
+                newLog = new TransactionLog(logFile(next), policy, groupSyncMillis);
+                try {
+                    syncDirectory();
+                } catch (IOException e) {
+                    newLog.close();
+                    throw e;
+                }
+            } catch (IOException e) {
+                // Writes go on to the current log, recovery must not pick the new snapshot over it
+                snapshot.delete();
+                logFile(next).delete();
+                throw e;
+            }
+            TransactionLog oldLog = log;
+            log = newLog;
+            long oldGeneration = generation;
+            generation = next;
+            nextCheckpointBytes = checkpointLogBytes;
+            checkpointFailure = null;
+            oldLog.close();
+            oldLog.getFile().delete();
+            snapshotFile(oldGeneration).delete();
+        }
+    }
+
+    /**
+     * @return why the last checkpoint taken on reaching the checkpoint size
+     *         failed, or null if it succeeded
+     */
+    public IOException getCheckpointFailure() {
+        return checkpointFailure;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (logLock) {
+            log.close();
+        }
+    }
+
+    private void recover() throws IOException {
+        generation = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX)) {
+                    long snapshotGeneration = Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()));
+                    generation = Math.max(generation, snapshotGeneration);
+                }
+            }
+        }
+        File snapshot = snapshotFile(generation);
+        if (snapshot.exists()) {
+            loadSnapshot(snapshot);
+        }
+        File logFile = logFile(generation);
+        if (logFile.exists()) {
+            TransactionLog.replay(logFile, new TransactionLog.RecordHandler() {
+                @Override
+                public void handle(byte[] payload) throws IOException {
+                    applyDelta(payload);
+                }
+            });
+        }
+        log = new TransactionLog(logFile, policy, groupSyncMillis);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void loadSnapshot(File snapshot) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+        try {
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                committedMap.put((K) in.readObject(), (V) in.readObject());
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Could not load snapshot " + snapshot, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void applyDelta(byte[] payload) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload));
+        try {
+            if (in.readBoolean()) {
+                committedMap.clear();
+            }
+            int removed = in.readInt();
+            for (int i = 0; i < removed; i++) {
+                committedMap.remove(in.readObject());
+            }
+            int changed = in.readInt();
+            for (int i = 0; i < changed; i++) {
+                committedMap.put((K) in.readObject(), (V) in.readObject());
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Could not replay log record", e);
+        }
+    }
+
+    private static byte[] encodeDelta(boolean cleared, Collection<?> removedKeys, Map<?, ?> changes) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeBoolean(cleared);
+            out.writeInt(removedKeys.size());
+            for (Object key : removedKeys) {
+                out.writeObject(key);
+            }
+            out.writeInt(changes.size());
+            for (Map.Entry<?, ?> entry : changes.entrySet()) {
+                out.writeObject(entry.getKey());
+                out.writeObject(entry.getValue());
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new TransactionException("Could not serialize the delta. Keys and values must be Serializable.", e);
+        }
+    }
+
+    private long appendNonTransactional(boolean cleared, Collection<?> removedKeys, Map<?, ?> changes) {
+        try {
+            return log.append(encodeDelta(cleared, removedKeys, changes));
+        } catch (IOException e) {
+            throw new TransactionException("Could not log the write", e);
+        }
+    }
+
+    /**
+     * Must be called holding the log lock. The write that triggers the
+     * checkpoint is already applied and logged, so a failure does not fail
+     * it. It is recorded instead and the next attempt waits for the log to
+     * grow by another checkpoint size.
+     */
+    private void checkpointIfNeeded() {
+        long size = 0;
+        try {
+            size = log.size();
+            if (size >= nextCheckpointBytes) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            checkpointFailure = e;
+            nextCheckpointBytes = Math.max(nextCheckpointBytes, size) + checkpointLogBytes;
+        }
+    }
+
+    /**
+     * Forces the directory entries, so that a renamed snapshot and a created
+     * log survive a crash before the files they replace are deleted.
+     */
+    private void syncDirectory() throws IOException {
+        FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void awaitDurable(TransactionLog usedLog, long sequence) {
+        try {
+            usedLog.awaitDurable(sequence);
+        } catch (IOException e) {
+            throw new TransactionException("Commit was applied but could not be made durable", e);
+        }
+    }
+
+    private File logFile(long gen) {
+        return new File(directory, LOG_PREFIX + gen + LOG_SUFFIX);
+    }
+
+    private File snapshotFile(long gen) {
+        return new File(directory, SNAPSHOT_PREFIX + gen + SNAPSHOT_SUFFIX);
+    }
+}
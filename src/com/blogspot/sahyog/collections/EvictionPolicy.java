@@ -0,0 +1,20 @@
+package com.blogspot.sahyog.collections;
+
+/**
+ * How a {@link BoundedTransactionableMap} chooses the entries to evict when it
+ * grows past its maximum.
+ */
+public enum EvictionPolicy {
+    /**
+     * Evicts the least recently read or written entries.
+     */
+    LRU,
+    /**
+     * Window TinyLFU. Recently added entries are kept in a small LRU window
+     * and only displace older entries if they have been used more often
+     * recently, as estimated by a compact frequency sketch. Keeps popular
+     * entries through scans and bursts of one off keys, where LRU would evict
+     * them.
+     */
+    WINDOW_TINY_LFU
+}
@@ -0,0 +1,420 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the keys of a bounded map in eviction order, along with their
+ * weights. Not thread safe, {@link BoundedTransactionableMap} guards it with
+ * a lock. <br />
+ *
+ * Each key has a node which sits in one of up to three intrusive doubly
+ * linked lists, least recently used first, so moving a key costs a constant
+ * number of pointer updates and no allocation.
+ */
+abstract class EvictionTracker<K> {
+    protected static final int WINDOW = 0;
+    protected static final int PROBATION = 1;
+    protected static final int PROTECTED = 2;
+
+    protected final Map<K, Node<K>> nodes = new HashMap<K, Node<K>>();
+    protected final NodeList<K>[] segments;
+    protected long totalWeight;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    protected EvictionTracker(int segmentCount) {
+        segments = new NodeList[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new NodeList<K>();
+        }
+    }
+
+    static <K> EvictionTracker<K> create(EvictionPolicy policy, long maximumWeight) {
+        switch (policy) {
+        case LRU:
+            return new Lru<K>();
+        case WINDOW_TINY_LFU:
+            return new WindowTinyLfu<K>(maximumWeight);
+        default:
+            throw new IllegalArgumentException("Unknown eviction policy " + policy);
+        }
+    }
+
+    long getTotalWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * Records a read of the key.
+     */
+    abstract void onAccess(K key);
+
+    /**
+     * Records that the key was put, with the weight of its new value.
+     */
+    final void onWrite(K key, long weight) {
+        Node<K> node = nodes.get(key);
+        if (node == null) {
+            node = new Node<K>(key, weight);
+            nodes.put(key, node);
+            totalWeight += weight;
+            onInsert(node);
+        } else {
+            totalWeight += weight - node.weight;
+            node.weight = weight;
+            onAccess(key);
+        }
+    }
+
+    final void onRemove(Object key) {
+        Node<K> node = nodes.remove(key);
+        if (node != null) {
+            totalWeight -= node.weight;
+            segments[node.segment].unlink(node);
+        }
+    }
+
+    final void onClear() {
+        nodes.clear();
+        for (NodeList<K> segment : segments) {
+            segment.clear();
+        }
+        totalWeight = 0;
+    }
+
+    protected abstract void onInsert(Node<K> node);
+
+    /**
+     * Chooses keys to evict until the total weight is at most the maximum and
+     * forgets them. Pinned keys are never chosen, so the result may leave the
+     * total above the maximum.
+     */
+    abstract List<K> evict(long maximumWeight, Set<?> pinned);
+
+    protected final void evictNode(Node<K> node, List<K> victims) {
+        onRemove(node.key);
+        victims.add(node.key);
+    }
+
+    /**
+     * @return the least recently used node of the segment which is not pinned, or null
+     */
+    protected final Node<K> firstUnpinned(int segment, Set<?> pinned) {
+        for (Node<K> node = segments[segment].head; node != null; node = node.next) {
+            if (!pinned.contains(node.key)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    static final class Node<K> {
+        final K key;
+        long weight;
+        int segment;
+        Node<K> previous;
+        Node<K> next;
+
+        Node(K key, long weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+
+    static final class NodeList<K> {
+        Node<K> head;
+        Node<K> tail;
+        long weight;
+
+        void addLast(Node<K> node, int segment) {
+            node.segment = segment;
+            node.previous = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            weight += node.weight;
+        }
+
+        void unlink(Node<K> node) {
+            if (node.previous == null) {
+                head = node.next;
+            } else {
+                node.previous.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.previous;
+            } else {
+                node.next.previous = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToLast(Node<K> node) {
+            if (tail != node) {
+                unlink(node);
+                addLast(node, node.segment);
+            }
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+            weight = 0;
+        }
+    }
+
+    /**
+     * Evicts the least recently used keys.
+     */
+    static final class Lru<K> extends EvictionTracker<K> {
+        Lru() {
+            super(1);
+        }
+
+        @Override
+        void onAccess(K key) {
+            Node<K> node = nodes.get(key);
+            if (node != null) {
+                segments[WINDOW].moveToLast(node);
+            }
+        }
+
+        @Override
+        protected void onInsert(Node<K> node) {
+            segments[WINDOW].addLast(node, WINDOW);
+        }
+
+        @Override
+        List<K> evict(long maximumWeight, Set<?> pinned) {
+            List<K> victims = new ArrayList<K>();
+            Node<K> node = segments[WINDOW].head;
+            while (totalWeight > maximumWeight && node != null) {
+                Node<K> next = node.next;
+                if (!pinned.contains(node.key)) {
+                    evictNode(node, victims);
+                }
+                node = next;
+            }
+            return victims;
+        }
+    }
+
+    /**
+     * Window TinyLFU. New keys enter a small LRU window. Keys pushed out of the
+     * window become candidates for the main space, which is a segmented LRU
+     * of a probation and a protected part. When the map is over its maximum,
+     * a candidate is only admitted if it has been used more often recently
+     * than the probation key it would displace, as estimated by a count-min
+     * sketch which is halved periodically so that old popularity fades.
+     */
+    static final class WindowTinyLfu<K> extends EvictionTracker<K> {
+        private final long maximumWindowWeight;
+        private final long maximumProtectedWeight;
+        private final FrequencySketch sketch;
+
+        WindowTinyLfu(long maximumWeight) {
+            super(3);
+            maximumWindowWeight = Math.max(1, maximumWeight / 100);
+            maximumProtectedWeight = (long) ((maximumWeight - maximumWindowWeight) * 0.8);
+            sketch = new FrequencySketch();
+        }
+
+        @Override
+        void onAccess(K key) {
+            sketch.increment(key);
+            Node<K> node = nodes.get(key);
+            if (node == null) {
+                return;
+            }
+            if (node.segment == PROBATION) {
+                segments[PROBATION].unlink(node);
+                segments[PROTECTED].addLast(node, PROTECTED);
+                while (segments[PROTECTED].weight > maximumProtectedWeight && segments[PROTECTED].head != node) {
+                    Node<K> demoted = segments[PROTECTED].head;
+                    segments[PROTECTED].unlink(demoted);
+                    segments[PROBATION].addLast(demoted, PROBATION);
+                }
+            } else {
+                segments[node.segment].moveToLast(node);
+            }
+        }
+
+        @Override
+        protected void onInsert(Node<K> node) {
+            // Sized by the number of keys, as the maximum may be a weight far above it
+            sketch.ensureCapacity(nodes.size(), nodes.keySet());
+            sketch.increment(node.key);
+            segments[WINDOW].addLast(node, WINDOW);
+        }
+
+        @Override
+        List<K> evict(long maximumWeight, Set<?> pinned) {
+            // Keys pushed out of the window join the probation segment as candidates, the oldest first
+            Node<K> firstCandidate = null;
+            while (segments[WINDOW].weight > maximumWindowWeight && segments[WINDOW].head != null) {
+                Node<K> node = segments[WINDOW].head;
+                segments[WINDOW].unlink(node);
+                segments[PROBATION].addLast(node, PROBATION);
+                if (firstCandidate == null) {
+                    firstCandidate = node;
+                }
+            }
+            List<K> victims = new ArrayList<K>();
+            Node<K> candidate = nextUnpinned(firstCandidate, pinned);
+            while (totalWeight > maximumWeight) {
+                Node<K> victim = firstUnpinned(PROBATION, pinned);
+                if (victim == candidate) {
+                    // No older key in probation to compete with, take the victim from the other segments
+                    victim = firstUnpinned(PROTECTED, pinned);
+                    if (victim == null) {
+                        victim = firstUnpinned(WINDOW, pinned);
+                    }
+                }
+                if (victim == null && candidate == null) {
+                    break;
+                }
+                if (victim == null || (candidate != null && sketch.frequency(candidate.key) <= sketch.frequency(victim.key))) {
+                    Node<K> rejected = candidate;
+                    candidate = nextUnpinned(candidate.next, pinned);
+                    evictNode(rejected, victims);
+                } else {
+                    evictNode(victim, victims);
+                }
+            }
+            return victims;
+        }
+
+        private Node<K> nextUnpinned(Node<K> node, Set<?> pinned) {
+            while (node != null && pinned.contains(node.key)) {
+                node = node.next;
+            }
+            return node;
+        }
+    }
+
+    /**
+     * Count-min sketch of four rows of 4 bit counters packed into longs. All
+     * counters are halved once the number of increments reaches ten times the
+     * size of the table. The table starts small and grows with the number of
+     * keys.
+     */
+    static final class FrequencySketch {
+        private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final int MAX_COUNT = 15;
+
+        private static final int MAX_TABLE_SIZE = 1 << 26;
+
+        private long[] table;
+        private int tableMask;
+        private long sampleSize;
+        private long increments;
+
+        FrequencySketch() {
+            allocate(64);
+        }
+
+        /**
+         * Grows the table to at least one long per key. Only the counts of the
+         * given keys are carried over to the grown table.
+         */
+        void ensureCapacity(long expectedSize, Collection<?> keys) {
+            if (expectedSize <= table.length || table.length >= MAX_TABLE_SIZE) {
+                return;
+            }
+            int size = table.length;
+            while (size < Math.min(expectedSize, MAX_TABLE_SIZE)) {
+                size <<= 1;
+            }
+            int[] frequencies = new int[keys.size()];
+            int i = 0;
+            for (Object key : keys) {
+                frequencies[i++] = frequency(key);
+            }
+            allocate(size);
+            i = 0;
+            for (Object key : keys) {
+                raise(spread(key.hashCode()), frequencies[i++]);
+            }
+        }
+
+        private void allocate(int size) {
+            table = new long[size];
+            tableMask = size - 1;
+            sampleSize = 10L * size;
+            increments = 0;
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < 4; row++) {
+                frequency = Math.min(frequency, counterAt(hash, row));
+            }
+            return frequency;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int row = 0; row < 4; row++) {
+                int index = indexOf(hash, row);
+                int shift = counterShift(hash, row);
+                if (((table[index] >>> shift) & 0xF) < MAX_COUNT) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++increments >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                increments /= 2;
+            }
+        }
+
+        /**
+         * Raises the counters of the hash to at least the frequency, without counting it as increments.
+         */
+        private void raise(int hash, int frequency) {
+            for (int row = 0; row < 4; row++) {
+                int counter = counterAt(hash, row);
+                if (counter < frequency) {
+                    table[indexOf(hash, row)] += (long) (frequency - counter) << counterShift(hash, row);
+                }
+            }
+        }
+
+        private int counterAt(int hash, int row) {
+            return (int) ((table[indexOf(hash, row)] >>> counterShift(hash, row)) & 0xF);
+        }
+
+        private int indexOf(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h ^= h >>> 32;
+            return (int) h & tableMask;
+        }
+
+        /**
+         * Each row uses its own group of four counters in a long, picked by two bits of the hash.
+         */
+        private static int counterShift(int hash, int row) {
+            return ((row << 2) + ((hash >>> (row << 3)) & 3)) << 2;
+        }
+
+        private static int spread(int h) {
+            h = ((h >>> 16) ^ h) * 0x45d9f3b;
+            return (h >>> 16) ^ h;
+        }
+    }
+}
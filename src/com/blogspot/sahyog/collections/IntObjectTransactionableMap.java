@@ -0,0 +1,262 @@
+package com.blogspot.sahyog.collections;
+
+/**
+ * A transactional map from int to objects which never boxes its keys. <br />
+ *
+ * The semantics are those of {@link SingleThreadedTransactionableMap}: changes
+ * made within a transaction are only visible to the thread that made them
+ * until commit, only one transaction can be open at a time and threads outside
+ * of the transaction can read but not write while it is open. <br />
+ *
+ * Both the committed entries and the transaction delta are kept in open
+ * addressing tables of primitive arrays, see {@link PrimitiveHashTable} and
+ * {@link PrimitiveTransactionDelta}. Values removed in a transaction are let
+ * go of right away, not at commit. <br />
+ *
+ * Absent keys are reported as null. Use containsKey() to tell an absent key
+ * from one mapped to null.
+ *
+ * @param <V>
+ */
+public class IntObjectTransactionableMap<V> implements Transactionable {
+    private final IntTable<V> base;
+    private final ThreadLocal<PrimitiveTransactionDelta<IntTable<V>>> txContextThreadLocal = new ThreadLocal<PrimitiveTransactionDelta<IntTable<V>>>();
+    private volatile boolean ongoingTransaction = false;
+
+    /**
+     * Receives the entries of the map. Return false to stop the iteration.
+     */
+    public interface EntryVisitor<V> {
+        boolean visit(int key, V value);
+    }
+
+    public IntObjectTransactionableMap() {
+        this(16);
+    }
+
+    public IntObjectTransactionableMap(int expectedSize) {
+        this.base = new IntTable<V>(expectedSize);
+    }
+
+    @Override
+    public synchronized void beginTransaction() {
+        if (ongoingTransaction) {
+            throw new TransactionException(
+                    "An existing transaction is in progress. This implementation does not allow for concurrent transactions");
+        }
+        txContextThreadLocal.set(new PrimitiveTransactionDelta<IntTable<V>>(base, new IntTable<V>(16)));
+        ongoingTransaction = true;
+    }
+
+    @Override
+    public void commit() throws IllegalStateException {
+        PrimitiveTransactionDelta<IntTable<V>> context = txContextThreadLocal.get();
+        if (context == null) {
+            throw new TransactionException("No active transaction.");
+        }
+        context.mergeIntoBase();
+        endTransaction();
+    }
+
+    @Override
+    public void abort() throws IllegalStateException {
+        if (txContextThreadLocal.get() == null) {
+            throw new TransactionException("No active transaction.");
+        }
+        endTransaction();
+    }
+
+    public int size() {
+        PrimitiveTransactionDelta<IntTable<V>> context = getTransactionContext();
+        return context == null ? base.size : context.size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(int key) {
+        PrimitiveTransactionDelta<IntTable<V>> context = getTransactionContext();
+        return context == null ? base.indexOf(key) >= 0 : context.containsKey(key);
+    }
+
+    /**
+     * @return the value mapped to the key or null
+     */
+    public V get(int key) {
+        PrimitiveTransactionDelta<IntTable<V>> context = getTransactionContext();
+        if (context != null) {
+            return valueAt(context, context.find(key));
+        }
+        IntSlots<V> slots = base.slots;
+        int index = base.indexOf(slots, key);
+        return index < 0 ? null : slots.values[index];
+    }
+
+    /**
+     * @return the previous value mapped to the key or null
+     */
+    @WriteOperation
+    public V put(int key, V value) {
+        PrimitiveTransactionDelta<IntTable<V>> context = getTransactionContext();
+        if (context != null) {
+            int slot = context.put(key);
+            V oldValue = valueAt(context, context.replaced);
+            context.delta.slots.values[slot] = value;
+            return oldValue;
+        }
+        failIfOnGoingTransaction();
+        int index = base.indexOf(key);
+        V oldValue = index < 0 ? null : base.slots.values[index];
+        int slot = base.insert(key, (byte) 0);
+        // Read the slots after inserting, which may have grown the table
+        base.slots.values[slot] = value;
+        return oldValue;
+    }
+
+    /**
+     * @return the value that was mapped to the key or null
+     */
+    @WriteOperation
+    public V remove(int key) {
+        PrimitiveTransactionDelta<IntTable<V>> context = getTransactionContext();
+        if (context != null) {
+            int location = context.remove(key);
+            V oldValue = valueAt(context, location);
+            if (location >= 0) {
+                context.delta.clearValue(location);
+            }
+            return oldValue;
+        }
+        failIfOnGoingTransaction();
+        int index = base.indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        V oldValue = base.slots.values[index];
+        base.removeAt(index);
+        return oldValue;
+    }
+
+    @WriteOperation
+    public void clear() {
+        PrimitiveTransactionDelta<IntTable<V>> context = getTransactionContext();
+        if (context != null) {
+            context.clear();
+            return;
+        }
+        failIfOnGoingTransaction();
+        base.clear();
+    }
+
+    /**
+     * Visits every entry of the map as seen by the calling thread.
+     */
+    public void forEach(EntryVisitor<V> visitor) {
+        PrimitiveTransactionDelta<IntTable<V>> context = getTransactionContext();
+        IntSlots<V> baseSlots = base.slots;
+        if (context == null) {
+            for (int i = 0; i < baseSlots.keys.length; i++) {
+                if (baseSlots.slotStates[i] == IntTable.FULL && !visitor.visit(baseSlots.keys[i], baseSlots.values[i])) {
+                    return;
+                }
+            }
+            return;
+        }
+        IntSlots<V> deltaSlots = context.delta.slots;
+        for (int i = context.nextPut(0); i >= 0; i = context.nextPut(i + 1)) {
+            if (!visitor.visit(deltaSlots.keys[i], deltaSlots.values[i])) {
+                return;
+            }
+        }
+        for (int i = context.nextUnchanged(0); i >= 0; i = context.nextUnchanged(i + 1)) {
+            if (!visitor.visit(baseSlots.keys[i], baseSlots.values[i])) {
+                return;
+            }
+        }
+    }
+
+    private V valueAt(PrimitiveTransactionDelta<IntTable<V>> context, int location) {
+        if (location == PrimitiveTransactionDelta.ABSENT) {
+            return null;
+        }
+        return location >= 0 ? context.delta.slots.values[location] : base.slots.values[PrimitiveTransactionDelta.baseSlot(location)];
+    }
+
+    /**
+     * Only looks up the thread local while a transaction is open, so reads
+     * outside of transactions pay one volatile read.
+     */
+    private PrimitiveTransactionDelta<IntTable<V>> getTransactionContext() {
+        if (!ongoingTransaction) {
+            return null;
+        }
+        return txContextThreadLocal.get();
+    }
+
+    private void endTransaction() {
+        txContextThreadLocal.set(null);
+        ongoingTransaction = false;
+    }
+
+    private void failIfOnGoingTransaction() {
+        if (ongoingTransaction) {
+            throw new IllegalStateException("A transaction is on going . No write operations are allowed");
+        }
+    }
+
+    private static final class IntSlots<V> extends PrimitiveHashTable.Slots {
+        final int[] keys;
+        final V[] values;
+
+        @SuppressWarnings("unchecked")
+        IntSlots(int capacity) {
+            super(capacity);
+            keys = new int[capacity];
+            values = (V[]) new Object[capacity];
+        }
+    }
+
+    private static final class IntTable<V> extends PrimitiveHashTable<IntTable<V>, IntSlots<V>> {
+        IntTable(int expectedSize) {
+            allocate(capacityFor(expectedSize));
+        }
+
+        @Override
+        IntSlots<V> newSlots(int capacity) {
+            return new IntSlots<V>(capacity);
+        }
+
+        @Override
+        long keyAt(IntSlots<V> slots, int slot) {
+            return slots.keys[slot];
+        }
+
+        @Override
+        void setKey(IntSlots<V> slots, int slot, long key) {
+            slots.keys[slot] = (int) key;
+        }
+
+        @Override
+        int hash(long key) {
+            int h = (int) key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        @Override
+        void moveSlot(IntSlots<V> from, int fromSlot, IntSlots<V> to, int toSlot) {
+            to.keys[toSlot] = from.keys[fromSlot];
+            to.values[toSlot] = from.values[fromSlot];
+        }
+
+        @Override
+        void copyValue(IntTable<V> from, int fromSlot, int toSlot) {
+            slots.values[toSlot] = from.slots.values[fromSlot];
+        }
+
+        @Override
+        void clearValue(int slot) {
+            slots.values[slot] = null;
+        }
+    }
+}
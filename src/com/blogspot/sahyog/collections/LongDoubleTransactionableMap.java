@@ -0,0 +1,86 @@
+package com.blogspot.sahyog.collections;
+
+/**
+ * A transactional map from long to double which never boxes its keys or
+ * values. The values are stored as their raw long bits in a
+ * {@link LongLongTransactionableMap}, which defines the semantics.
+ */
+public class LongDoubleTransactionableMap implements Transactionable {
+    private final LongLongTransactionableMap map;
+    private final double noEntryValue;
+
+    /**
+     * Receives the entries of the map. Return false to stop the iteration.
+     */
+    public interface EntryVisitor {
+        boolean visit(long key, double value);
+    }
+
+    public LongDoubleTransactionableMap() {
+        this(16, 0d);
+    }
+
+    public LongDoubleTransactionableMap(int expectedSize, double noEntryValue) {
+        this.map = new LongLongTransactionableMap(expectedSize, Double.doubleToRawLongBits(noEntryValue));
+        this.noEntryValue = noEntryValue;
+    }
+
+    public double getNoEntryValue() {
+        return noEntryValue;
+    }
+
+    @Override
+    public void beginTransaction() {
+        map.beginTransaction();
+    }
+
+    @Override
+    public void commit() throws IllegalStateException {
+        map.commit();
+    }
+
+    @Override
+    public void abort() throws IllegalStateException {
+        map.abort();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    public boolean containsKey(long key) {
+        return map.containsKey(key);
+    }
+
+    public double get(long key) {
+        return Double.longBitsToDouble(map.get(key));
+    }
+
+    @WriteOperation
+    public double put(long key, double value) {
+        return Double.longBitsToDouble(map.put(key, Double.doubleToRawLongBits(value)));
+    }
+
+    @WriteOperation
+    public double remove(long key) {
+        return Double.longBitsToDouble(map.remove(key));
+    }
+
+    @WriteOperation
+    public void clear() {
+        map.clear();
+    }
+
+    public void forEach(final EntryVisitor visitor) {
+        map.forEach(new LongLongTransactionableMap.EntryVisitor() {
+            @Override
+            public boolean visit(long key, long value) {
+                return visitor.visit(key, Double.longBitsToDouble(value));
+            }
+        });
+    }
+}
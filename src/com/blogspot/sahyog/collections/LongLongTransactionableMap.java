@@ -0,0 +1,254 @@
+package com.blogspot.sahyog.collections;
+
+/**
+ * A transactional map from long to long which never boxes its keys or values. <br />
+ *
+ * The semantics are those of {@link SingleThreadedTransactionableMap}: changes
+ * made within a transaction are only visible to the thread that made them
+ * until commit, only one transaction can be open at a time and threads outside
+ * of the transaction can read but not write while it is open. <br />
+ *
+ * Both the committed entries and the transaction delta are kept in open
+ * addressing tables of primitive arrays, see {@link PrimitiveHashTable} and
+ * {@link PrimitiveTransactionDelta}. <br />
+ *
+ * Absent keys are reported with the no entry value given at construction, 0 by
+ * default. Use containsKey() to tell an absent key from one mapped to it.
+ */
+public class LongLongTransactionableMap implements Transactionable {
+    private final LongTable base;
+    private final long noEntryValue;
+    private final ThreadLocal<PrimitiveTransactionDelta<LongTable>> txContextThreadLocal = new ThreadLocal<PrimitiveTransactionDelta<LongTable>>();
+    private volatile boolean ongoingTransaction = false;
+
+    /**
+     * Receives the entries of the map. Return false to stop the iteration.
+     */
+    public interface EntryVisitor {
+        boolean visit(long key, long value);
+    }
+
+    public LongLongTransactionableMap() {
+        this(16, 0L);
+    }
+
+    public LongLongTransactionableMap(int expectedSize, long noEntryValue) {
+        this.base = new LongTable(expectedSize);
+        this.noEntryValue = noEntryValue;
+    }
+
+    public long getNoEntryValue() {
+        return noEntryValue;
+    }
+
+    @Override
+    public synchronized void beginTransaction() {
+        if (ongoingTransaction) {
+            throw new TransactionException(
+                    "An existing transaction is in progress. This implementation does not allow for concurrent transactions");
+        }
+        txContextThreadLocal.set(new PrimitiveTransactionDelta<LongTable>(base, new LongTable(16)));
+        ongoingTransaction = true;
+    }
+
+    @Override
+    public void commit() throws IllegalStateException {
+        PrimitiveTransactionDelta<LongTable> context = txContextThreadLocal.get();
+        if (context == null) {
+            throw new TransactionException("No active transaction.");
+        }
+        context.mergeIntoBase();
+        endTransaction();
+    }
+
+    @Override
+    public void abort() throws IllegalStateException {
+        if (txContextThreadLocal.get() == null) {
+            throw new TransactionException("No active transaction.");
+        }
+        endTransaction();
+    }
+
+    public int size() {
+        PrimitiveTransactionDelta<LongTable> context = getTransactionContext();
+        return context == null ? base.size : context.size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(long key) {
+        PrimitiveTransactionDelta<LongTable> context = getTransactionContext();
+        return context == null ? base.indexOf(key) >= 0 : context.containsKey(key);
+    }
+
+    /**
+     * @return the value mapped to the key or the no entry value
+     */
+    public long get(long key) {
+        PrimitiveTransactionDelta<LongTable> context = getTransactionContext();
+        if (context != null) {
+            return valueAt(context, context.find(key));
+        }
+        LongSlots slots = base.slots;
+        int index = base.indexOf(slots, key);
+        return index < 0 ? noEntryValue : slots.values[index];
+    }
+
+    /**
+     * @return the previous value mapped to the key or the no entry value
+     */
+    @WriteOperation
+    public long put(long key, long value) {
+        PrimitiveTransactionDelta<LongTable> context = getTransactionContext();
+        if (context != null) {
+            int slot = context.put(key);
+            long oldValue = valueAt(context, context.replaced);
+            context.delta.slots.values[slot] = value;
+            return oldValue;
+        }
+        failIfOnGoingTransaction();
+        int index = base.indexOf(key);
+        long oldValue = index < 0 ? noEntryValue : base.slots.values[index];
+        int slot = base.insert(key, (byte) 0);
+        // Read the slots after inserting, which may have grown the table
+        base.slots.values[slot] = value;
+        return oldValue;
+    }
+
+    /**
+     * @return the value that was mapped to the key or the no entry value
+     */
+    @WriteOperation
+    public long remove(long key) {
+        PrimitiveTransactionDelta<LongTable> context = getTransactionContext();
+        if (context != null) {
+            return valueAt(context, context.remove(key));
+        }
+        failIfOnGoingTransaction();
+        int index = base.indexOf(key);
+        if (index < 0) {
+            return noEntryValue;
+        }
+        long oldValue = base.slots.values[index];
+        base.removeAt(index);
+        return oldValue;
+    }
+
+    @WriteOperation
+    public void clear() {
+        PrimitiveTransactionDelta<LongTable> context = getTransactionContext();
+        if (context != null) {
+            context.clear();
+            return;
+        }
+        failIfOnGoingTransaction();
+        base.clear();
+    }
+
+    /**
+     * Visits every entry of the map as seen by the calling thread.
+     */
+    public void forEach(EntryVisitor visitor) {
+        PrimitiveTransactionDelta<LongTable> context = getTransactionContext();
+        LongSlots baseSlots = base.slots;
+        if (context == null) {
+            for (int i = 0; i < baseSlots.keys.length; i++) {
+                if (baseSlots.slotStates[i] == LongTable.FULL && !visitor.visit(baseSlots.keys[i], baseSlots.values[i])) {
+                    return;
+                }
+            }
+            return;
+        }
+        LongSlots deltaSlots = context.delta.slots;
+        for (int i = context.nextPut(0); i >= 0; i = context.nextPut(i + 1)) {
+            if (!visitor.visit(deltaSlots.keys[i], deltaSlots.values[i])) {
+                return;
+            }
+        }
+        for (int i = context.nextUnchanged(0); i >= 0; i = context.nextUnchanged(i + 1)) {
+            if (!visitor.visit(baseSlots.keys[i], baseSlots.values[i])) {
+                return;
+            }
+        }
+    }
+
+    private long valueAt(PrimitiveTransactionDelta<LongTable> context, int location) {
+        if (location == PrimitiveTransactionDelta.ABSENT) {
+            return noEntryValue;
+        }
+        return location >= 0 ? context.delta.slots.values[location] : base.slots.values[PrimitiveTransactionDelta.baseSlot(location)];
+    }
+
+    /**
+     * Only looks up the thread local while a transaction is open, so reads
+     * outside of transactions pay one volatile read.
+     */
+    private PrimitiveTransactionDelta<LongTable> getTransactionContext() {
+        if (!ongoingTransaction) {
+            return null;
+        }
+        return txContextThreadLocal.get();
+    }
+
+    private void endTransaction() {
+        txContextThreadLocal.set(null);
+        ongoingTransaction = false;
+    }
+
+    private void failIfOnGoingTransaction() {
+        if (ongoingTransaction) {
+            throw new IllegalStateException("A transaction is on going . No write operations are allowed");
+        }
+    }
+
+    private static final class LongSlots extends PrimitiveHashTable.Slots {
+        final long[] keys;
+        final long[] values;
+
+        LongSlots(int capacity) {
+            super(capacity);
+            keys = new long[capacity];
+            values = new long[capacity];
+        }
+    }
+
+    private static final class LongTable extends PrimitiveHashTable<LongTable, LongSlots> {
+        LongTable(int expectedSize) {
+            allocate(capacityFor(expectedSize));
+        }
+
+        @Override
+        LongSlots newSlots(int capacity) {
+            return new LongSlots(capacity);
+        }
+
+        @Override
+        long keyAt(LongSlots slots, int slot) {
+            return slots.keys[slot];
+        }
+
+        @Override
+        void setKey(LongSlots slots, int slot, long key) {
+            slots.keys[slot] = key;
+        }
+
+        @Override
+        int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        void moveSlot(LongSlots from, int fromSlot, LongSlots to, int toSlot) {
+            to.keys[toSlot] = from.keys[fromSlot];
+            to.values[toSlot] = from.values[fromSlot];
+        }
+
+        @Override
+        void copyValue(LongTable from, int fromSlot, int toSlot) {
+            slots.values[toSlot] = from.slots.values[fromSlot];
+        }
+    }
+}
@@ -0,0 +1,539 @@
+package com.blogspot.sahyog.collections;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map whose committed contents live in a memory mapped snapshot file and
+ * whose changes since the snapshot live on the heap. <br />
+ *
+ * Opening a snapshot only maps the file, so it takes milliseconds regardless
+ * of the size of the map. A get() of a key that has not been changed probes
+ * the open addressing index stored in the file and deserializes just that
+ * entry. Only the keys that are put or removed after opening are kept on the
+ * heap. This makes it a good map to wrap in a
+ * {@link SingleThreadedTransactionableMap}: the committed base stays on disk,
+ * transaction deltas and committed changes stay small, and
+ * {@link #exportTo(File)} writes a new snapshot to reopen after a restart. <br />
+ *
+ * {@link #checkpoint()} writes the merged contents over the snapshot file and
+ * maps it again, which empties the heap overlay. A map opened with a
+ * checkpoint size does so by itself once that many keys have changed, right
+ * after the write or the committed transaction delta that reached it, so the
+ * snapshot always holds whole commits. A failed checkpoint is kept for
+ * {@link #getCheckpointFailure()} and retried once as many keys again have
+ * changed. <br />
+ *
+ * The file format is a 32 byte header (magic, format version, entry count,
+ * index capacity), an index of capacity slots of 16 bytes each (offset of the
+ * entry or 0 when empty, and the key hash) and the entries, each written as key
+ * length, value length, key bytes and value bytes. Keys are located with
+ * linear probing on their hashCode(), which therefore has to be the same across
+ * JVM runs. Null keys and values are not supported. <br />
+ *
+ * The map is not thread safe for writers, the same as a HashMap. A checkpoint
+ * is a write. The mapped snapshot, its entry count and index capacity are
+ * held by one {@link Base} and replaced with a single volatile write, so a
+ * reader always probes an index with the capacity it was written for.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class MappedSnapshotMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, BulkMergeable<K, V> {
+    private static final int MAGIC = 0x4D534E50;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 16;
+    /** Chunk size for mapping. A multiple of the slot size so index slots never straddle chunks */
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    private final File file;
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final int checkpointChangedKeys;
+    private volatile Base base;
+    private final Map<K, V> changes = new HashMap<K, V>();
+    private final Set<Object> removedFromBase = new HashSet<Object>();
+    private boolean baseCleared = false;
+    /** Kept up to date by every write so that size() does not probe the snapshot */
+    private long size;
+    /** Changed key count at which checkpointIfNeeded() next takes a checkpoint */
+    private int nextCheckpointChangedKeys;
+    private IOException checkpointFailure;
+    private Set<Map.Entry<K, V>> entrySet;
+
+    private MappedSnapshotMap(File file, Serializer<K> keySerializer, Serializer<V> valueSerializer, int checkpointChangedKeys) throws IOException {
+        this.file = file;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.checkpointChangedKeys = checkpointChangedKeys;
+        this.nextCheckpointChangedKeys = checkpointChangedKeys;
+        this.base = map();
+        this.size = base.count;
+    }
+
+    /**
+     * Maps a snapshot written by {@link #write(File, Map, Serializer, Serializer)}.
+     * The map only checkpoints when {@link #checkpoint()} is called.
+     */
+    public static <K, V> MappedSnapshotMap<K, V> open(File file, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        return open(file, keySerializer, valueSerializer, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Maps a snapshot written by {@link #write(File, Map, Serializer, Serializer)}.
+     *
+     * @param checkpointChangedKeys number of changed keys after which the map checkpoints
+     */
+    public static <K, V> MappedSnapshotMap<K, V> open(File file, Serializer<K> keySerializer, Serializer<V> valueSerializer, int checkpointChangedKeys)
+            throws IOException {
+        if (checkpointChangedKeys <= 0) {
+            throw new IllegalArgumentException("Checkpoint size should be positive: " + checkpointChangedKeys);
+        }
+        return new MappedSnapshotMap<K, V>(file, keySerializer, valueSerializer, checkpointChangedKeys);
+    }
+
+    /**
+     * Maps the snapshot file.
+     */
+    private Base map() throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            int numChunks = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            MappedByteBuffer[] chunks = new MappedByteBuffer[numChunks];
+            for (int i = 0; i < numChunks; i++) {
+                long position = i * CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, size - position));
+            }
+            ByteBuffer header = chunks[0];
+            if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) {
+                throw new IOException(file + " is not a snapshot or has an unsupported format version");
+            }
+            return new Base(chunks, header.getLong(8), header.getLong(16));
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes the contents of a map as a snapshot file.
+     */
+    public static <K, V> void write(File file, Map<K, V> map, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+        long count = map.size();
+        long capacity = 16;
+        while (capacity < count * 2) {
+            capacity <<= 1;
+        }
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("Too many entries for a snapshot: " + count);
+        }
+        long[] offsets = new long[(int) capacity];
+        int[] hashes = new int[(int) capacity];
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            long position = HEADER_SIZE + capacity * SLOT_SIZE;
+            channel.position(position);
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            for (Map.Entry<K, V> entry : map.entrySet()) {
+                byte[] key = keySerializer.serialize(entry.getKey());
+                byte[] value = valueSerializer.serialize(entry.getValue());
+                int hash = hash(entry.getKey());
+                int slot = (int) (hash & (capacity - 1));
+                while (offsets[slot] != 0) {
+                    slot = (int) ((slot + 1) & (capacity - 1));
+                }
+                offsets[slot] = position;
+                hashes[slot] = hash;
+                buffer = writeEntry(channel, buffer, key, value);
+                position += 8 + key.length + value.length;
+            }
+            flush(channel, buffer);
+            channel.position(0);
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(count).putLong(capacity).putLong(0);
+            for (int i = 0; i < capacity; i++) {
+                if (buffer.remaining() < SLOT_SIZE) {
+                    flush(channel, buffer);
+                }
+                buffer.putLong(offsets[i]).putInt(hashes[i]).putInt(0);
+            }
+            flush(channel, buffer);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes the current contents of this map, snapshot and changes, as a new
+     * snapshot file. The file must not be the one this map is mapped from.
+     */
+    public void exportTo(File file) throws IOException {
+        write(file, this, keySerializer, valueSerializer);
+    }
+
+    /**
+     * Writes the current contents of this map over its snapshot file and maps
+     * the new snapshot, after which no key is kept on the heap. The new file
+     * is written next to the snapshot and renamed over it, so a crash leaves
+     * either the old or the new snapshot.
+     */
+    public void checkpoint() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        exportTo(tmp);
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+        syncDirectory(file.getAbsoluteFile().getParentFile());
+        Base mapped = map();
+        base = mapped;
+        changes.clear();
+        removedFromBase.clear();
+        baseCleared = false;
+        size = mapped.count;
+        nextCheckpointChangedKeys = checkpointChangedKeys;
+        checkpointFailure = null;
+    }
+
+    /**
+     * @return why the last checkpoint taken on reaching the checkpoint size
+     *         failed, or null if it succeeded
+     */
+    public IOException getCheckpointFailure() {
+        return checkpointFailure;
+    }
+
+    /**
+     * @return number of keys which are kept on the heap because they changed since the snapshot
+     */
+    public int changedKeyCount() {
+        return changes.size() + removedFromBase.size();
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (changes.containsKey(key)) {
+            return true;
+        }
+        if (baseCleared || removedFromBase.contains(key)) {
+            return false;
+        }
+        return findInBase(base, key) >= 0;
+    }
+
+    @Override
+    public V get(Object key) {
+        V value = changes.get(key);
+        if (value != null || baseCleared || removedFromBase.contains(key)) {
+            return value;
+        }
+        Base b = base;
+        long offset = findInBase(b, key);
+        return offset < 0 ? null : readValue(b, offset);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        V oldValue = putWithoutCheckpoint(key, value);
+        checkpointIfNeeded();
+        return oldValue;
+    }
+
+    @Override
+    public V remove(Object key) {
+        V oldValue = removeWithoutCheckpoint(key);
+        checkpointIfNeeded();
+        return oldValue;
+    }
+
+    @Override
+    public void clear() {
+        changes.clear();
+        removedFromBase.clear();
+        baseCleared = true;
+        size = 0;
+    }
+
+    @Override
+    public void applyDelta(boolean cleared, Collection<?> removedKeys, Map<? extends K, ? extends V> changes) {
+        if (cleared) {
+            clear();
+        } else if (removedKeys != null) {
+            for (Object key : removedKeys) {
+                removeWithoutCheckpoint(key);
+            }
+        }
+        if (changes != null) {
+            for (Map.Entry<? extends K, ? extends V> entry : changes.entrySet()) {
+                putWithoutCheckpoint(entry.getKey(), entry.getValue());
+            }
+        }
+        checkpointIfNeeded();
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        applyDelta(false, null, m);
+    }
+
+    private V putWithoutCheckpoint(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Null keys and values are not supported");
+        }
+        V oldValue = get(key);
+        changes.put(key, value);
+        if (oldValue == null) {
+            size++;
+        }
+        return oldValue;
+    }
+
+    private V removeWithoutCheckpoint(Object key) {
+        V oldValue = get(key);
+        if (oldValue == null) {
+            return null;
+        }
+        size--;
+        changes.remove(key);
+        if (!baseCleared && !removedFromBase.contains(key) && findInBase(base, key) >= 0) {
+            removedFromBase.add(key);
+        }
+        return oldValue;
+    }
+
+    /**
+     * Called after a whole write, so that a checkpoint never holds part of a
+     * transaction delta. The write is already applied, so a failure does not
+     * fail it.
+     */
+    private void checkpointIfNeeded() {
+        int changed = changedKeyCount();
+        if (changed < nextCheckpointChangedKeys) {
+            return;
+        }
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            checkpointFailure = e;
+            nextCheckpointChangedKeys = changed + checkpointChangedKeys;
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<K, V>>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new MergedIterator();
+                }
+
+                @Override
+                public int size() {
+                    return MappedSnapshotMap.this.size();
+                }
+
+                @Override
+                public void clear() {
+                    MappedSnapshotMap.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the offset of the entry for the key in the snapshot, or -1
+     */
+    private long findInBase(Base b, Object key) {
+        if (key == null || b.count == 0) {
+            return -1;
+        }
+        int hash = hash(key);
+        long slot = hash & (b.capacity - 1);
+        while (true) {
+            long slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+            long offset = getLong(b, slotPosition);
+            if (offset == 0) {
+                return -1;
+            }
+            if (getInt(b, slotPosition + 8) == hash && key.equals(readKey(b, offset))) {
+                return offset;
+            }
+            slot = (slot + 1) & (b.capacity - 1);
+        }
+    }
+
+    private K readKey(Base b, long offset) {
+        int keyLength = getInt(b, offset);
+        byte[] bytes = new byte[keyLength];
+        read(b, offset + 8, bytes);
+        return keySerializer.deserialize(bytes, 0, keyLength);
+    }
+
+    private V readValue(Base b, long offset) {
+        int keyLength = getInt(b, offset);
+        int valueLength = getInt(b, offset + 4);
+        byte[] bytes = new byte[valueLength];
+        read(b, offset + 8 + keyLength, bytes);
+        return valueSerializer.deserialize(bytes, 0, valueLength);
+    }
+
+    private static long getLong(Base b, long position) {
+        MappedByteBuffer chunk = b.chunks[(int) (position / CHUNK_SIZE)];
+        int index = (int) (position % CHUNK_SIZE);
+        if (index + 8 <= chunk.limit()) {
+            return chunk.getLong(index);
+        }
+        byte[] bytes = new byte[8];
+        read(b, position, bytes);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    private static int getInt(Base b, long position) {
+        MappedByteBuffer chunk = b.chunks[(int) (position / CHUNK_SIZE)];
+        int index = (int) (position % CHUNK_SIZE);
+        if (index + 4 <= chunk.limit()) {
+            return chunk.getInt(index);
+        }
+        byte[] bytes = new byte[4];
+        read(b, position, bytes);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    /**
+     * Reads bytes which may straddle mapped chunks.
+     */
+    private static void read(Base b, long position, byte[] destination) {
+        int copied = 0;
+        while (copied < destination.length) {
+            int chunk = (int) (position / CHUNK_SIZE);
+            int index = (int) (position % CHUNK_SIZE);
+            ByteBuffer view = b.chunks[chunk].duplicate();
+            view.position(index);
+            int length = Math.min(destination.length - copied, view.remaining());
+            view.get(destination, copied, length);
+            copied += length;
+            position += length;
+        }
+    }
+
+    private static void syncDirectory(File directory) throws IOException {
+        FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static ByteBuffer writeEntry(FileChannel channel, ByteBuffer buffer, byte[] key, byte[] value) throws IOException {
+        int length = 8 + key.length + value.length;
+        if (buffer.remaining() < length) {
+            flush(channel, buffer);
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(length);
+            }
+        }
+        buffer.putInt(key.length).putInt(value.length).put(key).put(value);
+        return buffer;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * A mapped snapshot file, never changed once published.
+     */
+    private static final class Base {
+        final MappedByteBuffer[] chunks;
+        /** Number of entries in the snapshot */
+        final long count;
+        /** Number of index slots */
+        final long capacity;
+
+        Base(MappedByteBuffer[] chunks, long count, long capacity) {
+            this.chunks = chunks;
+            this.count = count;
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * Iterates the snapshot entries which have not been changed followed by the changed entries.
+     */
+    private final class MergedIterator implements Iterator<Map.Entry<K, V>> {
+        private final Base b = base;
+        private long slot = 0;
+        private final Iterator<Map.Entry<K, V>> changesIterator = changes.entrySet().iterator();
+        private Map.Entry<K, V> next;
+        private Map.Entry<K, V> current;
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !baseCleared && slot < b.capacity && b.count > 0) {
+                long offset = getLong(b, HEADER_SIZE + slot * SLOT_SIZE);
+                slot++;
+                if (offset == 0) {
+                    continue;
+                }
+                K key = readKey(b, offset);
+                if (!changes.containsKey(key) && !removedFromBase.contains(key)) {
+                    next = new SimpleImmutableEntry<K, V>(key, readValue(b, offset));
+                }
+            }
+            if (next == null && changesIterator.hasNext()) {
+                Map.Entry<K, V> entry = changesIterator.next();
+                next = new SimpleImmutableEntry<K, V>(entry.getKey(), entry.getValue());
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next = null;
+            return current;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Remove the key from the map instead");
+        }
+    }
+}
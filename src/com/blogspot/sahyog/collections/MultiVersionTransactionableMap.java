@@ -0,0 +1,953 @@
+package com.blogspot.sahyog.collections;
+
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A transactional map which allows many transactions to be open at the same
+ * time, each on its own thread. <br />
+ *
+ * Every committed value is stamped with a commit version and kept in a short
+ * chain of versions per key. A transaction reads the snapshot of the map as of
+ * the version that was stable when it began, and buffers its writes in a
+ * {@link TransactionContext} exactly like {@link SingleThreadedTransactionableMap}
+ * does. On commit the keys written by the transaction are checked against the
+ * versions committed since its snapshot (first committer wins) and, if nothing
+ * conflicts, the delta is installed under a new version. Commit only locks the
+ * lock stripes of the keys it writes, so transactions writing disjoint keys
+ * commit in parallel. A conflicting commit fails with a
+ * {@link TransactionException} and the transaction is aborted. <br />
+ *
+ * Threads which are not in a transaction read the latest stable version and
+ * their writes are committed immediately as single entry transactions. Unlike
+ * {@link SingleThreadedTransactionableMap} they are never rejected because some
+ * other thread has a transaction open. The views returned by keySet(),
+ * values() and entrySet() outside of a transaction read the latest stable
+ * version at each call, and each of their iterators keeps the version it
+ * started with until it is exhausted or garbage collected. <br />
+ *
+ * Versions no open transaction, read or iterator can see are dropped as
+ * commits are published, and so are keys whose latest version is a removal.
+ * <br />
+ *
+ * With group commit enabled, committing transactions queue their write sets
+ * and one of them, the leader, validates and installs everything queued under
+ * a single version, publishing it once. Each commit() still returns only once
+ * its own changes are visible. This trades a little latency for much higher
+ * throughput when many small transactions commit at the same time. Within a
+ * group the transaction queued first wins a conflict. <br />
+ *
+ * Null keys are not supported. size() and containsValue() have to resolve every
+ * key against the snapshot and are linear in the size of the map.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class MultiVersionTransactionableMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Transactionable {
+    private static final int DEFAULT_LOCK_STRIPES = 64;
+    /** Version of a view which reads the latest stable version at each call */
+    private static final long LATEST = -1;
+    /** Version of a thread's point read handle while it is not reading */
+    private static final long IDLE = Long.MAX_VALUE;
+    /** Longest a queued group commit waits before checking whether it should lead */
+    private static final long GROUP_PARK_NANOS = 1000000;
+
+    private final ConcurrentHashMap<K, VersionedValue<V>> versions = new ConcurrentHashMap<K, VersionedValue<V>>();
+    private final ThreadLocal<MultiVersionTransaction> txThreadLocal = new ThreadLocal<MultiVersionTransaction>();
+    private final Set<MultiVersionTransaction> activeTransactions = ConcurrentHashMap.newKeySet();
+    /** Reads and iterators outside of a transaction, along with the version each of them reads */
+    private final Set<ReaderHandle> readers = ConcurrentHashMap.newKeySet();
+    /** Registered once per thread and reused by every get, containsKey and size outside of a transaction */
+    private final ThreadLocal<ReaderHandle> pointReader = new ThreadLocal<ReaderHandle>() {
+        @Override
+        protected ReaderHandle initialValue() {
+            ReaderHandle reader = new ReaderHandle(Thread.currentThread(), IDLE);
+            readers.add(reader);
+            return reader;
+        }
+    };
+    private final SnapshotView latest = new SnapshotView(LATEST);
+    /** Keys with versions or a removal to drop once nothing can see them, in the order they were written */
+    private final ConcurrentLinkedQueue<Garbage<K>> garbage = new ConcurrentLinkedQueue<Garbage<K>>();
+    /** Held by the thread sweeping the garbage */
+    private final ReentrantLock sweepLock = new ReentrantLock();
+    /** Last version handed out to a committer */
+    private final AtomicLong commitClock = new AtomicLong();
+    /** Highest version such that it and every version before it is fully installed */
+    private final AtomicLong stableVersion = new AtomicLong();
+    private final ReentrantLock[] stripes;
+    private volatile boolean groupCommit = false;
+    private final ConcurrentLinkedQueue<CommitRequest> commitQueue = new ConcurrentLinkedQueue<CommitRequest>();
+    /** Held by the thread applying a commit group */
+    private final ReentrantLock groupLeaderLock = new ReentrantLock();
+
+    public MultiVersionTransactionableMap() {
+        this(DEFAULT_LOCK_STRIPES);
+    }
+
+    /**
+     * @param lockStripes number of locks commits are striped over. Rounded up to a power of two.
+     */
+    public MultiVersionTransactionableMap(int lockStripes) {
+        int n = 1;
+        while (n < lockStripes) {
+            n <<= 1;
+        }
+        stripes = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public MultiVersionTransactionableMap(Map<? extends K, ? extends V> initialContents) {
+        this();
+        putAll(initialContents);
+    }
+
+    @Override
+    public void beginTransaction() {
+        if (txThreadLocal.get() != null) {
+            throw new TransactionException("An existing transaction is in progress on this thread.");
+        }
+        MultiVersionTransaction tx = new MultiVersionTransaction(stableVersion.get());
+        activeTransactions.add(tx);
+        // Re-read after registering so that pruning, which reads the stable version before scanning the
+        // active transactions, can never discard a version this snapshot needs.
+        tx.snapshotVersion = stableVersion.get();
+        tx.context = new TransactionContext<K, V>(new SnapshotView(tx.snapshotVersion));
+        txThreadLocal.set(tx);
+    }
+
+    @Override
+    public void commit() throws IllegalStateException {
+        MultiVersionTransaction tx = txThreadLocal.get();
+        if (tx == null) {
+            throw new TransactionException("No active transaction.");
+        }
+        try {
+            TransactionContext<K, V> context = tx.context;
+            Set<K> writeSet = new HashSet<K>(context.getChanges().keySet());
+            for (Object key : context.getRemovedKeys()) {
+                writeSet.add(castKey(key));
+            }
+            if (context.isCleared()) {
+                writeSet.addAll(new SnapshotView(tx.snapshotVersion).keySet());
+            }
+            if (writeSet.isEmpty()) {
+                return;
+            }
+            if (groupCommit) {
+                commitInGroup(new CommitRequest(tx.snapshotVersion, writeSet, context.getChanges()));
+                return;
+            }
+            int[] lockOrder = stripesFor(writeSet);
+            lockStripes(lockOrder);
+            long version = 0;
+            try {
+                for (K key : writeSet) {
+                    VersionedValue<V> head = versions.get(key);
+                    if (head != null && head.version > tx.snapshotVersion) {
+                        throw new TransactionException("Write conflict on key " + key
+                                + ". It was committed by another transaction after this transaction began.");
+                    }
+                }
+                version = commitClock.incrementAndGet();
+                Map<K, V> changes = context.getChanges();
+                boolean installed = false;
+                try {
+                    for (K key : writeSet) {
+                        if (changes.containsKey(key)) {
+                            install(key, new VersionedValue<V>(version, changes.get(key), false));
+                        } else {
+                            install(key, new VersionedValue<V>(version, null, true));
+                        }
+                    }
+                    installed = true;
+                } finally {
+                    if (!installed) {
+                        uninstall(writeSet, version);
+                    }
+                }
+            } finally {
+                unlockStripes(lockOrder);
+                if (version != 0) {
+                    publish(version);
+                }
+            }
+        } finally {
+            endTransaction(tx);
+        }
+    }
+
+    @Override
+    public void abort() throws IllegalStateException {
+        MultiVersionTransaction tx = txThreadLocal.get();
+        if (tx == null) {
+            throw new TransactionException("No active transaction.");
+        }
+        endTransaction(tx);
+    }
+
+    /**
+     * Turns group commit on or off. Transactions already waiting in a group
+     * are still applied as a group.
+     */
+    public void setGroupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    public boolean isGroupCommit() {
+        return groupCommit;
+    }
+
+    /**
+     * @return the version that readers outside of a transaction currently see
+     */
+    public long getStableVersion() {
+        return stableVersion.get();
+    }
+
+    @Override
+    public int size() {
+        MultiVersionTransaction tx = txThreadLocal.get();
+        return tx == null ? latest().size() : tx.context.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        MultiVersionTransaction tx = txThreadLocal.get();
+        return tx == null ? latest().containsKey(key) : tx.context.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        MultiVersionTransaction tx = txThreadLocal.get();
+        return tx == null ? latest().containsValue(value) : tx.context.containsValue(value);
+    }
+
+    @Override
+    public V get(Object key) {
+        MultiVersionTransaction tx = txThreadLocal.get();
+        return tx == null ? latest().get(key) : tx.context.get(key);
+    }
+
+    @Override
+    @WriteOperation
+    public V put(K key, V value) {
+        if (key == null) {
+            throw new NullPointerException("Null keys are not supported");
+        }
+        MultiVersionTransaction tx = txThreadLocal.get();
+        if (tx != null) {
+            return tx.context.put(key, value);
+        }
+        return autoCommit(key, value, false);
+    }
+
+    @Override
+    @WriteOperation
+    public V remove(Object key) {
+        MultiVersionTransaction tx = txThreadLocal.get();
+        if (tx != null) {
+            return tx.context.remove(key);
+        }
+        if (key == null || !versions.containsKey(key)) {
+            return null;
+        }
+        return autoCommit(castKey(key), null, true);
+    }
+
+    @Override
+    @WriteOperation
+    public void putAll(Map<? extends K, ? extends V> m) {
+        if (m == null || m.isEmpty()) {
+            return;
+        }
+        MultiVersionTransaction tx = txThreadLocal.get();
+        if (tx != null) {
+            for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+                tx.context.put(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+        // Committed as one version, like a single put, so it is never rejected by a concurrent commit
+        Map<K, V> entries = new HashMap<K, V>(m);
+        if (entries.containsKey(null)) {
+            throw new NullPointerException("Null keys are not supported");
+        }
+        int[] lockOrder = stripesFor(entries.keySet());
+        lockStripes(lockOrder);
+        long version = 0;
+        try {
+            version = commitClock.incrementAndGet();
+            boolean installed = false;
+            try {
+                for (Map.Entry<K, V> entry : entries.entrySet()) {
+                    install(entry.getKey(), new VersionedValue<V>(version, entry.getValue(), false));
+                }
+                installed = true;
+            } finally {
+                if (!installed) {
+                    uninstall(entries.keySet(), version);
+                }
+            }
+        } finally {
+            unlockStripes(lockOrder);
+            if (version != 0) {
+                publish(version);
+            }
+        }
+    }
+
+    @Override
+    @WriteOperation
+    public void clear() {
+        MultiVersionTransaction tx = txThreadLocal.get();
+        if (tx != null) {
+            tx.context.clear();
+            return;
+        }
+        int[] all = new int[stripes.length];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        lockStripes(all);
+        long version = 0;
+        try {
+            version = commitClock.incrementAndGet();
+            boolean installed = false;
+            try {
+                for (K key : versions.keySet()) {
+                    install(key, new VersionedValue<V>(version, null, true));
+                }
+                installed = true;
+            } finally {
+                if (!installed) {
+                    uninstall(versions.keySet(), version);
+                }
+            }
+        } finally {
+            unlockStripes(all);
+            if (version != 0) {
+                publish(version);
+            }
+        }
+    }
+
+    /**
+     * Inside a transaction this returns the transaction's view of the keys.
+     * Outside of a transaction it returns a read only view of the latest
+     * stable version.
+     */
+    @Override
+    public Set<K> keySet() {
+        MultiVersionTransaction tx = txThreadLocal.get();
+        return tx == null ? latest().keySet() : tx.context.keySet();
+    }
+
+    @Override
+    public Collection<V> values() {
+        MultiVersionTransaction tx = txThreadLocal.get();
+        return tx == null ? latest().values() : tx.context.values();
+    }
+
+    @Override
+    public Set<java.util.Map.Entry<K, V>> entrySet() {
+        MultiVersionTransaction tx = txThreadLocal.get();
+        return tx == null ? latest().entrySet() : tx.context.entrySet();
+    }
+
+    private SnapshotView latest() {
+        return latest;
+    }
+
+    /**
+     * Registers a read of the latest stable version so that pruning keeps the versions it needs.
+     *
+     * @param owner once it is garbage collected the read is considered over
+     */
+    private ReaderHandle registerReader(Object owner) {
+        ReaderHandle reader = new ReaderHandle(owner, stableVersion.get());
+        readers.add(reader);
+        // Re-read after registering for the same reason as beginTransaction does
+        reader.version = stableVersion.get();
+        return reader;
+    }
+
+    /**
+     * Publishes the version a point read of the latest stable version reads,
+     * with the same re-read as registerReader() does. The calling thread's
+     * handle is reused, so a read allocates nothing.
+     *
+     * @return the version to read
+     */
+    private long beginPointRead(ReaderHandle reader) {
+        reader.version = stableVersion.get();
+        long version = stableVersion.get();
+        reader.version = version;
+        return version;
+    }
+
+    /**
+     * Queues the request and waits until some leader has applied it. The
+     * thread which gets the leader lock applies everything queued so far,
+     * then wakes the head of the queue so that requests queued in the
+     * meantime get a leader of their own.
+     */
+    private void commitInGroup(CommitRequest request) {
+        commitQueue.add(request);
+        while (!request.done) {
+            if (groupLeaderLock.tryLock()) {
+                try {
+                    if (!request.done) {
+                        applyCommitGroup();
+                    }
+                } finally {
+                    groupLeaderLock.unlock();
+                    // Even if applying the group failed, the requests queued since need a leader
+                    CommitRequest next = commitQueue.peek();
+                    if (next != null) {
+                        LockSupport.unpark(next.thread);
+                    }
+                }
+            } else {
+                // The timeout covers a leader that finished between the failed tryLock and the park
+                LockSupport.parkNanos(this, GROUP_PARK_NANOS);
+            }
+        }
+        if (request.failure != null) {
+            throw request.failure;
+        }
+    }
+
+    /**
+     * Must be called holding the group leader lock.
+     */
+    private void applyCommitGroup() {
+        List<CommitRequest> group = new ArrayList<CommitRequest>();
+        CommitRequest queued;
+        while ((queued = commitQueue.poll()) != null) {
+            group.add(queued);
+        }
+        try {
+            Set<K> allKeys = new HashSet<K>();
+            for (CommitRequest request : group) {
+                allKeys.addAll(request.writeSet);
+            }
+            int[] lockOrder = stripesFor(allKeys);
+            lockStripes(lockOrder);
+            long version = 0;
+            try {
+                Set<K> writtenInGroup = new HashSet<K>();
+                List<CommitRequest> accepted = new ArrayList<CommitRequest>(group.size());
+                for (CommitRequest request : group) {
+                    K conflict = findConflict(request, writtenInGroup);
+                    if (conflict == null) {
+                        writtenInGroup.addAll(request.writeSet);
+                        accepted.add(request);
+                    } else {
+                        request.failure = new TransactionException("Write conflict on key " + conflict
+                                + ". It was committed by another transaction after this transaction began.");
+                    }
+                }
+                if (!accepted.isEmpty()) {
+                    version = commitClock.incrementAndGet();
+                    boolean installed = false;
+                    try {
+                        for (CommitRequest request : accepted) {
+                            for (K key : request.writeSet) {
+                                if (request.changes.containsKey(key)) {
+                                    install(key, new VersionedValue<V>(version, request.changes.get(key), false));
+                                } else {
+                                    install(key, new VersionedValue<V>(version, null, true));
+                                }
+                            }
+                        }
+                        installed = true;
+                    } finally {
+                        if (!installed) {
+                            uninstall(writtenInGroup, version);
+                        }
+                    }
+                }
+            } finally {
+                unlockStripes(lockOrder);
+                if (version != 0) {
+                    publish(version);
+                }
+            }
+        } catch (RuntimeException e) {
+            for (CommitRequest request : group) {
+                if (request.failure == null) {
+                    request.failure = new TransactionException("Group commit failed", e);
+                }
+            }
+            throw e;
+        } finally {
+            for (CommitRequest request : group) {
+                request.done = true;
+                LockSupport.unpark(request.thread);
+            }
+        }
+    }
+
+    private K findConflict(CommitRequest request, Set<K> writtenInGroup) {
+        for (K key : request.writeSet) {
+            VersionedValue<V> head = versions.get(key);
+            if ((head != null && head.version > request.snapshotVersion) || writtenInGroup.contains(key)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private V autoCommit(K key, V value, boolean removal) {
+        int stripe = stripeFor(key);
+        stripes[stripe].lock();
+        long version = 0;
+        V oldValue;
+        try {
+            VersionedValue<V> head = versions.get(key);
+            oldValue = head == null || head.removed ? null : head.value;
+            version = commitClock.incrementAndGet();
+            boolean installed = false;
+            try {
+                install(key, new VersionedValue<V>(version, value, removal));
+                installed = true;
+            } finally {
+                if (!installed) {
+                    uninstall(Collections.singleton(key), version);
+                }
+            }
+        } finally {
+            stripes[stripe].unlock();
+            if (version != 0) {
+                publish(version);
+            }
+        }
+        return oldValue;
+    }
+
+    /**
+     * Must be called with the stripe for the key locked. Nothing is pruned
+     * here, what the new head supersedes is dropped by the sweep after the
+     * version is published.
+     */
+    private void install(K key, VersionedValue<V> newHead) {
+        newHead.previous = versions.get(key);
+        versions.put(key, newHead);
+        if (newHead.previous != null || newHead.removed) {
+            garbage.add(new Garbage<K>(key, newHead.version));
+        }
+    }
+
+    /**
+     * Takes back what a failed commit installed under the version, so that
+     * publishing the version changes nothing. The version still has to be
+     * published, or every later commit would wait for it forever. Must be
+     * called with the stripes of the keys locked.
+     */
+    private void uninstall(Collection<K> keys, long version) {
+        for (K key : keys) {
+            VersionedValue<V> head = versions.get(key);
+            if (head != null && head.version == version) {
+                if (head.previous == null) {
+                    versions.remove(key, head);
+                } else {
+                    versions.put(key, head.previous);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops versions of the key that nothing can see any more, and the key itself if the oldest version anything can
+     * see is its latest one and a removal. Must be called with the stripe for the key locked.
+     */
+    private void prune(K key, VersionedValue<V> head, long oldestVisible) {
+        VersionedValue<V> node = head;
+        while (node != null && node.version > oldestVisible) {
+            node = node.previous;
+        }
+        if (node == null) {
+            return;
+        }
+        node.previous = null;
+        if (node == head && head.removed) {
+            versions.remove(key, head);
+        }
+    }
+
+    /**
+     * Prunes the keys written at versions that every open transaction, read and iterator can now see past. Only one
+     * thread sweeps at a time, the others leave it to that one.
+     */
+    private void sweep() {
+        if (garbage.isEmpty() || !sweepLock.tryLock()) {
+            return;
+        }
+        try {
+            long oldestVisible = oldestVisibleVersion();
+            Garbage<K> next;
+            // Versions are handed out in about the order they are queued, the first one still visible ends the sweep
+            while ((next = garbage.peek()) != null && next.version <= oldestVisible) {
+                garbage.poll();
+                int stripe = stripeFor(next.key);
+                stripes[stripe].lock();
+                try {
+                    VersionedValue<V> head = versions.get(next.key);
+                    if (head != null) {
+                        prune(next.key, head, oldestVisible);
+                    }
+                } finally {
+                    stripes[stripe].unlock();
+                }
+            }
+        } finally {
+            sweepLock.unlock();
+        }
+    }
+
+    private long oldestVisibleVersion() {
+        long oldest = stableVersion.get();
+        for (MultiVersionTransaction tx : activeTransactions) {
+            oldest = Math.min(oldest, tx.snapshotVersion);
+        }
+        for (ReaderHandle reader : readers) {
+            if (reader.get() == null) {
+                // An iterator dropped before it was exhausted, or a thread that has ended
+                readers.remove(reader);
+            } else {
+                oldest = Math.min(oldest, reader.version);
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * @return number of keys with versions kept, including those whose latest version is a removal
+     */
+    int versionedKeyCount() {
+        return versions.size();
+    }
+
+    /**
+     * Versions are handed out under the stripe locks but installs for disjoint
+     * stripes finish in any order. A version only becomes visible once all
+     * versions before it are installed.
+     */
+    private void publish(long version) {
+        while (!stableVersion.compareAndSet(version - 1, version)) {
+            Thread.yield();
+        }
+        sweep();
+    }
+
+    private void endTransaction(MultiVersionTransaction tx) {
+        activeTransactions.remove(tx);
+        txThreadLocal.remove();
+    }
+
+    private int stripeFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (stripes.length - 1);
+    }
+
+    private int[] stripesFor(Set<K> keys) {
+        boolean[] needed = new boolean[stripes.length];
+        int count = 0;
+        for (K key : keys) {
+            int stripe = stripeFor(key);
+            if (!needed[stripe]) {
+                needed[stripe] = true;
+                count++;
+            }
+        }
+        int[] order = new int[count];
+        int j = 0;
+        for (int i = 0; i < needed.length; i++) {
+            if (needed[i]) {
+                order[j++] = i;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Stripes are always locked in ascending order so that committers can not deadlock.
+     */
+    private void lockStripes(int[] order) {
+        for (int stripe : order) {
+            stripes[stripe].lock();
+        }
+    }
+
+    private void unlockStripes(int[] order) {
+        for (int i = order.length - 1; i >= 0; i--) {
+            stripes[order[i]].unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private K castKey(Object key) {
+        return (K) key;
+    }
+
+    private V valueAt(VersionedValue<V> head, long version) {
+        VersionedValue<V> node = visibleAt(head, version);
+        return node == null || node.removed ? null : node.value;
+    }
+
+    private boolean containsAt(Object key, long version) {
+        VersionedValue<V> node = visibleAt(versions.get(key), version);
+        return node != null && !node.removed;
+    }
+
+    private int sizeAt(long version) {
+        int size = 0;
+        for (VersionedValue<V> head : versions.values()) {
+            VersionedValue<V> node = visibleAt(head, version);
+            if (node != null && !node.removed) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    private VersionedValue<V> visibleAt(VersionedValue<V> head, long version) {
+        VersionedValue<V> node = head;
+        while (node != null && node.version > version) {
+            node = node.previous;
+        }
+        return node;
+    }
+
+    private static final class VersionedValue<V> {
+        final long version;
+        final V value;
+        final boolean removed;
+        volatile VersionedValue<V> previous;
+
+        VersionedValue(long version, V value, boolean removed) {
+            this.version = version;
+            this.value = value;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * A read outside of a transaction. It is weakly held so that an iterator
+     * which is never exhausted, or a thread which has ended, stops holding
+     * back pruning once it is collected.
+     */
+    private static final class ReaderHandle extends WeakReference<Object> {
+        volatile long version;
+
+        ReaderHandle(Object owner, long version) {
+            super(owner);
+            this.version = version;
+        }
+    }
+
+    private static final class Garbage<K> {
+        final K key;
+        final long version;
+
+        Garbage(K key, long version) {
+            this.key = key;
+            this.version = version;
+        }
+    }
+
+    private final class MultiVersionTransaction {
+        volatile long snapshotVersion;
+        TransactionContext<K, V> context;
+
+        MultiVersionTransaction(long snapshotVersion) {
+            this.snapshotVersion = snapshotVersion;
+        }
+    }
+
+    /**
+     * A transaction waiting to be applied by a group commit.
+     */
+    private final class CommitRequest {
+        final Thread thread = Thread.currentThread();
+        final long snapshotVersion;
+        final Set<K> writeSet;
+        final Map<K, V> changes;
+        /** Written by the leader before done is set */
+        TransactionException failure;
+        volatile boolean done;
+
+        CommitRequest(long snapshotVersion, Set<K> writeSet, Map<K, V> changes) {
+            this.snapshotVersion = snapshotVersion;
+            this.writeSet = writeSet;
+            this.changes = changes;
+        }
+    }
+
+    /**
+     * Read only view of the map as of a version, or of the latest stable
+     * version at each call. This is the main map that the transaction contexts
+     * buffer their changes against.
+     */
+    private final class SnapshotView extends AbstractMap<K, V> {
+        private final long version;
+        private Set<Map.Entry<K, V>> entrySet;
+
+        SnapshotView(long version) {
+            this.version = version;
+        }
+
+        @Override
+        public V get(Object key) {
+            if (key == null) {
+                return null;
+            }
+            if (version != LATEST) {
+                return valueAt(versions.get(key), version);
+            }
+            ReaderHandle reader = pointReader.get();
+            // A read from inside a key's equals() keeps to the version of the read around it
+            long outer = reader.version;
+            try {
+                return valueAt(versions.get(key), outer == IDLE ? beginPointRead(reader) : outer);
+            } finally {
+                reader.version = outer;
+            }
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            if (key == null) {
+                return false;
+            }
+            if (version != LATEST) {
+                return containsAt(key, version);
+            }
+            ReaderHandle reader = pointReader.get();
+            long outer = reader.version;
+            try {
+                return containsAt(key, outer == IDLE ? beginPointRead(reader) : outer);
+            } finally {
+                reader.version = outer;
+            }
+        }
+
+        @Override
+        public boolean containsValue(Object value) {
+            if (version != LATEST) {
+                return super.containsValue(value);
+            }
+            ReaderHandle reader = registerReader(Thread.currentThread());
+            try {
+                return new SnapshotView(reader.version).containsValue(value);
+            } finally {
+                readers.remove(reader);
+            }
+        }
+
+        @Override
+        public int size() {
+            if (version != LATEST) {
+                return sizeAt(version);
+            }
+            ReaderHandle reader = pointReader.get();
+            long outer = reader.version;
+            try {
+                return sizeAt(outer == IDLE ? beginPointRead(reader) : outer);
+            } finally {
+                reader.version = outer;
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            if (entrySet == null) {
+                entrySet = new AbstractSet<Map.Entry<K, V>>() {
+                    @Override
+                    public Iterator<Map.Entry<K, V>> iterator() {
+                        return new SnapshotIterator(version);
+                    }
+
+                    @Override
+                    public int size() {
+                        return SnapshotView.this.size();
+                    }
+                };
+            }
+            return entrySet;
+        }
+    }
+
+    private final class SnapshotIterator implements Iterator<Map.Entry<K, V>> {
+        private final long version;
+        /** Registration of an iterator over the latest stable version, released once it is exhausted */
+        private ReaderHandle reader;
+        private final Iterator<Map.Entry<K, VersionedValue<V>>> chains = versions.entrySet().iterator();
+        private Map.Entry<K, V> next;
+
+        SnapshotIterator(long version) {
+            if (version == LATEST) {
+                reader = registerReader(this);
+                version = reader.version;
+            }
+            this.version = version;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && chains.hasNext()) {
+                Map.Entry<K, VersionedValue<V>> chain = chains.next();
+                VersionedValue<V> node = visibleAt(chain.getValue(), version);
+                if (node != null && !node.removed) {
+                    next = new SimpleImmutableEntry<K, V>(chain.getKey(), node.value);
+                }
+            }
+            if (next == null && reader != null) {
+                readers.remove(reader);
+                reader = null;
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> current = next;
+            next = null;
+            return current;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Snapshots are read only");
+        }
+    }
+
+}
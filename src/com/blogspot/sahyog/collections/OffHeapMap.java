@@ -0,0 +1,512 @@
+package com.blogspot.sahyog.collections;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A map which keeps its keys and values in direct memory outside of the java
+ * heap, so that the garbage collector only sees a handful of buffers no matter
+ * how many entries the map has. It is meant to be the map wrapped by a
+ * {@link SingleThreadedTransactionableMap}: transaction deltas stay on the heap
+ * in the {@link TransactionContext} and only the committed entries move off
+ * heap. <br />
+ *
+ * Entries are serialized with the given {@link Serializer}s and appended to
+ * arenas of direct memory as hash, key length, value length, key bytes and
+ * value bytes. An open addressing index of entry addresses, also off heap,
+ * locates them. Keys are compared by their serialized bytes. Overwriting or
+ * removing an entry leaves its old bytes behind as garbage. Once the garbage
+ * outgrows the live data the map compacts itself by copying the live entries
+ * to fresh arenas; {@link #compact()} can also be called directly. <br />
+ *
+ * Null keys and values are not supported. Like a HashMap the map is not thread
+ * safe for writers. The arenas and the index are held together by one
+ * {@link Layout}, and compaction, clear and index growth build a new one off
+ * to the side and publish it with a single volatile write. A reader on
+ * another thread, such as a read outside of the transaction while a commit is
+ * applied, may or may not see the entries being written but never probes a
+ * half built index or an arena released by compaction. Direct memory is
+ * returned to the system when the arenas are garbage collected, after
+ * compaction or once the map is unreachable.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class OffHeapMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, BulkMergeable<K, V> {
+    public static final int DEFAULT_ARENA_SIZE = 64 * 1024 * 1024;
+    private static final int ENTRY_HEADER_SIZE = 12;
+    private static final int INDEX_CHUNK_SHIFT = 27;
+    private static final int INDEX_CHUNK_SLOTS = 1 << INDEX_CHUNK_SHIFT;
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = -1;
+    private static final float MAX_LOAD = 0.7f;
+
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final int arenaSize;
+    private volatile Layout layout;
+    private int size;
+    private long tombstones;
+    private long liveBytes;
+    private long garbageBytes;
+    private int modCount;
+    private Set<Map.Entry<K, V>> entrySet;
+
+    public OffHeapMap(Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        this(keySerializer, valueSerializer, 1024, DEFAULT_ARENA_SIZE);
+    }
+
+    /**
+     * @param expectedSize number of entries to size the index for
+     * @param arenaSize bytes of direct memory allocated at a time for entries
+     */
+    public OffHeapMap(Serializer<K> keySerializer, Serializer<V> valueSerializer, int expectedSize, int arenaSize) {
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.arenaSize = arenaSize;
+        this.layout = new Layout(new CopyOnWriteArrayList<ByteBuffer>(), capacityFor(expectedSize));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key != null && findSlot(layout, serializeKey(key), hash(key)) >= 0;
+    }
+
+    @Override
+    public V get(Object key) {
+        if (key == null) {
+            return null;
+        }
+        Layout l = layout;
+        long slot = findSlot(l, serializeKey(key), hash(key));
+        return slot < 0 ? null : readValue(l, l.address(slot));
+    }
+
+    @Override
+    public V put(K key, V value) {
+        V oldValue = putWithoutCompaction(key, value);
+        compactIfNeeded();
+        return oldValue;
+    }
+
+    private V putWithoutCompaction(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Null keys and values are not supported");
+        }
+        byte[] keyBytes = keySerializer.serialize(key);
+        byte[] valueBytes = valueSerializer.serialize(value);
+        int hash = hash(key);
+        // Appending may add an arena but keeps the index, so the slot found stays valid
+        Layout l = layout;
+        long slot = findSlot(l, keyBytes, hash);
+        V oldValue = null;
+        if (slot >= 0) {
+            long oldAddress = l.address(slot);
+            oldValue = readValue(l, oldAddress);
+            discard(l, oldAddress);
+            l.setAddress(slot, append(l, hash, keyBytes, valueBytes));
+        } else {
+            slot = insertionSlot(l, hash);
+            if (l.address(slot) == TOMBSTONE) {
+                tombstones--;
+            }
+            l.setAddress(slot, append(l, hash, keyBytes, valueBytes));
+            size++;
+            if (size + tombstones > l.capacity * MAX_LOAD) {
+                rebuildIndex(capacityFor(size));
+            }
+        }
+        modCount++;
+        return oldValue;
+    }
+
+    @Override
+    public V remove(Object key) {
+        V oldValue = removeWithoutCompaction(key);
+        compactIfNeeded();
+        return oldValue;
+    }
+
+    private V removeWithoutCompaction(Object key) {
+        if (key == null) {
+            return null;
+        }
+        Layout l = layout;
+        long slot = findSlot(l, serializeKey(key), hash(key));
+        if (slot < 0) {
+            return null;
+        }
+        long address = l.address(slot);
+        V oldValue = readValue(l, address);
+        discard(l, address);
+        l.setAddress(slot, TOMBSTONE);
+        size--;
+        tombstones++;
+        modCount++;
+        return oldValue;
+    }
+
+    @Override
+    public void clear() {
+        layout = new Layout(new CopyOnWriteArrayList<ByteBuffer>(), capacityFor(0));
+        size = 0;
+        tombstones = 0;
+        liveBytes = 0;
+        garbageBytes = 0;
+        modCount++;
+    }
+
+    /**
+     * Sizes the index once for the whole delta and compacts at most once at the end.
+     */
+    @Override
+    public void applyDelta(boolean cleared, Collection<?> removedKeys, Map<? extends K, ? extends V> changes) {
+        if (cleared) {
+            clear();
+        } else if (removedKeys != null) {
+            for (Object key : removedKeys) {
+                removeWithoutCompaction(key);
+            }
+        }
+        if (changes != null) {
+            ensureCapacity(size + changes.size());
+            for (Map.Entry<? extends K, ? extends V> entry : changes.entrySet()) {
+                putWithoutCompaction(entry.getKey(), entry.getValue());
+            }
+        }
+        compactIfNeeded();
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        applyDelta(false, null, m);
+    }
+
+    /**
+     * Sizes the index for the given number of entries up front, so that a bulk
+     * load does not rebuild it repeatedly.
+     */
+    public void ensureCapacity(int expectedSize) {
+        long needed = capacityFor(expectedSize);
+        if (needed > layout.capacity) {
+            rebuildIndex(needed);
+        }
+    }
+
+    /**
+     * Copies the live entries to new arenas, releasing the space of overwritten
+     * and removed entries. The new arenas and index are published together
+     * once they are complete.
+     */
+    public void compact() {
+        Layout old = layout;
+        Layout compacted = new Layout(new CopyOnWriteArrayList<ByteBuffer>(), capacityFor(size));
+        long compactedBytes = 0;
+        for (long slot = 0; slot < old.capacity; slot++) {
+            long address = old.address(slot);
+            if (address == EMPTY || address == TOMBSTONE) {
+                continue;
+            }
+            ByteBuffer arena = old.arenas.get(arenaOf(address));
+            int offset = offsetOf(address);
+            int length = ENTRY_HEADER_SIZE + arena.getInt(offset + 4) + arena.getInt(offset + 8);
+            byte[] entry = new byte[length];
+            ByteBuffer view = arena.duplicate();
+            view.position(offset);
+            view.get(entry);
+            long newAddress = allocate(compacted, length);
+            ByteBuffer target = compacted.arenas.get(arenaOf(newAddress)).duplicate();
+            target.position(offsetOf(newAddress));
+            target.put(entry);
+            compactedBytes += length;
+            compacted.setAddress(insertionSlot(compacted, arena.getInt(offset)), newAddress);
+        }
+        layout = compacted;
+        liveBytes = compactedBytes;
+        garbageBytes = 0;
+        tombstones = 0;
+        modCount++;
+    }
+
+    /**
+     * @return bytes of direct memory allocated for entries
+     */
+    public long allocatedBytes() {
+        long total = 0;
+        for (ByteBuffer arena : layout.arenas) {
+            total += arena.capacity();
+        }
+        return total;
+    }
+
+    /**
+     * @return bytes taken by overwritten and removed entries which compaction would release
+     */
+    public long garbageBytes() {
+        return garbageBytes;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<K, V>>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public void clear() {
+                    OffHeapMap.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    private byte[] serializeKey(Object key) {
+        @SuppressWarnings("unchecked")
+        K typedKey = (K) key;
+        return keySerializer.serialize(typedKey);
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private long findSlot(Layout l, byte[] keyBytes, int hash) {
+        long mask = l.capacity - 1;
+        long slot = hash & mask;
+        while (true) {
+            long address = l.address(slot);
+            if (address == EMPTY) {
+                return -1;
+            }
+            if (address != TOMBSTONE && keyMatches(l, address, keyBytes, hash)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static long insertionSlot(Layout l, int hash) {
+        long mask = l.capacity - 1;
+        long slot = hash & mask;
+        while (true) {
+            long address = l.address(slot);
+            if (address == EMPTY || address == TOMBSTONE) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static boolean keyMatches(Layout l, long address, byte[] keyBytes, int hash) {
+        ByteBuffer arena = l.arenas.get(arenaOf(address));
+        int offset = offsetOf(address);
+        if (arena.getInt(offset) != hash || arena.getInt(offset + 4) != keyBytes.length) {
+            return false;
+        }
+        int keyOffset = offset + ENTRY_HEADER_SIZE;
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (arena.get(keyOffset + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private K readKey(Layout l, long address) {
+        ByteBuffer arena = l.arenas.get(arenaOf(address));
+        int offset = offsetOf(address);
+        byte[] bytes = new byte[arena.getInt(offset + 4)];
+        ByteBuffer view = arena.duplicate();
+        view.position(offset + ENTRY_HEADER_SIZE);
+        view.get(bytes);
+        return keySerializer.deserialize(bytes, 0, bytes.length);
+    }
+
+    private V readValue(Layout l, long address) {
+        ByteBuffer arena = l.arenas.get(arenaOf(address));
+        int offset = offsetOf(address);
+        int keyLength = arena.getInt(offset + 4);
+        byte[] bytes = new byte[arena.getInt(offset + 8)];
+        ByteBuffer view = arena.duplicate();
+        view.position(offset + ENTRY_HEADER_SIZE + keyLength);
+        view.get(bytes);
+        return valueSerializer.deserialize(bytes, 0, bytes.length);
+    }
+
+    private long append(Layout l, int hash, byte[] keyBytes, byte[] valueBytes) {
+        int length = ENTRY_HEADER_SIZE + keyBytes.length + valueBytes.length;
+        long address = allocate(l, length);
+        ByteBuffer arena = l.arenas.get(arenaOf(address)).duplicate();
+        arena.position(offsetOf(address));
+        arena.putInt(hash).putInt(keyBytes.length).putInt(valueBytes.length).put(keyBytes).put(valueBytes);
+        liveBytes += length;
+        return address;
+    }
+
+    /**
+     * Bump allocates from the last arena, starting a new one when it is full.
+     * Addresses are the arena number in the high int and the offset plus one in
+     * the low int, so that no address is ever EMPTY.
+     */
+    private long allocate(Layout l, int length) {
+        List<ByteBuffer> arenas = l.arenas;
+        ByteBuffer arena = arenas.isEmpty() ? null : arenas.get(arenas.size() - 1);
+        if (arena == null || arena.remaining() < length) {
+            arena = ByteBuffer.allocateDirect(Math.max(arenaSize, length));
+            arenas.add(arena);
+        }
+        int offset = arena.position();
+        arena.position(offset + length);
+        return ((long) (arenas.size() - 1) << 32) | (offset + 1L);
+    }
+
+    private static int arenaOf(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offsetOf(long address) {
+        return (int) (address & 0xffffffffL) - 1;
+    }
+
+    private void discard(Layout l, long address) {
+        ByteBuffer arena = l.arenas.get(arenaOf(address));
+        int offset = offsetOf(address);
+        int length = ENTRY_HEADER_SIZE + arena.getInt(offset + 4) + arena.getInt(offset + 8);
+        liveBytes -= length;
+        garbageBytes += length;
+    }
+
+    private void compactIfNeeded() {
+        if (garbageBytes > arenaSize && garbageBytes > liveBytes) {
+            compact();
+        }
+    }
+
+    /**
+     * Builds the bigger index for the same arenas and publishes it once it is complete.
+     */
+    private void rebuildIndex(long newCapacity) {
+        Layout old = layout;
+        Layout rebuilt = new Layout(old.arenas, newCapacity);
+        for (long slot = 0; slot < old.capacity; slot++) {
+            long address = old.address(slot);
+            if (address != EMPTY && address != TOMBSTONE) {
+                rebuilt.setAddress(insertionSlot(rebuilt, old.arenas.get(arenaOf(address)).getInt(offsetOf(address))), address);
+            }
+        }
+        layout = rebuilt;
+        tombstones = 0;
+    }
+
+    private static long capacityFor(long expectedSize) {
+        long capacity = 16;
+        while (capacity * MAX_LOAD / 2 < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * The arenas and the index of entry addresses. The index is only ever
+     * replaced along with the layout. Arenas are added in place to a copy on
+     * write list, so a reader holding an older layout of the same index can
+     * still resolve every address in it.
+     */
+    private static final class Layout {
+        final List<ByteBuffer> arenas;
+        final LongBuffer[] index;
+        final long capacity;
+
+        Layout(List<ByteBuffer> arenas, long capacity) {
+            this.arenas = arenas;
+            this.capacity = capacity;
+            int chunks = (int) ((capacity + INDEX_CHUNK_SLOTS - 1) >>> INDEX_CHUNK_SHIFT);
+            index = new LongBuffer[chunks];
+            for (int i = 0; i < chunks; i++) {
+                long slots = Math.min(INDEX_CHUNK_SLOTS, capacity - ((long) i << INDEX_CHUNK_SHIFT));
+                // Direct buffers are zeroed, which is EMPTY
+                index[i] = ByteBuffer.allocateDirect((int) (slots * 8)).asLongBuffer();
+            }
+        }
+
+        long address(long slot) {
+            return index[(int) (slot >>> INDEX_CHUNK_SHIFT)].get((int) (slot & (INDEX_CHUNK_SLOTS - 1)));
+        }
+
+        void setAddress(long slot, long address) {
+            index[(int) (slot >>> INDEX_CHUNK_SHIFT)].put((int) (slot & (INDEX_CHUNK_SLOTS - 1)), address);
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+        private final Layout l = layout;
+        private long slot = 0;
+        private long nextAddress = EMPTY;
+        private K currentKey;
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext() {
+            if (expectedModCount != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            while (nextAddress == EMPTY && slot < l.capacity) {
+                long address = l.address(slot++);
+                if (address != EMPTY && address != TOMBSTONE) {
+                    nextAddress = address;
+                }
+            }
+            return nextAddress != EMPTY;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            currentKey = readKey(l, nextAddress);
+            Map.Entry<K, V> entry = new SimpleImmutableEntry<K, V>(currentKey, readValue(l, nextAddress));
+            nextAddress = EMPTY;
+            return entry;
+        }
+
+        /**
+         * Removal only leaves a tombstone in the index, so the iteration order
+         * is not disturbed. Compaction waits for the next write to the map.
+         */
+        @Override
+        public void remove() {
+            if (currentKey == null) {
+                throw new IllegalStateException();
+            }
+            removeWithoutCompaction(currentKey);
+            currentKey = null;
+            expectedModCount = modCount;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * Runs bulk operations over a spliterator of map entries on the common
+ * {@link ForkJoinPool}, in the manner of the bulk operations of
+ * {@link java.util.concurrent.ConcurrentHashMap}. <br />
+ *
+ * The parallelism threshold is the estimated number of entries needed for an
+ * operation to run in parallel. Below it, or with Long.MAX_VALUE, the
+ * operation runs in the calling thread. With 1 the entries are split as finely
+ * as the spliterator allows.
+ */
+final class ParallelBulkOperations {
+    private ParallelBulkOperations() {
+    }
+
+    static <K, V> void forEach(Spliterator<Map.Entry<K, V>> spliterator, long parallelismThreshold,
+            final BiConsumer<? super K, ? super V> action) {
+        if (action == null) {
+            throw new NullPointerException();
+        }
+        Consumer<Map.Entry<K, V>> consumer = new Consumer<Map.Entry<K, V>>() {
+            @Override
+            public void accept(Map.Entry<K, V> entry) {
+                action.accept(entry.getKey(), entry.getValue());
+            }
+        };
+        if (spliterator.estimateSize() < parallelismThreshold) {
+            spliterator.forEachRemaining(consumer);
+        } else {
+            ForkJoinPool.commonPool().invoke(new ForEachTask<Map.Entry<K, V>>(spliterator, parallelismThreshold, consumer));
+        }
+    }
+
+    /**
+     * @return a non null result of the search function, or null if it returned null for every entry
+     */
+    static <K, V, U> U search(Spliterator<Map.Entry<K, V>> spliterator, long parallelismThreshold,
+            BiFunction<? super K, ? super V, ? extends U> searchFunction) {
+        if (searchFunction == null) {
+            throw new NullPointerException();
+        }
+        SearchTask<K, V, U> task = new SearchTask<K, V, U>(spliterator, parallelismThreshold, searchFunction,
+                new AtomicReference<U>());
+        if (spliterator.estimateSize() < parallelismThreshold) {
+            task.compute();
+        } else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+        return task.result.get();
+    }
+
+    /**
+     * @return the non null transformations of all entries combined with the reducer, or null if there are none
+     */
+    static <K, V, U> U reduce(Spliterator<Map.Entry<K, V>> spliterator, long parallelismThreshold,
+            BiFunction<? super K, ? super V, ? extends U> transformer, BiFunction<? super U, ? super U, ? extends U> reducer) {
+        if (transformer == null || reducer == null) {
+            throw new NullPointerException();
+        }
+        ReduceTask<K, V, U> task = new ReduceTask<K, V, U>(spliterator, parallelismThreshold, transformer, reducer);
+        if (spliterator.estimateSize() < parallelismThreshold) {
+            return task.compute();
+        }
+        return ForkJoinPool.commonPool().invoke(task);
+    }
+
+    private static final class ForEachTask<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Spliterator<T> spliterator;
+        private final long threshold;
+        private final Consumer<? super T> action;
+
+        ForEachTask(Spliterator<T> spliterator, long threshold, Consumer<? super T> action) {
+            this.spliterator = spliterator;
+            this.threshold = threshold;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            List<ForEachTask<T>> forked = new ArrayList<ForEachTask<T>>();
+            Spliterator<T> prefix;
+            while (spliterator.estimateSize() > threshold && (prefix = spliterator.trySplit()) != null) {
+                ForEachTask<T> task = new ForEachTask<T>(prefix, threshold, action);
+                task.fork();
+                forked.add(task);
+            }
+            spliterator.forEachRemaining(action);
+            for (ForEachTask<T> task : forked) {
+                task.join();
+            }
+        }
+    }
+
+    private static final class SearchTask<K, V, U> extends RecursiveAction implements Consumer<Map.Entry<K, V>> {
+        private static final long serialVersionUID = 1L;
+        private final Spliterator<Map.Entry<K, V>> spliterator;
+        private final long threshold;
+        private final BiFunction<? super K, ? super V, ? extends U> searchFunction;
+        /** Shared by all the tasks of one search, the first non null result wins */
+        final AtomicReference<U> result;
+
+        SearchTask(Spliterator<Map.Entry<K, V>> spliterator, long threshold,
+                BiFunction<? super K, ? super V, ? extends U> searchFunction, AtomicReference<U> result) {
+            this.spliterator = spliterator;
+            this.threshold = threshold;
+            this.searchFunction = searchFunction;
+            this.result = result;
+        }
+
+        @Override
+        public void accept(Map.Entry<K, V> entry) {
+            U found = searchFunction.apply(entry.getKey(), entry.getValue());
+            if (found != null) {
+                result.compareAndSet(null, found);
+            }
+        }
+
+        @Override
+        protected void compute() {
+            List<SearchTask<K, V, U>> forked = new ArrayList<SearchTask<K, V, U>>();
+            Spliterator<Map.Entry<K, V>> prefix;
+            while (result.get() == null && spliterator.estimateSize() > threshold
+                    && (prefix = spliterator.trySplit()) != null) {
+                SearchTask<K, V, U> task = new SearchTask<K, V, U>(prefix, threshold, searchFunction, result);
+                task.fork();
+                forked.add(task);
+            }
+            while (result.get() == null && spliterator.tryAdvance(this)) {
+            }
+            for (SearchTask<K, V, U> task : forked) {
+                task.join();
+            }
+        }
+    }
+
+    private static final class ReduceTask<K, V, U> extends RecursiveTask<U> implements Consumer<Map.Entry<K, V>> {
+        private static final long serialVersionUID = 1L;
+        private final Spliterator<Map.Entry<K, V>> spliterator;
+        private final long threshold;
+        private final BiFunction<? super K, ? super V, ? extends U> transformer;
+        private final BiFunction<? super U, ? super U, ? extends U> reducer;
+        private U accumulated;
+
+        ReduceTask(Spliterator<Map.Entry<K, V>> spliterator, long threshold,
+                BiFunction<? super K, ? super V, ? extends U> transformer, BiFunction<? super U, ? super U, ? extends U> reducer) {
+            this.spliterator = spliterator;
+            this.threshold = threshold;
+            this.transformer = transformer;
+            this.reducer = reducer;
+        }
+
+        @Override
+        public void accept(Map.Entry<K, V> entry) {
+            accumulated = combine(accumulated, transformer.apply(entry.getKey(), entry.getValue()));
+        }
+
+        @Override
+        protected U compute() {
+            List<ReduceTask<K, V, U>> forked = new ArrayList<ReduceTask<K, V, U>>();
+            Spliterator<Map.Entry<K, V>> prefix;
+            while (spliterator.estimateSize() > threshold && (prefix = spliterator.trySplit()) != null) {
+                ReduceTask<K, V, U> task = new ReduceTask<K, V, U>(prefix, threshold, transformer, reducer);
+                task.fork();
+                forked.add(task);
+            }
+            spliterator.forEachRemaining(this);
+            U result = accumulated;
+            for (ReduceTask<K, V, U> task : forked) {
+                result = combine(result, task.join());
+            }
+            return result;
+        }
+
+        private U combine(U left, U right) {
+            if (left == null) {
+                return right;
+            }
+            return right == null ? left : reducer.apply(left, right);
+        }
+    }
+
+    /**
+     * Traverses one spliterator and then another. The first split hands out the first one whole.
+     */
+    static final class ConcatSpliterator<T> implements Spliterator<T> {
+        private Spliterator<T> first;
+        private final Spliterator<T> second;
+
+        ConcatSpliterator(Spliterator<T> first, Spliterator<T> second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (first != null) {
+                if (first.tryAdvance(action)) {
+                    return true;
+                }
+                first = null;
+            }
+            return second.tryAdvance(action);
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            if (first != null) {
+                first.forEachRemaining(action);
+                first = null;
+            }
+            second.forEachRemaining(action);
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            if (first != null) {
+                Spliterator<T> prefix = first;
+                first = null;
+                return prefix;
+            }
+            return second.trySplit();
+        }
+
+        @Override
+        public long estimateSize() {
+            long size = second.estimateSize() + (first == null ? 0 : first.estimateSize());
+            return size < 0 ? Long.MAX_VALUE : size;
+        }
+
+        @Override
+        public int characteristics() {
+            return first == null ? second.characteristics() : first.characteristics() & second.characteristics() & DISTINCT;
+        }
+    }
+}
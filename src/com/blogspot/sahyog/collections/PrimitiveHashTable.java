@@ -0,0 +1,198 @@
+package com.blogspot.sahyog.collections;
+
+/**
+ * Open addressing hash table with linear probing for primitive keys, shared
+ * by the primitive transactional maps. Keys are passed around as longs and
+ * stored by the subclasses in arrays of their own key type, next to the
+ * values. Each slot also has a mark byte for the use of the owner of the
+ * table. <br />
+ *
+ * Inserting returns the slot of the key and leaves the value to the caller,
+ * which is what keeps the values from being boxed. <br />
+ *
+ * All the arrays are held by one {@link Slots} object. Growing or clearing the
+ * table builds new arrays off to the side and publishes them with a single
+ * volatile write, so a reader outside of the writing thread which reads
+ * {@link #slots} once always probes a matching set of arrays.
+ *
+ * @param <T> the subclass, which values are copied from
+ * @param <S> the slots of the subclass, with its key and value arrays
+ */
+abstract class PrimitiveHashTable<T extends PrimitiveHashTable<T, S>, S extends PrimitiveHashTable.Slots> {
+    static final byte FREE = 0;
+    static final byte FULL = 1;
+    static final byte TOMBSTONE = 2;
+    private static final float MAX_LOAD = 0.75f;
+
+    /**
+     * The arrays of a table. Subclasses add their key and value arrays of the
+     * same capacity.
+     */
+    static class Slots {
+        final byte[] marks;
+        final byte[] slotStates;
+        final int mask;
+
+        Slots(int capacity) {
+            marks = new byte[capacity];
+            slotStates = new byte[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    volatile S slots;
+    int size;
+    private int tombstones;
+    private int threshold;
+
+    abstract S newSlots(int capacity);
+
+    abstract long keyAt(S slots, int slot);
+
+    abstract void setKey(S slots, int slot, long key);
+
+    abstract int hash(long key);
+
+    /**
+     * Copies the key and value of a slot to a slot of new arrays.
+     */
+    abstract void moveSlot(S from, int fromSlot, S to, int toSlot);
+
+    abstract void copyValue(T from, int fromSlot, int toSlot);
+
+    /**
+     * Drops the reference the slot holds to its value. Nothing to do for primitive values.
+     */
+    void clearValue(int slot) {
+    }
+
+    long keyAt(int slot) {
+        return keyAt(slots, slot);
+    }
+
+    int indexOf(long key) {
+        return indexOf(slots, key);
+    }
+
+    /**
+     * Probes the given arrays, which a reader has read from {@link #slots} once.
+     */
+    int indexOf(S slots, long key) {
+        byte[] slotStates = slots.slotStates;
+        int mask = slots.mask;
+        int i = hash(key) & mask;
+        while (true) {
+            byte state = slotStates[i];
+            if (state == FREE) {
+                return -1;
+            }
+            if (state == FULL && keyAt(slots, i) == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Finds the slot of the key, adding the key if it is absent, and sets its
+     * mark. Adding may grow the table, so the caller has to read
+     * {@link #slots} after this returns to store the value.
+     *
+     * @return the slot, for the caller to store the value in
+     */
+    int insert(long key, byte mark) {
+        S s = slots;
+        int i = hash(key) & s.mask;
+        int firstTombstone = -1;
+        while (true) {
+            byte state = s.slotStates[i];
+            if (state == FREE) {
+                break;
+            }
+            if (state == FULL && keyAt(s, i) == key) {
+                s.marks[i] = mark;
+                return i;
+            }
+            if (state == TOMBSTONE && firstTombstone < 0) {
+                firstTombstone = i;
+            }
+            i = (i + 1) & s.mask;
+        }
+        if (firstTombstone >= 0) {
+            i = firstTombstone;
+            tombstones--;
+        } else if (size + tombstones + 1 > threshold) {
+            // Grow before the key goes in, so that the slot returned stays put
+            s = rehash(capacityFor(size + 1));
+            i = hash(key) & s.mask;
+            while (s.slotStates[i] != FREE) {
+                i = (i + 1) & s.mask;
+            }
+        }
+        setKey(s, i, key);
+        s.marks[i] = mark;
+        s.slotStates[i] = FULL;
+        size++;
+        return i;
+    }
+
+    void removeAt(int index) {
+        slots.slotStates[index] = TOMBSTONE;
+        clearValue(index);
+        size--;
+        tombstones++;
+    }
+
+    void clear() {
+        slots = newSlots(slots.slotStates.length);
+        size = 0;
+        tombstones = 0;
+    }
+
+    void ensureCapacity(int expectedSize) {
+        int capacity = capacityFor(expectedSize);
+        if (capacity > slots.slotStates.length) {
+            rehash(capacity);
+        }
+    }
+
+    /**
+     * Called by the constructors of the subclasses.
+     */
+    void allocate(int capacity) {
+        slots = newSlots(capacity);
+        threshold = (int) (capacity * MAX_LOAD);
+        size = 0;
+        tombstones = 0;
+    }
+
+    private S rehash(int capacity) {
+        S old = slots;
+        S grown = newSlots(capacity);
+        int newMask = grown.mask;
+        for (int i = 0; i < old.slotStates.length; i++) {
+            if (old.slotStates[i] != FULL) {
+                continue;
+            }
+            int j = hash(keyAt(old, i)) & newMask;
+            while (grown.slotStates[j] != FREE) {
+                j = (j + 1) & newMask;
+            }
+            grown.slotStates[j] = FULL;
+            grown.marks[j] = old.marks[i];
+            moveSlot(old, i, grown, j);
+        }
+        slots = grown;
+        threshold = (int) (capacity * MAX_LOAD);
+        tombstones = 0;
+        return grown;
+    }
+
+    static int capacityFor(int expectedSize) {
+        int capacity = 16;
+        while (capacity * MAX_LOAD / 2 < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,181 @@
+package com.blogspot.sahyog.collections;
+
+/**
+ * The changes made by a transaction to a {@link PrimitiveHashTable}, kept in a
+ * second table of the same kind. Each key in the delta table is marked as put
+ * or removed, and whether it exists in the committed table, so a put or remove
+ * costs one probe of the delta and at most one probe of the committed table.
+ * <br />
+ *
+ * The values are typed, so the maps read and write them at the locations
+ * these methods return. A location that is not negative is a slot of the
+ * delta, other than {@link #ABSENT} it is a slot of the committed table which
+ * {@link #baseSlot(int)} decodes.
+ *
+ * @param <T> the type of the tables
+ */
+final class PrimitiveTransactionDelta<T extends PrimitiveHashTable<T, ?>> {
+    static final int ABSENT = -1;
+    private static final byte PUT = 1;
+    private static final byte REMOVED = 2;
+    private static final byte IN_BASE = 4;
+
+    final T base;
+    final T delta;
+    private boolean cleared = false;
+    /** Difference between the size seen in the transaction and the size of the base */
+    private int sizeAdjustment = 0;
+    /** Location of the value replaced by the last put, {@link #ABSENT} if there was none */
+    int replaced;
+
+    PrimitiveTransactionDelta(T base, T delta) {
+        this.base = base;
+        this.delta = delta;
+    }
+
+    static int baseSlot(int location) {
+        return -location - 2;
+    }
+
+    private static int inBase(int slot) {
+        return -slot - 2;
+    }
+
+    int size() {
+        return (cleared ? 0 : base.size) + sizeAdjustment;
+    }
+
+    boolean containsKey(long key) {
+        return find(key) != ABSENT;
+    }
+
+    /**
+     * @return location of the value of the key as seen by the transaction
+     */
+    int find(long key) {
+        int index = delta.indexOf(key);
+        if (index >= 0) {
+            return (delta.slots.marks[index] & PUT) != 0 ? index : ABSENT;
+        }
+        if (cleared) {
+            return ABSENT;
+        }
+        int baseIndex = base.indexOf(key);
+        return baseIndex < 0 ? ABSENT : inBase(baseIndex);
+    }
+
+    /**
+     * Marks the key as put. Sets {@link #replaced}, whose value must be read
+     * before the new value is stored.
+     *
+     * @return the slot of the delta to store the value in
+     */
+    int put(long key) {
+        int index = delta.indexOf(key);
+        if (index >= 0) {
+            byte[] marks = delta.slots.marks;
+            byte mark = marks[index];
+            if ((mark & PUT) != 0) {
+                replaced = index;
+            } else {
+                replaced = ABSENT;
+                sizeAdjustment++;
+            }
+            marks[index] = (byte) (PUT | (mark & IN_BASE));
+            return index;
+        }
+        int baseIndex = cleared ? -1 : base.indexOf(key);
+        if (baseIndex < 0) {
+            replaced = ABSENT;
+            sizeAdjustment++;
+            return delta.insert(key, PUT);
+        }
+        replaced = inBase(baseIndex);
+        return delta.insert(key, (byte) (PUT | IN_BASE));
+    }
+
+    /**
+     * Marks the key as removed. A removed key keeps its slot in the delta
+     * until commit, the map clears the value left there once it has read it.
+     *
+     * @return location of the removed value, {@link #ABSENT} if the key was absent
+     */
+    int remove(long key) {
+        int index = delta.indexOf(key);
+        if (index >= 0) {
+            byte[] marks = delta.slots.marks;
+            byte mark = marks[index];
+            if ((mark & PUT) == 0) {
+                return ABSENT;
+            }
+            sizeAdjustment--;
+            marks[index] = (byte) (REMOVED | (mark & IN_BASE));
+            return index;
+        }
+        int baseIndex = cleared ? -1 : base.indexOf(key);
+        if (baseIndex < 0) {
+            return ABSENT;
+        }
+        sizeAdjustment--;
+        delta.insert(key, (byte) (REMOVED | IN_BASE));
+        return inBase(baseIndex);
+    }
+
+    void clear() {
+        delta.clear();
+        cleared = true;
+        sizeAdjustment = 0;
+    }
+
+    /**
+     * @return the first slot of the delta from the given one on with a put, -1 if there is none
+     */
+    int nextPut(int from) {
+        PrimitiveHashTable.Slots slots = delta.slots;
+        for (int i = from; i < slots.slotStates.length; i++) {
+            if (slots.slotStates[i] == PrimitiveHashTable.FULL && (slots.marks[i] & PUT) != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first slot of the committed table from the given one on whose key the transaction did not change,
+     *         -1 if there is none
+     */
+    int nextUnchanged(int from) {
+        if (cleared) {
+            return -1;
+        }
+        byte[] slotStates = base.slots.slotStates;
+        for (int i = from; i < slotStates.length; i++) {
+            if (slotStates[i] == PrimitiveHashTable.FULL && delta.indexOf(base.keyAt(i)) < 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    void mergeIntoBase() {
+        if (cleared) {
+            base.clear();
+        }
+        base.ensureCapacity(base.size + delta.size);
+        PrimitiveHashTable.Slots slots = delta.slots;
+        for (int i = 0; i < slots.slotStates.length; i++) {
+            if (slots.slotStates[i] != PrimitiveHashTable.FULL) {
+                continue;
+            }
+            byte mark = slots.marks[i];
+            if ((mark & PUT) != 0) {
+                base.copyValue(delta, i, base.insert(delta.keyAt(i), (byte) 0));
+            } else if ((mark & IN_BASE) != 0) {
+                int baseIndex = base.indexOf(delta.keyAt(i));
+                if (baseIndex >= 0) {
+                    base.removeAt(baseIndex);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Striped, lossy buffers of the keys read from a
+ * {@link BoundedTransactionableMap}, so that a read records its access without
+ * taking the lock of the {@link EvictionTracker}. <br />
+ *
+ * Each stripe is a ring which the readers hashed to it append to and which is
+ * drained by whoever holds the tracker's lock. A read which finds its ring
+ * full, or loses the race for a slot of it, is dropped. Recency and frequency
+ * are estimates anyway, a dropped read only makes them a little less
+ * accurate, and a read never waits.
+ *
+ * @param <K>
+ */
+final class ReadBuffer<K> {
+    private static final int RING_SIZE = 16;
+    private static final int RING_MASK = RING_SIZE - 1;
+    /** Fill at which a reader asks to drain, so that reads are recorded even when nothing is written */
+    private static final int DRAIN_THRESHOLD = RING_SIZE / 2;
+
+    private final Ring<K>[] rings;
+    private final int stripeMask;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    ReadBuffer() {
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        rings = new Ring[stripes];
+        for (int i = 0; i < stripes; i++) {
+            rings[i] = new Ring<K>();
+        }
+        stripeMask = stripes - 1;
+    }
+
+    /**
+     * Records a read by the calling thread.
+     *
+     * @return true if the ring is full enough that the caller should try to drain
+     */
+    boolean record(K key) {
+        long id = Thread.currentThread().getId();
+        Ring<K> ring = rings[(int) (id ^ (id >>> 16)) & stripeMask];
+        long tail = ring.writeCounter.get();
+        long size = tail - ring.readCounter;
+        if (size >= RING_SIZE) {
+            return true;
+        }
+        if (!ring.writeCounter.compareAndSet(tail, tail + 1)) {
+            return false;
+        }
+        ring.slots.lazySet((int) (tail & RING_MASK), key);
+        return size + 1 >= DRAIN_THRESHOLD;
+    }
+
+    /**
+     * Hands the buffered reads to the tracker. Must be called holding the tracker's lock.
+     */
+    void drainTo(EvictionTracker<K> tracker) {
+        for (Ring<K> ring : rings) {
+            long head = ring.readCounter;
+            long tail = ring.writeCounter.get();
+            for (; head < tail; head++) {
+                int slot = (int) (head & RING_MASK);
+                K key = ring.slots.get(slot);
+                if (key == null) {
+                    // Claimed by a reader which has not stored its key yet, the next drain picks it up
+                    break;
+                }
+                ring.slots.lazySet(slot, null);
+                tracker.onAccess(key);
+            }
+            ring.readCounter = head;
+        }
+    }
+
+    private static final class Ring<K> {
+        final AtomicReferenceArray<K> slots = new AtomicReferenceArray<K>(RING_SIZE);
+        final AtomicLong writeCounter = new AtomicLong();
+        /** Only advanced by the drain */
+        volatile long readCounter;
+    }
+}
@@ -0,0 +1,120 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the loads of a {@link SingleThreadedTransactionableMap} on an executor.
+ * Misses on a key that is already being loaded share the load in flight. <br />
+ *
+ * A loaded value waits in the pending queue until the map can put it, which
+ * is at once unless a transaction is open, in which case the thread ending
+ * the transaction puts it. A write to the key before then makes the load
+ * stale and its value is dropped, so a load never overwrites or resurrects a
+ * key that was written while it ran.
+ */
+final class ReadThroughLoader<K, V> {
+    private final CacheLoader<K, V> loader;
+    private final Executor executor;
+    /** Loads from the call to the loader until their value is put or dropped */
+    private final ConcurrentHashMap<K, Load<K, V>> inFlight = new ConcurrentHashMap<K, Load<K, V>>();
+    final Queue<Load<K, V>> pending = new ConcurrentLinkedQueue<Load<K, V>>();
+
+    ReadThroughLoader(CacheLoader<K, V> loader, Executor executor) {
+        this.loader = loader;
+        this.executor = executor;
+    }
+
+    CompletableFuture<V> load(final K key, final SingleThreadedTransactionableMap<K, V> map) {
+        if (key == null) {
+            throw new NullPointerException("Null keys cannot be loaded");
+        }
+        Load<K, V> existing = inFlight.get(key);
+        if (existing != null) {
+            return existing.future;
+        }
+        final Load<K, V> load = new Load<K, V>(key);
+        existing = inFlight.putIfAbsent(key, load);
+        if (existing != null) {
+            return existing.future;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                V value;
+                try {
+                    value = loader.load(key);
+                } catch (Throwable t) {
+                    inFlight.remove(key, load);
+                    load.future.completeExceptionally(t);
+                    return;
+                }
+                if (value == null) {
+                    inFlight.remove(key, load);
+                } else {
+                    load.value = value;
+                    pending.add(load);
+                    map.installLoads(ReadThroughLoader.this);
+                }
+                load.future.complete(value);
+            }
+        });
+        return load.future;
+    }
+
+    /**
+     * Ends a pending load.
+     *
+     * @return true if its value should be put, false if the key was written since the load started
+     */
+    boolean finish(Load<K, V> load) {
+        return !load.stale && inFlight.remove(load.key, load);
+    }
+
+    void invalidate(Object key) {
+        if (key == null || inFlight.isEmpty()) {
+            return;
+        }
+        Load<K, V> load = inFlight.remove(key);
+        if (load != null) {
+            load.stale = true;
+        }
+    }
+
+    void invalidate(TransactionContext<K, V> context) {
+        if (inFlight.isEmpty()) {
+            return;
+        }
+        if (context.isCleared()) {
+            invalidateAll();
+            return;
+        }
+        for (Object key : context.getRemovedKeys()) {
+            invalidate(key);
+        }
+        for (K key : context.getChanges().keySet()) {
+            invalidate(key);
+        }
+    }
+
+    void invalidateAll() {
+        for (Load<K, V> load : inFlight.values()) {
+            load.stale = true;
+        }
+        inFlight.clear();
+    }
+
+    static final class Load<K, V> {
+        final K key;
+        final CompletableFuture<V> future = new CompletableFuture<V>();
+        V value;
+        volatile boolean stale;
+
+        Load(K key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.blogspot.sahyog.collections;
+
+/**
+ * A point inside an open transaction that the transaction can be rolled back
+ * to without throwing away the changes made before it.
+ *
+ * @see SingleThreadedTransactionableMap#setSavepoint()
+ */
+public final class Savepoint {
+    final TransactionContext<?, ?> context;
+    final int undoPosition;
+
+    Savepoint(TransactionContext<?, ?> context, int undoPosition) {
+        this.context = context;
+        this.undoPosition = undoPosition;
+    }
+}
@@ -0,0 +1,17 @@
+package com.blogspot.sahyog.collections;
+
+/**
+ * Converts keys or values to and from bytes for the maps which keep their
+ * data outside of the java heap. <br />
+ * For keys the serialized form has to be the same for keys which are equal and
+ * the key's hashCode() must be stable across JVM runs.
+ *
+ * @param <T>
+ * @see Serializers
+ */
+public interface Serializer<T> {
+
+    public byte[] serialize(T object);
+
+    public T deserialize(byte[] bytes, int offset, int length);
+}
@@ -0,0 +1,104 @@
+package com.blogspot.sahyog.collections;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * {@link Serializer}s for common types.
+ */
+public final class Serializers {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private Serializers() {
+    }
+
+    public static final Serializer<String> STRING = new Serializer<String>() {
+        @Override
+        public byte[] serialize(String object) {
+            return object.getBytes(UTF8);
+        }
+
+        @Override
+        public String deserialize(byte[] bytes, int offset, int length) {
+            return new String(bytes, offset, length, UTF8);
+        }
+    };
+
+    public static final Serializer<Long> LONG = new Serializer<Long>() {
+        @Override
+        public byte[] serialize(Long object) {
+            return ByteBuffer.allocate(8).putLong(object).array();
+        }
+
+        @Override
+        public Long deserialize(byte[] bytes, int offset, int length) {
+            return ByteBuffer.wrap(bytes, offset, length).getLong();
+        }
+    };
+
+    public static final Serializer<Integer> INTEGER = new Serializer<Integer>() {
+        @Override
+        public byte[] serialize(Integer object) {
+            return ByteBuffer.allocate(4).putInt(object).array();
+        }
+
+        @Override
+        public Integer deserialize(byte[] bytes, int offset, int length) {
+            return ByteBuffer.wrap(bytes, offset, length).getInt();
+        }
+    };
+
+    public static final Serializer<byte[]> BYTES = new Serializer<byte[]>() {
+        @Override
+        public byte[] serialize(byte[] object) {
+            return object;
+        }
+
+        @Override
+        public byte[] deserialize(byte[] bytes, int offset, int length) {
+            byte[] copy = new byte[length];
+            System.arraycopy(bytes, offset, copy, 0, length);
+            return copy;
+        }
+    };
+
+    /**
+     * Uses java serialization. Convenient but slow and verbose, and not
+     * suitable for keys whose serialized form is not canonical.
+     */
+    public static <T extends Serializable> Serializer<T> java() {
+        return new Serializer<T>() {
+            @Override
+            public byte[] serialize(T object) {
+                try {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    ObjectOutputStream out = new ObjectOutputStream(bytes);
+                    out.writeObject(object);
+                    out.close();
+                    return bytes.toByteArray();
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Could not serialize " + object, e);
+                }
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public T deserialize(byte[] bytes, int offset, int length) {
+                try {
+                    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, length));
+                    return (T) in.readObject();
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Could not deserialize", e);
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalArgumentException("Could not deserialize", e);
+                }
+            }
+        };
+    }
+}
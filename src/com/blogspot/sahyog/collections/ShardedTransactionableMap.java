@@ -0,0 +1,420 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A transactional map whose keys are partitioned by hash into independently
+ * transactionable shards. <br />
+ *
+ * Within a shard the semantics are those of
+ * {@link SingleThreadedTransactionableMap}: changes made in a transaction are
+ * only visible to the thread that made them until commit, only one transaction
+ * can write to a shard at a time and writes from threads outside of a
+ * transaction fail with an IllegalStateException while the shard is under
+ * transaction. Unlike {@link SingleThreadedTransactionableMap} a transaction
+ * only locks the shards it writes to, so transactions touching disjoint shards
+ * proceed in parallel and non transaction writers are only rejected on the
+ * shards that are actually under transaction. <br />
+ *
+ * Shard locks are taken lazily on the first write to a shard. To avoid
+ * deadlocks a transaction only ever blocks for shards in ascending order. If it
+ * needs a shard lower than one it already holds it only tries the lock and
+ * fails with a {@link TransactionException} if the shard is busy, in which case
+ * the caller should abort and retry. Calling {@link #lockShardsFor(Collection)}
+ * right after beginTransaction() with all the keys to be written acquires the
+ * shards up front in order and avoids the failure. <br />
+ *
+ * Reads inside a transaction of shards the transaction has not written to see
+ * the latest committed state of those shards. Iteration views are read only. <br />
+ *
+ * Reads outside of a transaction take no lock. Each shard is a
+ * ConcurrentHashMap, so null keys and values are not supported and writing
+ * one fails with a NullPointerException right away. A commit is
+ * applied to the shards one after another and key by key within a shard, so
+ * such a reader can see a commit half applied: some of its writes and not
+ * others, within a shard as well as across shards. Readers that need to see
+ * a commit as a whole should read inside a transaction that locks the shards
+ * involved.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class ShardedTransactionableMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Transactionable {
+    private static final int DEFAULT_SHARDS = 16;
+
+    private final Shard<K, V>[] shards;
+    private final ThreadLocal<ShardedTransaction<K, V>> txThreadLocal = new ThreadLocal<ShardedTransaction<K, V>>();
+    private Set<Map.Entry<K, V>> entrySet;
+
+    public ShardedTransactionableMap() {
+        this(DEFAULT_SHARDS);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public ShardedTransactionableMap(int numShards) {
+        if (numShards <= 0) {
+            throw new IllegalArgumentException("Number of shards should be positive: " + numShards);
+        }
+        shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            shards[i] = new Shard<K, V>();
+        }
+    }
+
+    @Override
+    public void beginTransaction() {
+        if (txThreadLocal.get() != null) {
+            throw new TransactionException("An existing transaction is in progress on this thread.");
+        }
+        txThreadLocal.set(new ShardedTransaction<K, V>(shards.length));
+    }
+
+    /**
+     * Locks, in ascending shard order, all the shards the given keys belong to.
+     * Blocks while another transaction holds any of them.
+     */
+    public void lockShardsFor(Collection<?> keys) {
+        ShardedTransaction<K, V> tx = getTransaction();
+        if (tx == null) {
+            throw new TransactionException("No active transaction.");
+        }
+        boolean[] needed = new boolean[shards.length];
+        for (Object key : keys) {
+            needed[shardIndex(key)] = true;
+        }
+        for (int i = 0; i < needed.length; i++) {
+            if (needed[i]) {
+                contextFor(tx, i);
+            }
+        }
+    }
+
+    @Override
+    public void commit() throws IllegalStateException {
+        ShardedTransaction<K, V> tx = getTransaction();
+        if (tx == null) {
+            throw new TransactionException("No active transaction.");
+        }
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                if (tx.contexts[i] != null) {
+                    tx.contexts[i].mergeContextIntoMainMap();
+                }
+            }
+        } finally {
+            endTransaction(tx);
+        }
+    }
+
+    @Override
+    public void abort() throws IllegalStateException {
+        ShardedTransaction<K, V> tx = getTransaction();
+        if (tx == null) {
+            throw new TransactionException("No active transaction.");
+        }
+        endTransaction(tx);
+    }
+
+    /**
+     * @return true if some transaction currently holds the shard the key belongs to
+     */
+    public boolean isUnderTransaction(Object key) {
+        return shards[shardIndex(key)].underTransaction;
+    }
+
+    @Override
+    public int size() {
+        ShardedTransaction<K, V> tx = getTransaction();
+        int size = 0;
+        for (int i = 0; i < shards.length; i++) {
+            size += readView(tx, i).size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        int i = shardIndex(key);
+        ShardedTransaction<K, V> tx = getTransaction();
+        if (tx != null && tx.contexts[i] != null) {
+            return tx.contexts[i].containsKey(key);
+        }
+        return shards[i].map.containsKey(key);
+    }
+
+    @Override
+    public V get(Object key) {
+        int i = shardIndex(key);
+        ShardedTransaction<K, V> tx = getTransaction();
+        if (tx != null && tx.contexts[i] != null) {
+            return tx.contexts[i].get(key);
+        }
+        return shards[i].map.get(key);
+    }
+
+    @Override
+    @WriteOperation
+    public V put(K key, V value) {
+        checkNotNull(key, value);
+        int i = shardIndex(key);
+        ShardedTransaction<K, V> tx = getTransaction();
+        if (tx != null) {
+            return contextFor(tx, i).put(key, value);
+        }
+        Shard<K, V> shard = lockForNonTransactionWrite(i);
+        try {
+            return shard.map.put(key, value);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    @Override
+    @WriteOperation
+    public V remove(Object key) {
+        if (key == null) {
+            return null;
+        }
+        int i = shardIndex(key);
+        ShardedTransaction<K, V> tx = getTransaction();
+        if (tx != null) {
+            return contextFor(tx, i).remove(key);
+        }
+        Shard<K, V> shard = lockForNonTransactionWrite(i);
+        try {
+            return shard.map.remove(key);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    @Override
+    @WriteOperation
+    public void putAll(Map<? extends K, ? extends V> m) {
+        if (m == null || m.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            checkNotNull(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Inside a transaction this locks every shard. Outside of a transaction it
+     * clears shard by shard and fails on the first shard that is under
+     * transaction.
+     */
+    @Override
+    @WriteOperation
+    public void clear() {
+        ShardedTransaction<K, V> tx = getTransaction();
+        for (int i = 0; i < shards.length; i++) {
+            if (tx != null) {
+                contextFor(tx, i).clear();
+            } else {
+                Shard<K, V> shard = lockForNonTransactionWrite(i);
+                try {
+                    shard.map.clear();
+                } finally {
+                    shard.lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * The returned set and its iterators are read only.
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<K, V>>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new ShardChainingIterator(getTransaction());
+                }
+
+                @Override
+                public int size() {
+                    return ShardedTransactionableMap.this.size();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /**
+     * Nulls are rejected when they are written rather than when the shards
+     * would reject them at commit, which merges shard by shard and could not
+     * take back the shards already merged.
+     */
+    private static void checkNotNull(Object key, Object value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Null keys and values are not supported");
+        }
+    }
+
+    private ShardedTransaction<K, V> getTransaction() {
+        return txThreadLocal.get();
+    }
+
+    private int shardIndex(Object key) {
+        if (key == null) {
+            return 0;
+        }
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % shards.length;
+    }
+
+    private Map<K, V> readView(ShardedTransaction<K, V> tx, int i) {
+        if (tx != null && tx.contexts[i] != null) {
+            return new ContextView<K, V>(tx.contexts[i]);
+        }
+        return shards[i].map;
+    }
+
+    /**
+     * Returns the transaction context of the shard, locking the shard first if
+     * this transaction has not touched it yet.
+     */
+    private TransactionContext<K, V> contextFor(ShardedTransaction<K, V> tx, int i) {
+        TransactionContext<K, V> context = tx.contexts[i];
+        if (context != null) {
+            return context;
+        }
+        Shard<K, V> shard = shards[i];
+        if (i > tx.highestLocked) {
+            shard.lock.lock();
+        } else if (!shard.lock.tryLock()) {
+            throw new TransactionException("Shard " + i + " is held by another transaction and this transaction already holds shard "
+                    + tx.highestLocked + ". Abort and retry, or lock the shards up front with lockShardsFor().");
+        }
+        shard.underTransaction = true;
+        tx.highestLocked = Math.max(tx.highestLocked, i);
+        context = new TransactionContext<K, V>(shard.map);
+        tx.contexts[i] = context;
+        return context;
+    }
+
+    /**
+     * The lock may be held for a moment by another write from outside of a
+     * transaction. Waits for those, but fails as soon as it is a transaction
+     * that holds it. Whoever holds the lock has the final say, since a
+     * transaction only marks the shard once it holds the lock.
+     */
+    private Shard<K, V> lockForNonTransactionWrite(int i) {
+        Shard<K, V> shard = shards[i];
+        try {
+            while (!shard.lock.tryLock() && !shard.lock.tryLock(1, TimeUnit.MILLISECONDS)) {
+                if (shard.underTransaction) {
+                    throw new IllegalStateException("A transaction is on going on shard " + i + ". No write operations are allowed on it");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a write on shard " + i, e);
+        }
+        return shard;
+    }
+
+    private void endTransaction(ShardedTransaction<K, V> tx) {
+        for (int i = 0; i < shards.length; i++) {
+            if (tx.contexts[i] != null) {
+                shards[i].underTransaction = false;
+                shards[i].lock.unlock();
+            }
+        }
+        txThreadLocal.remove();
+    }
+
+    private static final class Shard<K, V> {
+        final Map<K, V> map = new ConcurrentHashMap<K, V>();
+        final ReentrantLock lock = new ReentrantLock();
+        volatile boolean underTransaction = false;
+    }
+
+    private static final class ShardedTransaction<K, V> {
+        final TransactionContext<K, V>[] contexts;
+        int highestLocked = -1;
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ShardedTransaction(int numShards) {
+            contexts = new TransactionContext[numShards];
+        }
+    }
+
+    /**
+     * Adapts a transaction context to the Map interface for iteration and size.
+     */
+    private static final class ContextView<K, V> extends AbstractMap<K, V> {
+        private final TransactionContext<K, V> context;
+
+        ContextView(TransactionContext<K, V> context) {
+            this.context = context;
+        }
+
+        @Override
+        public int size() {
+            return context.size();
+        }
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            return context.entrySet();
+        }
+    }
+
+    private final class ShardChainingIterator implements Iterator<Map.Entry<K, V>> {
+        private final ShardedTransaction<K, V> tx;
+        private int shardIndex = 0;
+        private Iterator<Map.Entry<K, V>> current;
+
+        ShardChainingIterator(ShardedTransaction<K, V> tx) {
+            this.tx = tx;
+            this.current = readView(tx, 0).entrySet().iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (++shardIndex >= shards.length) {
+                    return false;
+                }
+                current = readView(tx, shardIndex).entrySet().iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> entry = current.next();
+            return new SimpleImmutableEntry<K, V>(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Iteration over a ShardedTransactionableMap is read only");
+        }
+    }
+}
@@ -5,8 +5,18 @@ import java.util.AbstractMap;
 import java.util.Collections;
 
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 
 /**
  * This is an attempt at a map with simple transaction capabilities. <br />
@@ -22,28 +32,195 @@ import java.util.Set;
  * keys, but it prevents against structural modifcations of the map.
  *
  * During commit other readers might be able to see values being comitted.
+ * If that is not acceptable wrap a {@link CopyOnWriteSegmentMap}. The commit
+ * then publishes all of its changes to readers in a single step.
+ *
+ * Calling beginTransaction() again from the thread that owns the transaction
+ * opens a nested transaction: its commit keeps the changes made in it as part
+ * of the enclosing transaction and its abort undoes only them. Savepoints give
+ * the same control without nesting. Rolling back costs time proportional to
+ * the changes made since the savepoint.
+ *
+ * The thread owning the transaction holds a fair lock until it commits or
+ * aborts. beginTransaction() fails at once if another transaction is open,
+ * while tryBeginTransaction() reports it and beginTransaction(long, TimeUnit)
+ * waits its turn in the lock's queue. With blocking writes enabled, writes
+ * from outside of the transaction queue up the same way instead of failing.
+ *
+ * Listeners subscribed with subscribe() receive every change to the map, a
+ * commit or a single write, as a {@link ChangeEvent} so that copies of the map
+ * can be kept up to date incrementally.
+ *
+ * With a {@link CacheLoader} set, getAsync() fills misses from the source of
+ * the data on an executor, sharing one load between concurrent misses on a
+ * key. Loaded values are put without being writes, so they neither conflict
+ * with an open transaction, which they wait for, nor are written back by a
+ * {@link WriteBehindSink} subscribed with subscribeWriteBehind().
  *
  * @author puneet
  *
  */
 public class SingleThreadedTransactionableMap<K, V> extends AbstractMap<K, V> implements Map<K, V>, Transactionable {
-    protected static ThreadLocal<TransactionContext> txContextThreadLocal = new ThreadLocal<TransactionContext>();
+    /**
+     * Transaction contexts are per map instance, so one thread can have independent transactions on different maps.
+     */
+    protected final ThreadLocal<TransactionContext<K, V>> txContextThreadLocal = new ThreadLocal<TransactionContext<K, V>>();
     private volatile boolean ongoingTransaction = false;
+    /** Held by the thread owning the transaction, and in blocking mode by writers outside of transactions */
+    private final ReentrantLock transactionLock = new ReentrantLock(true);
+    private volatile boolean blockingWrites = false;
     private final Map<K, V> wrappedMap;
+    /** Null unless metrics are enabled, so that a disabled map pays one field read per transaction */
+    private volatile TransactionMetrics metrics;
+    private final ChangePublisher<K, V> changePublisher = new ChangePublisher<K, V>();
+    /** Null unless a loader is set */
+    private volatile ReadThroughLoader<K, V> readThrough;
 
     public SingleThreadedTransactionableMap(Map<K, V> mapToWrap) {
         this.wrappedMap = mapToWrap;
     }
 
+    /**
+     * Starts recording metrics for this map. Transactions already open when
+     * metrics are enabled are not recorded.
+     *
+     * @return the metrics of this map
+     */
+    public synchronized TransactionMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new TransactionMetrics();
+        }
+        return metrics;
+    }
+
+    /**
+     * Stops recording metrics. A later call to enableMetrics() starts from zero.
+     */
+    public synchronized void disableMetrics() {
+        metrics = null;
+    }
+
+    /**
+     * @return the metrics of this map or null if they are not enabled
+     */
+    public TransactionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * With blocking writes, a write from outside of a transaction waits for
+     * the open transaction to end instead of throwing an
+     * IllegalStateException. Waiting writers and transactions are served in
+     * arrival order.
+     */
+    public void setBlockingWrites(boolean blockingWrites) {
+        this.blockingWrites = blockingWrites;
+    }
+
+    public boolean isBlockingWrites() {
+        return blockingWrites;
+    }
+
+    /**
+     * Begins a transaction, or a nested transaction if the calling thread is
+     * already in one.
+     *
+     * @throws TransactionException if another thread has a transaction open
+     */
     @Override
-    public synchronized void beginTransaction() {
+    public void beginTransaction() {
+        if (beginNestedIfInTransaction()) {
+            return;
+        }
+        try {
+            if (!lockUnlessInTransaction()) {
+                rejectBegin();
+                throw new TransactionException(
+                        "An existing transaction is in progress. This implementation does not allow for concurrent transactions");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionException("Interrupted while beginning a transaction", e);
+        }
+        startTransaction();
+    }
+
+    /**
+     * Begins a transaction, waiting up to the timeout for an open transaction
+     * to end. Waiting threads begin in the order they arrived.
+     *
+     * @throws TransactionException if the timeout elapsed
+     */
+    public void beginTransaction(long timeout, TimeUnit unit) throws InterruptedException {
+        if (beginNestedIfInTransaction()) {
+            return;
+        }
+        if (!transactionLock.tryLock(timeout, unit)) {
+            rejectBegin();
+            throw new TransactionException("Timed out waiting for the transaction in progress to end");
+        }
+        startTransaction();
+    }
+
+    /**
+     * Begins a transaction only if no other transaction is open.
+     *
+     * @return false if another transaction is open or a write from outside of a transaction is being applied
+     */
+    public boolean tryBeginTransaction() {
+        if (beginNestedIfInTransaction()) {
+            return true;
+        }
+        if (!transactionLock.tryLock()) {
+            rejectBegin();
+            return false;
+        }
+        startTransaction();
+        return true;
+    }
+
+    /**
+     * Takes the transaction lock. It may be held for a moment by a writer from
+     * outside of a transaction, so the lock is waited for, but only until a
+     * transaction is seen to hold it. An uncontended lock is taken without
+     * waiting, which also works for an interrupted thread.
+     *
+     * @return false if a transaction is open
+     */
+    private boolean lockUnlessInTransaction() throws InterruptedException {
+        if (transactionLock.tryLock()) {
+            return true;
+        }
+        while (!transactionLock.tryLock(1, TimeUnit.MILLISECONDS)) {
+            if (ongoingTransaction) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean beginNestedIfInTransaction() {
         TransactionContext<K, V> existingContext = getTransactionContext();
         if (existingContext == null) {
-            setupTransactionContext();
-            return;
-        } else {
-            throw new TransactionException(
-                    "An existing transaction is in progress. This implementation does not allow for concurrent transactions");
+            return false;
+        }
+        existingContext.beginNested();
+        return true;
+    }
+
+    private void startTransaction() {
+        setupTransactionContext();
+        TransactionMetrics currentMetrics = metrics;
+        if (currentMetrics != null) {
+            currentMetrics.recordBegin();
+            txContextThreadLocal.get().startNanos = System.nanoTime();
+        }
+    }
+
+    private void rejectBegin() {
+        TransactionMetrics currentMetrics = metrics;
+        if (currentMetrics != null) {
+            currentMetrics.recordRejectedBegin();
         }
     }
 
@@ -53,8 +230,253 @@ public class SingleThreadedTransactionableMap<K, V> extends AbstractMap<K, V> im
         if (existingContext == null) {
             throw new TransactionException("No active transaction.");
         }
-        existingContext.mergeContextIntoMainMap();
-        clearTransactionContext();
+        if (existingContext.getNestingDepth() > 0) {
+            existingContext.endNested(true);
+            return;
+        }
+        Set<K> evictedKeys = Collections.emptySet();
+        if (!existingContext.isReadOnly()) {
+            evictedKeys = selectEvictions(existingContext);
+            for (K key : evictedKeys) {
+                existingContext.remove(key);
+            }
+            ReadThroughLoader<K, V> currentLoader = readThrough;
+            if (currentLoader != null) {
+                currentLoader.invalidate(existingContext);
+            }
+        }
+        try {
+            if (existingContext.isReadOnly()) {
+                merge(existingContext);
+            } else if (changePublisher.startUnpublishedWrite()) {
+                try {
+                    merge(existingContext);
+                } finally {
+                    changePublisher.endUnpublishedWrite();
+                }
+            } else {
+                synchronized (changePublisher.lock()) {
+                    merge(existingContext);
+                    publishCommit(existingContext, evictedKeys);
+                }
+            }
+        } finally {
+            // Publishing can be interrupted once the changes are merged, the transaction is over all the same
+            clearTransactionContext();
+        }
+    }
+
+    /**
+     * Called by commit() before the changes of a transaction are merged, with
+     * the transaction still open. The returned keys are removed as part of the
+     * transaction and reported to change listeners as evicted.
+     *
+     * @return keys to evict, none by default
+     */
+    protected Set<K> selectEvictions(TransactionContext<K, V> context) {
+        return Collections.emptySet();
+    }
+
+    private void merge(TransactionContext<K, V> context) {
+        TransactionMetrics currentMetrics = metrics;
+        if (currentMetrics == null || context.startNanos == 0) {
+            context.mergeContextIntoMainMap();
+        } else {
+            long mergeStart = System.nanoTime();
+            context.mergeContextIntoMainMap();
+            currentMetrics.recordCommit(context.startNanos, System.nanoTime() - mergeStart, context.getDeltaSize(),
+                    context.deltaReads, context.baseReads);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void publishCommit(TransactionContext<K, V> context, Set<K> evictedKeys) {
+        Set<K> removedKeys = (Set<K>) (Set<?>) context.getRemovedKeys();
+        removedKeys.removeAll(evictedKeys);
+        Map<K, V> changes = context.getChanges();
+        if (context.isCleared() || !removedKeys.isEmpty() || !evictedKeys.isEmpty() || !changes.isEmpty()) {
+            changePublisher.publish(context.isCleared(), removedKeys, evictedKeys, changes, false);
+        }
+    }
+
+    /**
+     * Subscribes a listener to the changes of this map, starting with the next
+     * change. The listener is called from a thread of the subscription.
+     *
+     * @param bufferSize number of changes that can wait for the listener before writers to the map have to wait
+     * @param maxBatchSize largest number of changes handed to the listener at once
+     * @return the subscription, close it to stop listening
+     */
+    public ChangeSubscription<K, V> subscribe(ChangeListener<K, V> listener, int bufferSize, int maxBatchSize) {
+        return changePublisher.subscribe(listener, bufferSize, maxBatchSize);
+    }
+
+    /**
+     * @return the sequence number of the last change handed to subscriptions, 0 if none was
+     */
+    public long getChangeSequence() {
+        return changePublisher.getSequence();
+    }
+
+    /**
+     * Subscribes a sink to the writes made to this map. Each batch of changes
+     * handed to the subscription reaches the sink as a single call with the
+     * net effect of the batch.
+     *
+     * @return the subscription, close it to stop writing behind
+     * @see #subscribe(ChangeListener, int, int)
+     */
+    public ChangeSubscription<K, V> subscribeWriteBehind(WriteBehindSink<K, V> sink, int bufferSize, int maxBatchSize) {
+        return subscribe(new WriteBehindListener<K, V>(sink), bufferSize, maxBatchSize);
+    }
+
+    /**
+     * Sets the loader used by {@link #getAsync(Object)} to fill misses.
+     *
+     * While a loader is set, writes from outside of a transaction take the
+     * transaction lock, so that they do not interleave with the putting of
+     * loaded values.
+     *
+     * @param loader null to stop loading. Loads in flight still complete, but their values are no longer put.
+     * @param executor runs the loads, null for the common fork join pool
+     */
+    public void setLoader(CacheLoader<K, V> loader, Executor executor) {
+        readThrough = loader == null ? null
+                : new ReadThroughLoader<K, V>(loader, executor == null ? ForkJoinPool.commonPool() : executor);
+    }
+
+    /**
+     * Gets the value of a key, loading it if the map does not have it. A key
+     * the calling thread's transaction has removed is not loaded. The loaded
+     * value is put into the map before the future completes, unless a
+     * transaction is open, in which case it is put when that transaction
+     * ends. It is not put if the key is written in the meantime.
+     *
+     * @return a future of the value, completed at once if the map has the key. Null if the loader has no value.
+     * @throws IllegalStateException if no loader is set
+     */
+    public CompletableFuture<V> getAsync(K key) {
+        ReadThroughLoader<K, V> currentLoader = readThrough;
+        if (currentLoader == null) {
+            throw new IllegalStateException("No loader is set");
+        }
+        V value = get(key);
+        if (value != null || containsKey(key)) {
+            return CompletableFuture.completedFuture(value);
+        }
+        TransactionContext<K, V> existingContext = getTransactionContext();
+        if (existingContext != null && existingContext.isWritten(key)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return currentLoader.load(key, this);
+    }
+
+    /**
+     * Waits for {@link #getAsync(Object)}.
+     *
+     * @throws java.util.concurrent.CompletionException if the loader failed
+     */
+    public V getOrLoad(K key) {
+        return getAsync(key).join();
+    }
+
+    /**
+     * Puts the pending loaded values, unless a transaction is open. The
+     * transaction puts them when it ends instead.
+     */
+    void installLoads(ReadThroughLoader<K, V> loader) {
+        while (!loader.pending.isEmpty()) {
+            if (ongoingTransaction) {
+                return;
+            }
+            try {
+                if (!transactionLock.tryLock(1, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                installPendingLoads(loader);
+            } finally {
+                transactionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Called holding the transaction lock with no transaction open.
+     */
+    private void installPendingLoads(ReadThroughLoader<K, V> loader) {
+        // Writers only lock out loads while their loader is set
+        boolean current = loader == readThrough;
+        ReadThroughLoader.Load<K, V> load;
+        while ((load = loader.pending.poll()) != null) {
+            if (loader.finish(load) && current) {
+                installLoaded(load.key, load.value);
+            }
+        }
+    }
+
+    /**
+     * Puts a value read through from the loader unless the map has the key.
+     * Called holding the transaction lock with no transaction open. Change
+     * listeners are told the value was loaded.
+     *
+     * @return true if the value was put
+     */
+    protected boolean installLoaded(K key, V value) {
+        if (wrappedMap.containsKey(key)) {
+            return false;
+        }
+        if (changePublisher.startUnpublishedWrite()) {
+            try {
+                wrappedMap.put(key, value);
+            } finally {
+                changePublisher.endUnpublishedWrite();
+            }
+        } else {
+            synchronized (changePublisher.lock()) {
+                wrappedMap.put(key, value);
+                changePublisher.publishLoad(key, value);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes entries evicted by a write from outside of a transaction. Called
+     * holding the transaction lock. Change listeners are told the keys were
+     * evicted rather than removed.
+     */
+    protected void removeEvicted(Collection<K> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        if (changePublisher.startUnpublishedWrite()) {
+            try {
+                for (K key : keys) {
+                    wrappedMap.remove(key);
+                }
+            } finally {
+                changePublisher.endUnpublishedWrite();
+            }
+        } else {
+            synchronized (changePublisher.lock()) {
+                for (K key : keys) {
+                    wrappedMap.remove(key);
+                }
+                changePublisher.publishEvictions(new HashSet<K>(keys));
+            }
+        }
+    }
+
+    private void invalidateLoad(Object key) {
+        ReadThroughLoader<K, V> currentLoader = readThrough;
+        if (currentLoader != null) {
+            currentLoader.invalidate(key);
+        }
     }
 
     @Override
@@ -63,10 +485,42 @@ public class SingleThreadedTransactionableMap<K, V> extends AbstractMap<K, V> im
         if (existingContext == null) {
             throw new TransactionException("No active transaction.");
         }
+        if (existingContext.getNestingDepth() > 0) {
+            existingContext.endNested(false);
+            return;
+        }
+        TransactionMetrics currentMetrics = metrics;
+        if (currentMetrics != null && existingContext.startNanos != 0) {
+            currentMetrics.recordAbort(existingContext.startNanos, existingContext.deltaReads, existingContext.baseReads);
+        }
         clearTransactionContext();
 
     }
 
+    /**
+     * Marks the current state of the calling thread's transaction.
+     *
+     * @return a savepoint that can be passed to {@link #rollbackToSavepoint(Savepoint)}
+     */
+    public Savepoint setSavepoint() {
+        return getRequiredTransactionContext().setSavepoint();
+    }
+
+    /**
+     * Undoes the changes made since the savepoint was set, keeping the
+     * transaction open. Savepoints set after it are released.
+     */
+    public void rollbackToSavepoint(Savepoint savepoint) {
+        getRequiredTransactionContext().rollbackTo(savepoint);
+    }
+
+    /**
+     * Releases the savepoint, and every savepoint set after it, keeping the changes.
+     */
+    public void releaseSavepoint(Savepoint savepoint) {
+        getRequiredTransactionContext().release(savepoint);
+    }
+
     @Override
     public int size() {
         TransactionContext<K, V> existingContext = getTransactionContext();
@@ -101,8 +555,24 @@ public class SingleThreadedTransactionableMap<K, V> extends AbstractMap<K, V> im
     public V put(K key, V value) {
         TransactionContext<K, V> existingContext = getTransactionContext();
         if (existingContext == null) {
-            failIfOnGoingTransaction();
-            return wrappedMap.put(key, value);
+            boolean locked = lockWriteOutsideTransaction(readThrough != null);
+            try {
+                invalidateLoad(key);
+                if (changePublisher.startUnpublishedWrite()) {
+                    try {
+                        return wrappedMap.put(key, value);
+                    } finally {
+                        changePublisher.endUnpublishedWrite();
+                    }
+                }
+                synchronized (changePublisher.lock()) {
+                    V oldValue = wrappedMap.put(key, value);
+                    changePublisher.publishPut(key, value);
+                    return oldValue;
+                }
+            } finally {
+                unlockWriteOutsideTransaction(locked);
+            }
         } else {
             return existingContext.put(key, value);
         }
@@ -113,8 +583,24 @@ public class SingleThreadedTransactionableMap<K, V> extends AbstractMap<K, V> im
     public V remove(Object key) {
         TransactionContext<K, V> existingContext = getTransactionContext();
         if (existingContext == null) {
-            failIfOnGoingTransaction();
-            return wrappedMap.remove(key);
+            boolean locked = lockWriteOutsideTransaction(readThrough != null);
+            try {
+                invalidateLoad(key);
+                if (changePublisher.startUnpublishedWrite()) {
+                    try {
+                        return wrappedMap.remove(key);
+                    } finally {
+                        changePublisher.endUnpublishedWrite();
+                    }
+                }
+                synchronized (changePublisher.lock()) {
+                    V oldValue = wrappedMap.remove(key);
+                    changePublisher.publishRemove(castKey(key));
+                    return oldValue;
+                }
+            } finally {
+                unlockWriteOutsideTransaction(locked);
+            }
         } else {
             return existingContext.remove(key);
         }
@@ -128,8 +614,26 @@ public class SingleThreadedTransactionableMap<K, V> extends AbstractMap<K, V> im
         }
         TransactionContext<K, V> existingContext = getTransactionContext();
         if (existingContext == null) {
-            failIfOnGoingTransaction();
-            wrappedMap.putAll(m);
+            boolean locked = lockWriteOutsideTransaction(readThrough != null);
+            try {
+                for (K key : m.keySet()) {
+                    invalidateLoad(key);
+                }
+                if (changePublisher.startUnpublishedWrite()) {
+                    try {
+                        wrappedMap.putAll(m);
+                    } finally {
+                        changePublisher.endUnpublishedWrite();
+                    }
+                } else {
+                    synchronized (changePublisher.lock()) {
+                        wrappedMap.putAll(m);
+                        changePublisher.publish(false, Collections.<K> emptySet(), new HashMap<K, V>(m));
+                    }
+                }
+            } finally {
+                unlockWriteOutsideTransaction(locked);
+            }
         } else {
             for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
                 existingContext.put(entry.getKey(), entry.getValue());
@@ -142,8 +646,27 @@ public class SingleThreadedTransactionableMap<K, V> extends AbstractMap<K, V> im
     public void clear() {
         TransactionContext<K, V> existingContext = getTransactionContext();
         if (existingContext == null) {
-            failIfOnGoingTransaction();
-            wrappedMap.clear();
+            boolean locked = lockWriteOutsideTransaction(readThrough != null);
+            try {
+                ReadThroughLoader<K, V> currentLoader = readThrough;
+                if (currentLoader != null) {
+                    currentLoader.invalidateAll();
+                }
+                if (changePublisher.startUnpublishedWrite()) {
+                    try {
+                        wrappedMap.clear();
+                    } finally {
+                        changePublisher.endUnpublishedWrite();
+                    }
+                } else {
+                    synchronized (changePublisher.lock()) {
+                        wrappedMap.clear();
+                        changePublisher.publish(true, Collections.<K> emptySet(), Collections.<K, V> emptyMap());
+                    }
+                }
+            } finally {
+                unlockWriteOutsideTransaction(locked);
+            }
         } else {
             existingContext.clear();
         }
@@ -201,22 +724,151 @@ public class SingleThreadedTransactionableMap<K, V> extends AbstractMap<K, V> im
         }
     }
 
-    private TransactionContext<K, V> getTransactionContext() {
+    /**
+     * Performs the action for each entry of the map as seen by the calling
+     * thread, in parallel on the common ForkJoinPool once the map has at least
+     * parallelismThreshold entries. The action must not modify the map.
+     *
+     * @param parallelismThreshold the estimated number of entries needed to run in parallel. Long.MAX_VALUE runs
+     *            in the calling thread
+     */
+    public void forEach(long parallelismThreshold, BiConsumer<? super K, ? super V> action) {
+        ParallelBulkOperations.forEach(entrySpliterator(), parallelismThreshold, action);
+    }
+
+    /**
+     * Applies the search function to the entries of the map as seen by the
+     * calling thread, in parallel once the map has at least
+     * parallelismThreshold entries, and stops as soon as one returns non null.
+     *
+     * @return a non null result of the search function, not necessarily the first in iteration order, or null
+     */
+    public <U> U search(long parallelismThreshold, BiFunction<? super K, ? super V, ? extends U> searchFunction) {
+        return ParallelBulkOperations.search(entrySpliterator(), parallelismThreshold, searchFunction);
+    }
+
+    /**
+     * Transforms the entries of the map as seen by the calling thread and
+     * combines the non null transformations with the reducer, in parallel once
+     * the map has at least parallelismThreshold entries. The reducer must be
+     * associative.
+     *
+     * @return the reduced value, or null if every transformation was null
+     */
+    public <U> U reduce(long parallelismThreshold, BiFunction<? super K, ? super V, ? extends U> transformer,
+            BiFunction<? super U, ? super U, ? extends U> reducer) {
+        return ParallelBulkOperations.reduce(entrySpliterator(), parallelismThreshold, transformer, reducer);
+    }
+
+    /**
+     * A spliterator over the entries of the map as seen by the calling thread,
+     * for use with StreamSupport.stream(spliterator, true). Inside a
+     * transaction the changes and the committed entries are split
+     * independently. The map must not be modified while it is in use.
+     */
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        TransactionContext<K, V> existingContext = getTransactionContext();
+        if (existingContext != null) {
+            return existingContext.entrySpliterator();
+        }
+        return Collections.unmodifiableMap(wrappedMap).entrySet().spliterator();
+    }
+
+    /**
+     * When no transaction is open anywhere, which is the common case for
+     * readers, this costs a single volatile read and skips the ThreadLocal
+     * lookup. The thread that opened a transaction always sees its own write
+     * of the flag.
+     *
+     * @return the transaction context of the calling thread or null if it is not in a transaction
+     */
+    protected TransactionContext<K, V> getTransactionContext() {
+        if (!ongoingTransaction) {
+            return null;
+        }
         return txContextThreadLocal.get();
     }
 
+    @SuppressWarnings("unchecked")
+    private K castKey(Object key) {
+        return (K) key;
+    }
+
+    private TransactionContext<K, V> getRequiredTransactionContext() {
+        TransactionContext<K, V> existingContext = getTransactionContext();
+        if (existingContext == null) {
+            throw new TransactionException("No active transaction.");
+        }
+        return existingContext;
+    }
+
+    /**
+     * @return true if some thread currently has a transaction open on this map
+     */
+    protected boolean isOngoingTransaction() {
+        return ongoingTransaction;
+    }
+
     private void setupTransactionContext() {
         txContextThreadLocal.set(new TransactionContext<K, V>(wrappedMap));
         ongoingTransaction = true;
     }
 
     private void clearTransactionContext() {
-        txContextThreadLocal.set(null);
+        txContextThreadLocal.remove();
         ongoingTransaction = false;
+        try {
+            // Loads that finished while the transaction was open wait for it, see installLoads()
+            ReadThroughLoader<K, V> currentLoader = readThrough;
+            if (currentLoader != null) {
+                installPendingLoads(currentLoader);
+            }
+        } finally {
+            transactionLock.unlock();
+        }
     }
 
-    private void failIfOnGoingTransaction() {
+    /**
+     * Prepares a write from outside of a transaction. In blocking mode waits
+     * for the open transaction to end, otherwise fails if one is open.
+     *
+     * @param exclusive if true the transaction lock is taken even when not in blocking mode, so that no transaction
+     *            can begin until the write is done
+     * @return whether the lock was taken and must be released with {@link #unlockWriteOutsideTransaction(boolean)}
+     */
+    protected boolean lockWriteOutsideTransaction(boolean exclusive) {
+        try {
+            if (blockingWrites) {
+                transactionLock.lockInterruptibly();
+                return true;
+            }
+            failIfOnGoingTransaction();
+            if (!exclusive) {
+                return false;
+            }
+            // Only waits for other writers, a transaction beginning meanwhile makes the write fail
+            while (!lockUnlessInTransaction()) {
+                failIfOnGoingTransaction();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionException("Interrupted while waiting for the transaction in progress to end", e);
+        }
+        return true;
+    }
+
+    protected void unlockWriteOutsideTransaction(boolean locked) {
+        if (locked) {
+            transactionLock.unlock();
+        }
+    }
+
+    protected void failIfOnGoingTransaction() {
         if (ongoingTransaction) {
+            TransactionMetrics currentMetrics = metrics;
+            if (currentMetrics != null) {
+                currentMetrics.recordRejectedWrite();
+            }
             throw new IllegalStateException("A transaction is on going . No write operations are allowed");
         }
     }
@@ -1,25 +1,52 @@
 package com.blogspot.sahyog.collections;
 
 import java.util.AbstractCollection;
+import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
 
+/**
+ * The changes made by one transaction on top of a main map. <br />
+ *
+ * Every key touched by the transaction has a single slot in an open
+ * addressing delta table holding the key, the new value and a state which says
+ * whether it was added, modified or removed and whether the main map has the
+ * key. Reads, writes and iteration therefore probe the delta once, and only go
+ * to the main map when the delta does not know the key. The delta costs two
+ * array slots and a byte per key, with no per entry objects.
+ */
 public class TransactionContext<K, V> {
-    protected Map<K, V> changes = new HashMap<K, V>(); //this map is accessed by a single thread only
-    protected Set<K> newKeys = new HashSet<K>();
-    protected Set<Object> removedKeys = new HashSet<Object>();
+    protected DeltaTable delta = new DeltaTable(16); //this table is accessed by a single thread only
+    /** Difference between the size seen in the transaction and the size of the main map, or 0 if cleared */
+    protected int sizeAdjustment = 0;
     protected boolean readOnly = true;
     protected boolean cleared = false;
     protected Map<K, V> mainMap;
     private Set<Map.Entry<K, V>> entrySet;
     private Collection<V> values;
     private Set<K> keys;
+    /** Only recorded while there is at least one savepoint, so that plain transactions pay nothing for it */
+    private List<UndoRecord<K, V>> undoLog;
+    private List<Savepoint> savepoints;
+    /** Savepoints set by nested beginTransaction() calls, innermost last */
+    private List<Savepoint> nestedLevels;
+    /** Reads answered by the delta and by the main map. Plain counters, the context belongs to one thread */
+    int deltaReads;
+    int baseReads;
+    /** System.nanoTime() at begin, only set when the map records metrics */
+    long startNanos;
     public TransactionContext(Map<K, V> mainMap) {
         this.mainMap = mainMap;
     }
@@ -28,27 +55,91 @@ public class TransactionContext<K, V> {
         if (readOnly) {
             return;
         }
+        if (mainMap instanceof BulkMergeable) {
+            @SuppressWarnings("unchecked")
+            BulkMergeable<K, V> bulkMergeable = (BulkMergeable<K, V>) mainMap;
+            bulkMergeable.applyDelta(cleared, cleared ? null : new RemovedKeysView(), new ChangesView());
+            return;
+        }
         if (cleared) {
             mainMap.clear();
+        } else {
+            for (int i = 0; i < delta.states.length; i++) {
+                if (DeltaTable.isRemoved(delta.states[i])) {
+                    mainMap.remove(delta.keyAt(i));
+                }
+            }
         }
-        for (Object key : removedKeys) {
-            mainMap.remove(key);
+        // One putAll over a view of the delta, so that a HashMap sizes itself once for all the changes instead of
+        // growing put by put. The view is backed by the delta, a commit does not copy it.
+        mainMap.putAll(new ChangesView());
+    }
+
+    /**
+     * @return true if nothing has been done in this transaction that could change the main map
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return true if the transaction cleared the main map before applying its changes
+     */
+    public boolean isCleared() {
+        return cleared;
+    }
+
+    /**
+     * @return number of keys the transaction has put or removed
+     */
+    public int getDeltaSize() {
+        return delta.size;
+    }
+
+    /**
+     * @return a copy of the keys written by this transaction along with their new values
+     */
+    public Map<K, V> getChanges() {
+        Map<K, V> changes = new HashMap<K, V>();
+        for (int i = 0; i < delta.states.length; i++) {
+            if (DeltaTable.isVisible(delta.states[i])) {
+                changes.put(delta.<K>keyAt(i), delta.<V>valueAt(i));
+            }
         }
+        return changes;
+    }
 
-        for (Map.Entry<K, V> entry : changes.entrySet()) {
-            mainMap.put(entry.getKey(), entry.getValue());
+    /**
+     * @return a copy of the keys removed by this transaction
+     */
+    public Set<Object> getRemovedKeys() {
+        Set<Object> removedKeys = new HashSet<Object>();
+        for (int i = 0; i < delta.states.length; i++) {
+            if (DeltaTable.isRemoved(delta.states[i])) {
+                removedKeys.add(delta.keyAt(i));
+            }
         }
+        return removedKeys;
+    }
+
+    /**
+     * @return true if the transaction put or removed the key, or cleared the map, so that the main map no longer
+     *         decides whether the transaction sees it
+     */
+    public boolean isWritten(Object key) {
+        return cleared || delta.indexOf(key) >= 0;
     }
 
     public int size() {
-        if (cleared) {
-            return 0;
-        }
-        return mainMap.size() + newKeys.size() - removedKeys.size();
+        return (cleared ? 0 : mainMap.size()) + sizeAdjustment;
     }
 
     public boolean containsKey(Object key) {
-        return !removedKeys.contains(key) && (changes.containsKey(key) || mainMap.containsKey(key));
+        int index = delta.indexOf(key);
+        if (index >= 0) {
+            return DeltaTable.isVisible(delta.states[index]);
+        }
+        return !cleared && mainMap.containsKey(key);
     }
 
     /**
@@ -58,7 +149,7 @@ public class TransactionContext<K, V> {
      */
     public boolean containsValue(Object value) {
         for(V val:values()) {
-            if(value.equals(val)) {
+            if(value == null ? val == null : value.equals(val)) {
                 return true;
             }
         }
@@ -81,57 +172,254 @@ public class TransactionContext<K, V> {
         return values;
     }
 
+    /**
+     * The returned spliterator splits the delta and the main map independently,
+     * so the view of the map inside the transaction can be traversed in
+     * parallel by threads other than the one owning the transaction. Neither
+     * the transaction nor the main map may be changed while it is in use.
+     * Its entries are immutable.
+     */
+    public Spliterator<Map.Entry<K, V>> entrySpliterator() {
+        Spliterator<Map.Entry<K, V>> deltaPart = new DeltaSpliterator<K, V>(delta, 0, delta.states.length);
+        if (cleared) {
+            return deltaPart;
+        }
+        Spliterator<Map.Entry<K, V>> mainMapPart = new MainMapSpliterator<K, V>(
+                Collections.unmodifiableMap(mainMap).entrySet().spliterator(), delta);
+        return new ParallelBulkOperations.ConcatSpliterator<Map.Entry<K, V>>(deltaPart, mainMapPart);
+    }
+
     public V get(Object key) {
-        if (cleared || removedKeys.contains(key)) {
-            return null;
+        int index = delta.indexOf(key);
+        if (index >= 0) {
+            deltaReads++;
+            return delta.valueAt(index);
         }
-        if (changes.containsKey(key)) {
-            return changes.get(key);
-        } else {
-            return mainMap.get(key);
+        if (cleared) {
+            return null;
         }
+        baseReads++;
+        return mainMap.get(key);
     }
 
     public V put(K key, V value) {
         readOnly = false;
-        cleared = false;
-        removedKeys.remove(key);
-
-        if (!mainMap.containsKey(key)) {
-            newKeys.add(key);
+        int index = delta.indexOf(key);
+        recordUndo(key, index);
+        if (index >= 0) {
+            V oldValue = delta.valueAt(index);
+            byte state = delta.states[index];
+            if (DeltaTable.isRemoved(state)) {
+                sizeAdjustment++;
+                delta.states[index] = state == DeltaTable.REMOVED ? DeltaTable.MODIFIED : DeltaTable.ADDED;
+            }
+            delta.values[index] = value;
+            return oldValue;
         }
-        V oldValue = null;
-        if (changes.containsKey(key)) {
-            oldValue = changes.put(key, value);
-        } else {
-            oldValue = mainMap.get(key);
-            changes.put(key, value);
+        V oldValue = cleared ? null : mainMap.get(key);
+        boolean inMainMap = oldValue != null || (!cleared && mainMap.containsKey(key));
+        if (!inMainMap) {
+            sizeAdjustment++;
         }
+        delta.put(key, value, inMainMap ? DeltaTable.MODIFIED : DeltaTable.ADDED);
         return oldValue;
     }
 
     public V remove(Object key) {
         readOnly = false;
+        int index = delta.indexOf(key);
+        if (index >= 0) {
+            byte state = delta.states[index];
+            if (DeltaTable.isRemoved(state)) {
+                return null;
+            }
+            recordUndo(key, index);
+            V oldValue = delta.valueAt(index);
+            sizeAdjustment--;
+            if (state == DeltaTable.MODIFIED) {
+                delta.states[index] = DeltaTable.REMOVED;
+                delta.values[index] = null;
+            } else {
+                delta.removeAt(index);
+            }
+            return oldValue;
+        }
         if (cleared) {
             return null;
         }
-        removedKeys.add(key);
-        newKeys.remove(key);
-        V oldValue = null;
-        if (changes.containsKey(key)) {
-            oldValue = changes.remove(key);
-        } else {
-            oldValue = mainMap.get(key);
+        recordUndo(key, -1);
+        V oldValue = mainMap.get(key);
+        boolean inMainMap = oldValue != null || mainMap.containsKey(key);
+        if (inMainMap) {
+            sizeAdjustment--;
         }
+        // Removals of keys the main map does not have are kept as well, so they take part in the delta handed
+        // out by getRemovedKeys()
+        delta.put(key, null, inMainMap ? DeltaTable.REMOVED : DeltaTable.REMOVED_ABSENT);
         return oldValue;
-
     }
 
     public void clear() {
+        if (undoLog != null) {
+            undoLog.add(new UndoRecord<K, V>(delta, sizeAdjustment, cleared));
+        }
         readOnly = false;
         cleared = true;
-        removedKeys.clear();
-        changes.clear();
+        sizeAdjustment = 0;
+        delta = new DeltaTable(16);
+    }
+
+    /**
+     * Marks the current state of the transaction so that it can be rolled back
+     * to later. From now on every change records how to undo it, so a rollback
+     * costs time proportional to the changes made since the savepoint.
+     */
+    public Savepoint setSavepoint() {
+        if (undoLog == null) {
+            undoLog = new ArrayList<UndoRecord<K, V>>();
+            savepoints = new ArrayList<Savepoint>();
+        }
+        Savepoint savepoint = new Savepoint(this, undoLog.size());
+        savepoints.add(savepoint);
+        return savepoint;
+    }
+
+    /**
+     * Undoes every change made since the savepoint. The savepoint stays valid,
+     * savepoints set after it are released.
+     */
+    public void rollbackTo(Savepoint savepoint) {
+        int index = indexOf(savepoint);
+        while (undoLog.size() > savepoint.undoPosition) {
+            undoLog.remove(undoLog.size() - 1).undo(this);
+        }
+        truncateSavepoints(index + 1);
+    }
+
+    /**
+     * Releases the savepoint and every savepoint set after it. The changes made
+     * since are kept.
+     */
+    public void release(Savepoint savepoint) {
+        truncateSavepoints(indexOf(savepoint));
+    }
+
+    /**
+     * @return number of savepoints that have not been released
+     */
+    public int getSavepointCount() {
+        return savepoints == null ? 0 : savepoints.size();
+    }
+
+    /**
+     * @return the most recently set savepoint which has not been released, or null
+     */
+    public Savepoint getLastSavepoint() {
+        return getSavepointCount() == 0 ? null : savepoints.get(savepoints.size() - 1);
+    }
+
+    /**
+     * Opens a nested transaction by setting a savepoint for it.
+     */
+    public void beginNested() {
+        if (nestedLevels == null) {
+            nestedLevels = new ArrayList<Savepoint>();
+        }
+        nestedLevels.add(setSavepoint());
+    }
+
+    /**
+     * @return number of nested transactions open inside this one
+     */
+    public int getNestingDepth() {
+        return nestedLevels == null ? 0 : nestedLevels.size();
+    }
+
+    /**
+     * Ends the innermost nested transaction. Its changes become part of the
+     * enclosing transaction if it is committed, and are undone otherwise.
+     */
+    public void endNested(boolean commit) {
+        Savepoint level = nestedLevels.remove(nestedLevels.size() - 1);
+        if (nestedLevels.isEmpty()) {
+            nestedLevels = null;
+        }
+        if (!commit) {
+            rollbackTo(level);
+        }
+        release(level);
+    }
+
+    private int indexOf(Savepoint savepoint) {
+        int index = savepoints == null ? -1 : savepoints.indexOf(savepoint);
+        if (index < 0) {
+            throw new TransactionException("Savepoint does not belong to this transaction or has been released");
+        }
+        return index;
+    }
+
+    private void truncateSavepoints(int size) {
+        while (savepoints.size() > size) {
+            savepoints.remove(savepoints.size() - 1);
+        }
+        if (savepoints.isEmpty()) {
+            undoLog = null;
+            savepoints = null;
+        }
+    }
+
+    private void recordUndo(Object key, int index) {
+        if (undoLog != null) {
+            undoLog.add(index < 0 ? new UndoRecord<K, V>(key, DeltaTable.FREE, null, sizeAdjustment)
+                    : new UndoRecord<K, V>(key, delta.states[index], delta.<V>valueAt(index), sizeAdjustment));
+        }
+    }
+
+    /**
+     * The state of one key in the delta, or the whole delta for a clear, before a change.
+     */
+    private static final class UndoRecord<K, V> {
+        private final Object key;
+        private final byte previousState;
+        private final V previousValue;
+        private final int sizeAdjustment;
+        private final DeltaTable deltaBeforeClear;
+        private final boolean wasCleared;
+
+        UndoRecord(Object key, byte previousState, V previousValue, int sizeAdjustment) {
+            this.key = key;
+            this.previousState = previousState;
+            this.previousValue = previousValue;
+            this.sizeAdjustment = sizeAdjustment;
+            this.deltaBeforeClear = null;
+            this.wasCleared = false;
+        }
+
+        UndoRecord(DeltaTable delta, int sizeAdjustment, boolean wasCleared) {
+            this.key = null;
+            this.previousState = DeltaTable.FREE;
+            this.previousValue = null;
+            this.sizeAdjustment = sizeAdjustment;
+            this.deltaBeforeClear = delta;
+            this.wasCleared = wasCleared;
+        }
+
+        void undo(TransactionContext<K, V> context) {
+            context.sizeAdjustment = sizeAdjustment;
+            if (deltaBeforeClear != null) {
+                context.delta = deltaBeforeClear;
+                context.cleared = wasCleared;
+                return;
+            }
+            if (previousState != DeltaTable.FREE) {
+                context.delta.put(key, previousValue, previousState);
+                return;
+            }
+            int index = context.delta.indexOf(key);
+            if (index >= 0) {
+                context.delta.removeAt(index);
+            }
+        }
     }
 
     public Set<java.util.Map.Entry<K, V>> entrySet() {
@@ -150,13 +438,21 @@ public class TransactionContext<K, V> {
         @Override
         public boolean contains(Object o) {
             if (o == null || !(o instanceof Map.Entry)) return false;
-            Map.Entry<K, V> e = (Map.Entry<K, V>) o;
-            return containsKey(e.getKey());
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            if (!containsKey(e.getKey())) {
+                return false;
+            }
+            V value = get(e.getKey());
+            return value == null ? e.getValue() == null : value.equals(e.getValue());
         }
 
         @Override
         public boolean remove(Object o) {
-            return TransactionContext.this.remove(o) != null;
+            if (!contains(o)) {
+                return false;
+            }
+            TransactionContext.this.remove(((Map.Entry<?, ?>) o).getKey());
+            return true;
         }
 
         @Override
@@ -173,7 +469,7 @@ public class TransactionContext<K, V> {
     private final class Values extends AbstractCollection<V> {
         @Override
         public Iterator<V> iterator() {
-            return new ValueIterator(new EntryIterator());
+            return new ValueIterator();
         }
         @Override
         public int size() {
@@ -192,7 +488,7 @@ public class TransactionContext<K, V> {
     private final class Keys extends AbstractSet<K> {
         @Override
         public Iterator<K> iterator() {
-            return new KeyIterator(new EntryIterator());
+            return new KeyIterator();
         }
         @Override
         public int size() {
@@ -203,104 +499,558 @@ public class TransactionContext<K, V> {
             return containsKey(o);
         }
         @Override
+        public boolean remove(Object o) {
+            if (!containsKey(o)) {
+                return false;
+            }
+            TransactionContext.this.remove(o);
+            return true;
+        }
+        @Override
         public void clear() {
             TransactionContext.this.clear();
         }
     }
 
-    private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
-        private Map.Entry<K, V> current = null;
-        private Map.Entry<K, V> next = null;
-        private Iterator<Map.Entry<K, V>> changesIterator;
-        private Iterator<Map.Entry<K, V>> mainMapIterator;
+    /**
+     * Read only view of the entries put by the transaction, backed by the
+     * delta table. Handed to {@link BulkMergeable} maps on commit.
+     */
+    private final class ChangesView extends AbstractMap<K, V> {
+        private final Set<Map.Entry<K, V>> entries = new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new DeltaSlotIterator<Map.Entry<K, V>>(true) {
+                    @Override
+                    Map.Entry<K, V> at(int index) {
+                        return new AbstractMap.SimpleImmutableEntry<K, V>(delta.<K>keyAt(index), delta.<V>valueAt(index));
+                    }
+                };
+            }
+            @Override
+            public int size() {
+                return countSlots(true);
+            }
+        };
 
-        public EntryIterator() {
-            changesIterator = changes.entrySet().iterator();
-            mainMapIterator = mainMap.entrySet().iterator();
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            return entries;
+        }
+        @Override
+        public V get(Object key) {
+            int index = delta.indexOf(key);
+            return index >= 0 ? delta.<V>valueAt(index) : null;
         }
+        @Override
+        public boolean containsKey(Object key) {
+            int index = delta.indexOf(key);
+            return index >= 0 && DeltaTable.isVisible(delta.states[index]);
+        }
+    }
 
+    /**
+     * Read only view of the keys removed by the transaction, backed by the delta table.
+     */
+    private final class RemovedKeysView extends AbstractCollection<Object> {
         @Override
-        public boolean hasNext() {
-            if (next == null) {
-                boolean found = false;
-                while (!found && changesIterator.hasNext()) {
-                    Map.Entry<K, V> entry = changesIterator.next();
-                    if (removedKeys.contains(entry.getKey())) {
-                        continue;
-                    } else {
-                        found = true;
-                        next = entry;
-                    }
+        public Iterator<Object> iterator() {
+            return new DeltaSlotIterator<Object>(false) {
+                @Override
+                Object at(int index) {
+                    return delta.keyAt(index);
                 }
-                while (!found && mainMapIterator.hasNext()) {
-                    Map.Entry<K, V> entry = changesIterator.next();
-                    if (removedKeys.contains(entry.getKey()) || newKeys.contains(entry.getKey())) {
-                        continue;
-                    } else {
-                        found = true;
-                        next = entry;
-                    }
+            };
+        }
+        @Override
+        public int size() {
+            return countSlots(false);
+        }
+    }
+
+    private int countSlots(boolean visible) {
+        int count = 0;
+        for (int i = 0; i < delta.states.length; i++) {
+            if (visible ? DeltaTable.isVisible(delta.states[i]) : DeltaTable.isRemoved(delta.states[i])) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Walks the slots of the delta which hold a put, or a removal.
+     */
+    private abstract class DeltaSlotIterator<T> implements Iterator<T> {
+        private final boolean visible;
+        private int index;
+
+        DeltaSlotIterator(boolean visible) {
+            this.visible = visible;
+            this.index = advance(0);
+        }
+
+        abstract T at(int index);
+
+        private int advance(int from) {
+            byte[] states = delta.states;
+            for (int i = from; i < states.length; i++) {
+                if (visible ? DeltaTable.isVisible(states[i]) : DeltaTable.isRemoved(states[i])) {
+                    return i;
                 }
-                return found;
-            } else {
-                return true;
             }
+            return states.length;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < delta.states.length;
         }
 
         @Override
-        public Entry<K, V> next() {
-            current = next;
-            next = null;
-            return current;
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T next = at(index);
+            index = advance(index + 1);
+            return next;
         }
 
         @Override
         public void remove() {
-            if (current == null) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Walks the visible entries of the delta and then the entries of the main
+     * map which the delta does not know about. Each main map entry costs one
+     * probe of the delta, and none at all while the delta is empty. <br />
+     *
+     * Removal goes into the delta. An entry which came from the delta is
+     * marked removed in place, so the delta table never loses a slot while it
+     * is being walked. Adding keys to the delta while walking it fails fast if
+     * that makes the table grow.
+     */
+    private abstract class MergedIterator {
+        private final DeltaTable iteratedDelta = delta;
+        private final Object[] iteratedKeys = delta.keys;
+        private int deltaIndex = 0;
+        private final Iterator<Map.Entry<K, V>> mainMapIterator = cleared ? null : mainMap.entrySet().iterator();
+        private boolean nextComputed;
+        private boolean hasNext;
+        private int nextDeltaIndex;
+        private K nextKey;
+        private V nextValue;
+        private int currentDeltaIndex;
+        private boolean hasCurrent;
+        protected K currentKey;
+        protected V currentValue;
+
+        public boolean hasNext() {
+            if (!nextComputed) {
+                hasNext = computeNext();
+                nextComputed = true;
+            }
+            return hasNext;
+        }
+
+        private boolean computeNext() {
+            checkForClear();
+            if (deltaIndex < iteratedKeys.length) {
+                checkForResize();
+                byte[] states = delta.states;
+                while (deltaIndex < states.length) {
+                    int index = deltaIndex++;
+                    if (DeltaTable.isVisible(states[index])) {
+                        nextDeltaIndex = index;
+                        nextKey = delta.keyAt(index);
+                        nextValue = delta.valueAt(index);
+                        return true;
+                    }
+                }
+            }
+            nextDeltaIndex = -1;
+            while (mainMapIterator != null && mainMapIterator.hasNext()) {
+                Map.Entry<K, V> entry = mainMapIterator.next();
+                if (delta.size == 0 || delta.indexOf(entry.getKey()) < 0) {
+                    nextKey = entry.getKey();
+                    nextValue = entry.getValue();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        protected void moveToNext() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            nextComputed = false;
+            currentDeltaIndex = nextDeltaIndex;
+            currentKey = nextKey;
+            currentValue = nextValue;
+            hasCurrent = true;
+        }
+
+        public void remove() {
+            if (!hasCurrent) {
                 throw new IllegalStateException();
             }
+            checkForClear();
+            hasCurrent = false;
+            if (currentDeltaIndex < 0) {
+                TransactionContext.this.remove(currentKey);
+                return;
+            }
+            checkForResize();
+            byte state = delta.states[currentDeltaIndex];
+            if (DeltaTable.isVisible(state)) {
+                readOnly = false;
+                recordUndo(currentKey, currentDeltaIndex);
+                sizeAdjustment--;
+                delta.states[currentDeltaIndex] = state == DeltaTable.MODIFIED ? DeltaTable.REMOVED : DeltaTable.REMOVED_ABSENT;
+                delta.values[currentDeltaIndex] = null;
+            }
         }
-    };
 
-    private final class ValueIterator implements Iterator<V> {
-        private final Iterator<Map.Entry<K, V>> entryIterator;
-        public ValueIterator(Iterator<Map.Entry<K, V>> entryIterator) {
-            this.entryIterator = entryIterator;
+        private void checkForClear() {
+            if (iteratedDelta != delta) {
+                throw new ConcurrentModificationException();
+            }
         }
+
+        private void checkForResize() {
+            if (iteratedKeys != delta.keys) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    private final class EntryIterator extends MergedIterator implements Iterator<Map.Entry<K, V>> {
         @Override
-        public boolean hasNext() {
-            return entryIterator.hasNext();
+        public Map.Entry<K, V> next() {
+            moveToNext();
+            return new TransactionEntry(currentKey, currentValue);
         }
+    }
 
+    private final class ValueIterator extends MergedIterator implements Iterator<V> {
         @Override
         public V next() {
-            return entryIterator.next().getValue();
+            moveToNext();
+            return currentValue;
         }
+    }
 
+    private final class KeyIterator extends MergedIterator implements Iterator<K> {
         @Override
-        public void remove() {
-            entryIterator.remove();
+        public K next() {
+            moveToNext();
+            return currentKey;
+        }
+    }
+
+    /**
+     * Open addressing table with linear probing holding the delta. Each slot
+     * has a key, a value and a state. Removed keys keep their slot with a
+     * removed state, only keys added and then removed in the transaction are
+     * dropped from the table.
+     */
+    static final class DeltaTable {
+        static final byte FREE = 0;
+        /** Put in the transaction, not in the main map */
+        static final byte ADDED = 1;
+        /** Put in the transaction, in the main map */
+        static final byte MODIFIED = 2;
+        /** Removed in the transaction, in the main map */
+        static final byte REMOVED = 3;
+        /** Removed in the transaction, not in the main map */
+        static final byte REMOVED_ABSENT = 4;
+        static final byte TOMBSTONE = 5;
+        private static final float MAX_LOAD = 0.75f;
+        private static final Object NULL_KEY = new Object();
+
+        Object[] keys;
+        Object[] values;
+        byte[] states;
+        int size;
+        private int tombstones;
+        private int mask;
+        private int threshold;
+
+        DeltaTable(int expectedSize) {
+            allocate(capacityFor(expectedSize));
+        }
+
+        static boolean isVisible(byte state) {
+            return state == ADDED || state == MODIFIED;
+        }
+
+        static boolean isRemoved(byte state) {
+            return state == REMOVED || state == REMOVED_ABSENT;
+        }
+
+        int indexOf(Object key) {
+            Object k = maskNull(key);
+            int i = hash(k) & mask;
+            while (true) {
+                byte state = states[i];
+                if (state == FREE) {
+                    return -1;
+                }
+                if (state != TOMBSTONE && (keys[i] == k || keys[i].equals(k))) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        <K> K keyAt(int index) {
+            Object k = keys[index];
+            return k == NULL_KEY ? null : (K) k;
+        }
+
+        @SuppressWarnings("unchecked")
+        <V> V valueAt(int index) {
+            return (V) values[index];
+        }
+
+        void put(Object key, Object value, byte state) {
+            Object k = maskNull(key);
+            int i = hash(k) & mask;
+            int firstTombstone = -1;
+            while (true) {
+                byte slotState = states[i];
+                if (slotState == FREE) {
+                    break;
+                }
+                if (slotState == TOMBSTONE) {
+                    if (firstTombstone < 0) {
+                        firstTombstone = i;
+                    }
+                } else if (keys[i] == k || keys[i].equals(k)) {
+                    values[i] = value;
+                    states[i] = state;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            if (firstTombstone >= 0) {
+                i = firstTombstone;
+                tombstones--;
+            }
+            keys[i] = k;
+            values[i] = value;
+            states[i] = state;
+            size++;
+            if (size + tombstones > threshold) {
+                rehash(capacityFor(size));
+            }
+        }
+
+        void removeAt(int index) {
+            keys[index] = null;
+            values[index] = null;
+            states[index] = TOMBSTONE;
+            size--;
+            tombstones++;
+        }
+
+        private void rehash(int capacity) {
+            Object[] oldKeys = keys;
+            Object[] oldValues = values;
+            byte[] oldStates = states;
+            allocate(capacity);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldStates[i] != FREE && oldStates[i] != TOMBSTONE) {
+                    int j = hash(oldKeys[i]) & mask;
+                    while (states[j] != FREE) {
+                        j = (j + 1) & mask;
+                    }
+                    keys[j] = oldKeys[i];
+                    values[j] = oldValues[i];
+                    states[j] = oldStates[i];
+                    size++;
+                }
+            }
+        }
+
+        private void allocate(int capacity) {
+            keys = new Object[capacity];
+            values = new Object[capacity];
+            states = new byte[capacity];
+            mask = capacity - 1;
+            threshold = (int) (capacity * MAX_LOAD);
+            size = 0;
+            tombstones = 0;
+        }
+
+        private static int capacityFor(int expectedSize) {
+            int capacity = 16;
+            while (capacity * MAX_LOAD / 2 < expectedSize) {
+                capacity <<= 1;
+            }
+            return capacity;
+        }
+
+        private static Object maskNull(Object key) {
+            return key == null ? NULL_KEY : key;
+        }
+
+        private static int hash(Object key) {
+            int h = key.hashCode() * 0x9E3779B9;
+            return h ^ (h >>> 16);
         }
     }
 
-    private final class KeyIterator implements Iterator<K> {
-        private final Iterator<Map.Entry<K, V>> entryIterator;
-        public KeyIterator(Iterator<Map.Entry<K, V>> entryIterator) {
-            this.entryIterator = entryIterator;
+    /**
+     * Splits a range of slots of the delta table, yielding the keys put in the transaction.
+     */
+    private static final class DeltaSpliterator<K, V> implements Spliterator<Map.Entry<K, V>> {
+        private final DeltaTable table;
+        private int index;
+        private final int fence;
+
+        DeltaSpliterator(DeltaTable table, int index, int fence) {
+            this.table = table;
+            this.index = index;
+            this.fence = fence;
         }
+
         @Override
-        public boolean hasNext() {
-            return entryIterator.hasNext();
+        public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+            while (index < fence) {
+                int i = index++;
+                if (DeltaTable.isVisible(table.states[i])) {
+                    action.accept(new AbstractMap.SimpleImmutableEntry<K, V>(table.<K>keyAt(i), table.<V>valueAt(i)));
+                    return true;
+                }
+            }
+            return false;
         }
 
         @Override
-        public K next() {
-            return entryIterator.next().getKey();
+        public Spliterator<Map.Entry<K, V>> trySplit() {
+            int mid = (index + fence) >>> 1;
+            if (mid <= index) {
+                return null;
+            }
+            Spliterator<Map.Entry<K, V>> prefix = new DeltaSpliterator<K, V>(table, index, mid);
+            index = mid;
+            return prefix;
         }
 
         @Override
-        public void remove() {
-            entryIterator.remove();
+        public long estimateSize() {
+            // Slots are spread evenly over the table, so the share of the range is a fair estimate
+            return table.states.length == 0 ? 0 : (long) table.size * (fence - index) / table.states.length;
+        }
+
+        @Override
+        public int characteristics() {
+            return DISTINCT;
+        }
+    }
+
+    /**
+     * Yields the entries of the main map which the delta does not know about.
+     */
+    private static final class MainMapSpliterator<K, V> implements Spliterator<Map.Entry<K, V>>, Consumer<Map.Entry<K, V>> {
+        private final Spliterator<Map.Entry<K, V>> base;
+        private final DeltaTable delta;
+        private Map.Entry<K, V> advanced;
+
+        MainMapSpliterator(Spliterator<Map.Entry<K, V>> base, DeltaTable delta) {
+            this.base = base;
+            this.delta = delta;
+        }
+
+        @Override
+        public void accept(Map.Entry<K, V> entry) {
+            advanced = entry;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+            while (base.tryAdvance(this)) {
+                Map.Entry<K, V> entry = advanced;
+                advanced = null;
+                if (delta.size == 0 || delta.indexOf(entry.getKey()) < 0) {
+                    action.accept(entry);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<Map.Entry<K, V>> trySplit() {
+            Spliterator<Map.Entry<K, V>> prefix = base.trySplit();
+            return prefix == null ? null : new MainMapSpliterator<K, V>(prefix, delta);
+        }
+
+        @Override
+        public long estimateSize() {
+            return base.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return base.characteristics() & (DISTINCT | NONNULL);
+        }
+    }
+
+    /**
+     * An entry handed out while iterating. setValue() writes into the transaction, never into the main map.
+     */
+    private final class TransactionEntry implements Map.Entry<K, V> {
+        private final K key;
+        private V value;
+
+        TransactionEntry(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            V oldValue = this.value;
+            put(key, value);
+            this.value = value;
+            return oldValue;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return (key == null ? e.getKey() == null : key.equals(e.getKey()))
+                    && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
         }
     }
 }
@@ -0,0 +1,246 @@
+package com.blogspot.sahyog.collections;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * An append only log of checksummed records backed by a {@link FileChannel}. <br />
+ *
+ * Each record is written as its payload length (int), the CRC32 of the payload
+ * (long) and the payload. On replay a record whose length or checksum does not
+ * match marks the torn tail of the log left by a crash and everything from it
+ * on is discarded. <br />
+ *
+ * How appends are forced to disk is decided by the {@link DurabilityPolicy}.
+ * For {@link DurabilityPolicy#GROUP_SYNC} and {@link DurabilityPolicy#ASYNC} a
+ * daemon thread forces the channel every sync interval.
+ */
+public class TransactionLog implements Closeable {
+    private static final int HEADER_SIZE = 4 + 8;
+
+    /**
+     * Receives the payload of every valid record during {@link TransactionLog#replay(File, RecordHandler)}.
+     */
+    public interface RecordHandler {
+        void handle(byte[] payload) throws IOException;
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final DurabilityPolicy policy;
+    private final long syncIntervalMillis;
+    private final Object durableMonitor = new Object();
+    private final Thread flusher;
+    private volatile long writtenSequence = 0;
+    private long durableSequence = 0;
+    private volatile boolean closed = false;
+    private IOException flushFailure;
+
+    /**
+     * Opens the log for appending. The file is first truncated to its last
+     * valid record.
+     */
+    public TransactionLog(File file, DurabilityPolicy policy, long syncIntervalMillis) throws IOException {
+        this.file = file;
+        this.policy = policy;
+        this.syncIntervalMillis = syncIntervalMillis;
+        long validLength = file.exists() ? replay(file, null) : 0;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(validLength);
+        channel.position(validLength);
+        if (policy == DurabilityPolicy.SYNC_EACH_COMMIT) {
+            flusher = null;
+        } else {
+            flusher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    flushLoop();
+                }
+            }, "TransactionLog flusher " + file.getName());
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @return the sequence number of the record, to be passed to {@link #awaitDurable(long)}
+     */
+    public synchronized long append(byte[] payload) throws IOException {
+        if (closed) {
+            throw new IOException("Log " + file + " is closed");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length).putLong(crc.getValue()).put(payload);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        long sequence = ++writtenSequence;
+        if (policy == DurabilityPolicy.SYNC_EACH_COMMIT) {
+            channel.force(false);
+            markDurable(sequence);
+        }
+        return sequence;
+    }
+
+    /**
+     * Blocks until the record with the given sequence number is on disk. Only
+     * {@link DurabilityPolicy#GROUP_SYNC} ever waits here.
+     */
+    public void awaitDurable(long sequence) throws IOException {
+        if (policy != DurabilityPolicy.GROUP_SYNC) {
+            return;
+        }
+        synchronized (durableMonitor) {
+            while (durableSequence < sequence) {
+                if (flushFailure != null) {
+                    throw flushFailure;
+                }
+                if (closed) {
+                    throw new IOException("Log " + file + " was closed before sequence " + sequence + " was forced");
+                }
+                try {
+                    durableMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the log to be forced", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of bytes in the log
+     */
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Forces everything written so far to disk.
+     */
+    public void sync() throws IOException {
+        long sequence = writtenSequence;
+        channel.force(false);
+        markDurable(sequence);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                sync();
+            } finally {
+                closed = true;
+                channel.close();
+            }
+        }
+        if (flusher != null) {
+            flusher.interrupt();
+        }
+        synchronized (durableMonitor) {
+            durableMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Reads every valid record of the log in order.
+     *
+     * @param handler receives the payloads. May be null to only validate the log.
+     * @return the length of the valid prefix of the log
+     */
+    public static long replay(File file, RecordHandler handler) throws IOException {
+        FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = in.size();
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (position + HEADER_SIZE <= size) {
+                header.clear();
+                readFully(in, header, position);
+                header.flip();
+                int length = header.getInt();
+                long checksum = header.getLong();
+                if (length < 0 || position + HEADER_SIZE + length > size) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(in, payload, position + HEADER_SIZE);
+                CRC32 crc = new CRC32();
+                crc.update(payload.array(), 0, length);
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+                if (handler != null) {
+                    handler.handle(payload.array());
+                }
+                position += HEADER_SIZE + length;
+            }
+            return position;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of log");
+            }
+        }
+    }
+
+    private void markDurable(long sequence) {
+        synchronized (durableMonitor) {
+            if (sequence > durableSequence) {
+                durableSequence = sequence;
+            }
+            durableMonitor.notifyAll();
+        }
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(syncIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long sequence = writtenSequence;
+            synchronized (durableMonitor) {
+                if (sequence <= durableSequence) {
+                    continue;
+                }
+            }
+            try {
+                channel.force(false);
+                markDurable(sequence);
+            } catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                synchronized (durableMonitor) {
+                    flushFailure = e;
+                    durableMonitor.notifyAll();
+                }
+            }
+        }
+    }
+}
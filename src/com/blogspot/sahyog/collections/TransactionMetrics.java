@@ -0,0 +1,374 @@
+package com.blogspot.sahyog.collections;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms describing how a transactional map is used. <br />
+ *
+ * All counters are {@link LongAdder}s and the histograms are arrays of them,
+ * so recording never contends between threads. A map records nothing unless
+ * metrics have been enabled on it, see
+ * {@link SingleThreadedTransactionableMap#enableMetrics()}. Values can be read
+ * through {@link #snapshot()} or, once registered, through JMX.
+ */
+public final class TransactionMetrics implements TransactionMetricsMXBean {
+    private final LongAdder begins = new LongAdder();
+    private final LongAdder rejectedBegins = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder aborts = new LongAdder();
+    private final LongAdder rejectedWrites = new LongAdder();
+    private final LongAdder deltaReads = new LongAdder();
+    private final LongAdder baseReads = new LongAdder();
+    private final Histogram commitNanos = new Histogram();
+    private final Histogram transactionNanos = new Histogram();
+    private final Histogram deltaSizes = new Histogram();
+
+    void recordBegin() {
+        begins.increment();
+    }
+
+    void recordRejectedBegin() {
+        rejectedBegins.increment();
+    }
+
+    void recordRejectedWrite() {
+        rejectedWrites.increment();
+    }
+
+    /**
+     * @param startNanos System.nanoTime() when the transaction began
+     * @param commitNanos time spent merging the delta into the map
+     */
+    void recordCommit(long startNanos, long commitNanos, int deltaSize, int deltaReads, int baseReads) {
+        commits.increment();
+        this.commitNanos.record(commitNanos);
+        deltaSizes.record(deltaSize);
+        recordEnd(startNanos, deltaReads, baseReads);
+    }
+
+    void recordAbort(long startNanos, int deltaReads, int baseReads) {
+        aborts.increment();
+        recordEnd(startNanos, deltaReads, baseReads);
+    }
+
+    private void recordEnd(long startNanos, int deltaReads, int baseReads) {
+        transactionNanos.record(System.nanoTime() - startNanos);
+        this.deltaReads.add(deltaReads);
+        this.baseReads.add(baseReads);
+    }
+
+    /**
+     * @return a copy of the current values. Counters are read one after the
+     *         other, so a snapshot taken under load is not exactly consistent.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     *
+     * @param name object name, for example "com.blogspot.sahyog:type=TransactionMetrics,name=orders"
+     */
+    public void registerMBean(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName(name));
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Could not register the metrics as " + name, e);
+        }
+    }
+
+    public void unregisterMBean(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(new ObjectName(name));
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Could not unregister the metrics registered as " + name, e);
+        }
+    }
+
+    @Override
+    public long getBeginCount() {
+        return begins.sum();
+    }
+
+    @Override
+    public long getRejectedBeginCount() {
+        return rejectedBegins.sum();
+    }
+
+    @Override
+    public long getCommitCount() {
+        return commits.sum();
+    }
+
+    @Override
+    public long getAbortCount() {
+        return aborts.sum();
+    }
+
+    @Override
+    public long getRejectedWriteCount() {
+        return rejectedWrites.sum();
+    }
+
+    @Override
+    public long getDeltaReadCount() {
+        return deltaReads.sum();
+    }
+
+    @Override
+    public long getBaseReadCount() {
+        return baseReads.sum();
+    }
+
+    @Override
+    public long getCommitLatencyMedianNanos() {
+        return commitNanos.snapshot().percentile(50);
+    }
+
+    @Override
+    public long getCommitLatency99thPercentileNanos() {
+        return commitNanos.snapshot().percentile(99);
+    }
+
+    @Override
+    public long getCommitLatencyMaxNanos() {
+        return commitNanos.snapshot().getMax();
+    }
+
+    @Override
+    public long getTransactionDuration99thPercentileNanos() {
+        return transactionNanos.snapshot().percentile(99);
+    }
+
+    @Override
+    public long getTransactionDurationMaxNanos() {
+        return transactionNanos.snapshot().getMax();
+    }
+
+    @Override
+    public long getDeltaSize99thPercentile() {
+        return deltaSizes.snapshot().percentile(99);
+    }
+
+    @Override
+    public long getDeltaSizeMax() {
+        return deltaSizes.snapshot().getMax();
+    }
+
+    /**
+     * A histogram of non negative values with buckets of exponentially growing
+     * width. Each power of two range is split into {@value #SUB_BUCKETS}
+     * linear sub buckets, which bounds the error of a reported value to a
+     * quarter of its magnitude.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 2;
+        static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts[indexFor(value)].increment();
+            sum.add(value);
+        }
+
+        HistogramSnapshot snapshot() {
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts[i].sum();
+            }
+            return new HistogramSnapshot(snapshot, sum.sum());
+        }
+
+        static int indexFor(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            int shift = magnitude - SUB_BUCKET_BITS;
+            int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+            return (shift + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        /**
+         * @return the largest value that falls into the bucket
+         */
+        static long highestValueAt(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            long highest = lowest + (1L << shift) - 1;
+            return highest < 0 ? Long.MAX_VALUE : highest;
+        }
+    }
+
+    /**
+     * The recorded values of a histogram at one point in time.
+     */
+    public static final class HistogramSnapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+
+        HistogramSnapshot(long[] counts, long sum) {
+            this.counts = counts;
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            this.count = total;
+            this.sum = sum;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @return an upper bound of the largest recorded value, or 0 if there are none
+         */
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return Histogram.highestValueAt(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return an upper bound of the value below which the given percentage of the recorded values fall, or 0 if
+         *         there are none
+         */
+        public long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return Histogram.highestValueAt(i);
+                }
+            }
+            return getMax();
+        }
+    }
+
+    /**
+     * The values of all the metrics at one point in time.
+     */
+    public static final class Snapshot {
+        private final long beginCount;
+        private final long rejectedBeginCount;
+        private final long commitCount;
+        private final long abortCount;
+        private final long rejectedWriteCount;
+        private final long deltaReadCount;
+        private final long baseReadCount;
+        private final HistogramSnapshot commitLatencyNanos;
+        private final HistogramSnapshot transactionDurationNanos;
+        private final HistogramSnapshot deltaSizes;
+
+        Snapshot(TransactionMetrics metrics) {
+            this.beginCount = metrics.begins.sum();
+            this.rejectedBeginCount = metrics.rejectedBegins.sum();
+            this.commitCount = metrics.commits.sum();
+            this.abortCount = metrics.aborts.sum();
+            this.rejectedWriteCount = metrics.rejectedWrites.sum();
+            this.deltaReadCount = metrics.deltaReads.sum();
+            this.baseReadCount = metrics.baseReads.sum();
+            this.commitLatencyNanos = metrics.commitNanos.snapshot();
+            this.transactionDurationNanos = metrics.transactionNanos.snapshot();
+            this.deltaSizes = metrics.deltaSizes.snapshot();
+        }
+
+        public long getBeginCount() {
+            return beginCount;
+        }
+
+        /**
+         * @return number of beginTransaction() calls that failed because another thread had a transaction open
+         */
+        public long getRejectedBeginCount() {
+            return rejectedBeginCount;
+        }
+
+        public long getCommitCount() {
+            return commitCount;
+        }
+
+        public long getAbortCount() {
+            return abortCount;
+        }
+
+        /**
+         * @return number of writes from outside the transaction that failed because a transaction was open
+         */
+        public long getRejectedWriteCount() {
+            return rejectedWriteCount;
+        }
+
+        /**
+         * @return number of reads inside transactions answered by the transaction's own changes
+         */
+        public long getDeltaReadCount() {
+            return deltaReadCount;
+        }
+
+        /**
+         * @return number of reads inside transactions that went to the committed map
+         */
+        public long getBaseReadCount() {
+            return baseReadCount;
+        }
+
+        /**
+         * @return time spent applying the changes of a transaction to the map
+         */
+        public HistogramSnapshot getCommitLatencyNanos() {
+            return commitLatencyNanos;
+        }
+
+        /**
+         * @return time from begin to commit or abort
+         */
+        public HistogramSnapshot getTransactionDurationNanos() {
+            return transactionDurationNanos;
+        }
+
+        /**
+         * @return number of keys changed by committed transactions
+         */
+        public HistogramSnapshot getDeltaSizes() {
+            return deltaSizes;
+        }
+    }
+}
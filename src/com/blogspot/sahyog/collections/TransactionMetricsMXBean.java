@@ -0,0 +1,35 @@
+package com.blogspot.sahyog.collections;
+
+/**
+ * The JMX view of {@link TransactionMetrics}. Latencies are in nanoseconds
+ * and percentiles are upper bounds of the histogram buckets they fall in.
+ */
+public interface TransactionMetricsMXBean {
+    long getBeginCount();
+
+    long getRejectedBeginCount();
+
+    long getCommitCount();
+
+    long getAbortCount();
+
+    long getRejectedWriteCount();
+
+    long getDeltaReadCount();
+
+    long getBaseReadCount();
+
+    long getCommitLatencyMedianNanos();
+
+    long getCommitLatency99thPercentileNanos();
+
+    long getCommitLatencyMaxNanos();
+
+    long getTransactionDuration99thPercentileNanos();
+
+    long getTransactionDurationMaxNanos();
+
+    long getDeltaSize99thPercentile();
+
+    long getDeltaSizeMax();
+}
@@ -0,0 +1,10 @@
+package com.blogspot.sahyog.collections;
+
+/**
+ * Computes the weight of an entry of a {@link BoundedTransactionableMap}, for
+ * example the approximate number of bytes it uses. The weight of an entry is
+ * computed when it is put and must not be negative.
+ */
+public interface Weigher<K, V> {
+    long weigh(K key, V value);
+}
@@ -0,0 +1,53 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Folds each batch of change events into its net effect and hands it to a
+ * {@link WriteBehindSink} in one call, so that a key written by many commits
+ * is written to the sink once per batch.
+ */
+final class WriteBehindListener<K, V> implements ChangeListener<K, V> {
+    private final WriteBehindSink<K, V> sink;
+
+    WriteBehindListener(WriteBehindSink<K, V> sink) {
+        if (sink == null) {
+            throw new NullPointerException("Write behind sink is null");
+        }
+        this.sink = sink;
+    }
+
+    @Override
+    public void onChanges(List<ChangeEvent<K, V>> events) {
+        boolean cleared = false;
+        Set<K> removedKeys = new HashSet<K>();
+        Map<K, V> puts = new HashMap<K, V>();
+        for (ChangeEvent<K, V> event : events) {
+            if (event.isLoaded()) {
+                continue;
+            }
+            if (event.isCleared()) {
+                cleared = true;
+                removedKeys.clear();
+                puts.clear();
+            }
+            for (K key : event.getRemovedKeys()) {
+                puts.remove(key);
+                if (!cleared) {
+                    removedKeys.add(key);
+                }
+            }
+            for (Map.Entry<K, V> entry : event.getPuts().entrySet()) {
+                removedKeys.remove(entry.getKey());
+                puts.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (cleared || !removedKeys.isEmpty() || !puts.isEmpty()) {
+            sink.write(cleared, removedKeys, puts);
+        }
+    }
+}
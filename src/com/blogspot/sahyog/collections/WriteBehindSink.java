@@ -0,0 +1,22 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Receives the writes made to a map in batches, to copy them to the source of
+ * the data after they were committed.
+ *
+ * @see SingleThreadedTransactionableMap#subscribeWriteBehind(WriteBehindSink, int, int)
+ */
+public interface WriteBehindSink<K, V> {
+    /**
+     * Applies the net effect of one or more consecutive changes: clear first if
+     * cleared, then remove the removed keys, then put the puts. A key appears
+     * at most once among the removed keys and the puts. Loaded values and
+     * evictions are not included.
+     *
+     * @throws RuntimeException to stop the write behind, see {@link ChangeSubscription#getFailure()}
+     */
+    void write(boolean cleared, Set<K> removedKeys, Map<K, V> puts);
+}
@@ -0,0 +1,48 @@
+package com.blogspot.sahyog.json;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens files that may be gzip compressed. Compressed input is recognised by
+ * its magic number rather than by its name, and read as a stream.
+ *
+ * @author puneet
+ *
+ */
+final class GzipStreams {
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private GzipStreams() {
+    }
+
+    static boolean isGzip(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            return input.read() == 0x1f && input.read() == 0x8b;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return a stream of the contents of the file, decompressed if it is gzip compressed. Concatenated gzip members
+     *         are read one after the other.
+     */
+    static InputStream openInput(File file) throws IOException {
+        boolean gzip = isGzip(file);
+        InputStream input = new FileInputStream(file);
+        if (!gzip) {
+            return input;
+        }
+        try {
+            return new GZIPInputStream(input, BUFFER_BYTES);
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+}
@@ -1,16 +1,15 @@
 package com.blogspot.sahyog.json;
 
-import com.fasterxml.jackson.databind.node.ObjectNode;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
-import java.util.Stack;
 import com.fasterxml.jackson.core.JsonToken;
-import com.fasterxml.jackson.core.JsonGenerator.Feature;
 import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonFactory;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 
 /**
  * The objective of this class is to convert a file which has an array of json
@@ -18,36 +17,89 @@ import java.io.File;
  * the array is on its own line. This allows for this file to be split along
  * line boundaries for processing by splittable input file consumers like hadoop
  *
+ * Objects are copied token by token from the parser to the generator, so no
+ * tree is built for a record and memory use does not depend on the size of
+ * the records or of the file. Given a number of threads greater than one, the
+ * work is spread over that many cores by {@link ParallelJsonArraySplitter}.
+ * With -raw the objects are reformatted byte by byte by
+ * {@link RawSingleLineReformatter}, which keeps strings and numbers exactly as
+ * they are in the input, and -validate has it check the input with a parser.
+ * With -parts the output is a directory of part files of about the given
+ * number of bytes and a manifest, see {@link ParallelJsonArraySplitter}.
+ * Gzip compressed input is read as a stream. With -gzip the output is always
+ * written by {@link ParallelJsonArraySplitter}, even with one thread, so that
+ * the compression runs off the parsing thread and the output is cut into
+ * indexed gzip members a reader can split on.
+ *
  * @author puneet
  *
  */
 public class JsonArraySingleLineObjects {
 
     public static void main(String args[]) throws Exception {
-        if (args.length != 2) {
-            System.err.println("usage: JsonArraySingleLineObjects ipFile opFile");
+        boolean raw = false;
+        boolean validate = false;
+        long partBytes = 0;
+        boolean compress = false;
+        int firstArg = 0;
+        for (; firstArg < args.length && args[firstArg].startsWith("-"); firstArg++) {
+            if (args[firstArg].equals("-raw")) {
+                raw = true;
+            } else if (args[firstArg].equals("-validate")) {
+                validate = true;
+            } else if (args[firstArg].equals("-gzip")) {
+                compress = true;
+            } else if (args[firstArg].equals("-parts") && firstArg + 1 < args.length) {
+                partBytes = Long.parseLong(args[++firstArg]);
+            } else {
+                break;
+            }
+        }
+        if (args.length - firstArg != 2 && args.length - firstArg != 3) {
+            System.err.println("usage: JsonArraySingleLineObjects [-raw [-validate]] [-parts bytes] [-gzip] ipFile opFile [threads]");
             System.exit(1);
         }
+        args = Arrays.copyOfRange(args, firstArg, args.length);
         File ipFile = new File(args[0]);
         if (!ipFile.exists()) {
             System.err.println("File:" + ipFile.getAbsolutePath() + " does not exist");
             System.exit(1);
         }
         File opFile = new File(args[1]);
+        int threads = args.length == 3 ? Integer.parseInt(args[2]) : 1;
+        if (threads > 1 || partBytes > 0 || compress) {
+            long numRecords = new ParallelJsonArraySplitter(threads, raw, validate, partBytes, compress).split(ipFile, opFile);
+            System.out.println("Wrote: " + numRecords);
+            return;
+        }
+        if (raw) {
+            InputStream input = GzipStreams.openInput(ipFile);
+            try {
+                OutputStream output = new FileOutputStream(opFile);
+                try {
+                    System.out.println("Wrote: " + RawSingleLineReformatter.reformat(input, output, validate));
+                } finally {
+                    output.close();
+                }
+            } finally {
+                input.close();
+            }
+            return;
+        }
         JsonFactory factory = new JsonFactory();
-        ObjectMapper mapper = new ObjectMapper(factory);
+        String lineSeparator = System.getProperty("line.separator");
         JsonParser jp = null;
         JsonGenerator jgen = null;
-        int numRecords = 0;
+        long numRecords = 0;
         try {
-            jp = factory.createParser(ipFile);
-            jgen = factory.createGenerator(opFile, JsonEncoding.UTF8);
+            jp = factory.createParser(GzipStreams.openInput(ipFile));
+            jgen = factory.createGenerator(new FileOutputStream(opFile), JsonEncoding.UTF8);
             if (jp.nextToken() != JsonToken.START_ARRAY) {
                 System.err.println("Improper format. The file should have just a json array of objects");
                 System.exit(1);
             }
             jgen.writeStartArray();
-            jgen.writeRaw(System.getProperty("line.separator"));
+            jgen.writeRaw(lineSeparator);
             while (true) {
                 JsonToken token = jp.nextToken();
                 if (token == JsonToken.END_ARRAY) {
@@ -57,9 +109,9 @@ public class JsonArraySingleLineObjects {
                     System.err.println("Improper format. The file should have just a json array of objects");
                     System.exit(1);
                 }
-                ObjectNode node = mapper.readTree(jp);
-                jgen.writeTree(node);
-                jgen.writeRaw(System.getProperty("line.separator"));
+                // Streams the object's tokens into the generator's buffer, which is reused from record to record
+                jgen.copyCurrentStructure(jp);
+                jgen.writeRaw(lineSeparator);
                 numRecords++;
             }
             jgen.writeEndArray();
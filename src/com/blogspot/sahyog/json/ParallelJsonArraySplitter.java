@@ -0,0 +1,885 @@
+package com.blogspot.sahyog.json;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Does what {@link JsonArraySingleLineObjects} does using several cores. The
+ * output is the same. <br />
+ *
+ * The input is memory mapped and scanned once, byte by byte, for the bounds of
+ * the objects of the top level array. The scan only looks at quotes,
+ * backslashes and brackets, tracking whether it is inside a string, so it
+ * runs far faster than a parser. It cuts the objects into batches of about
+ * {@link #BATCH_BYTES} which worker threads reformat with a parser and a
+ * generator each. A writer thread writes the batches in their original order.
+ * At most two batches per worker are in flight, and their output buffers are
+ * reused, so memory use does not depend on the size of the file. <br />
+ *
+ * In raw mode the workers reformat with a {@link RawSingleLineReformatter}
+ * straight from the mapped file instead of parsing. <br />
+ *
+ * Given a part size, the output is a directory of part files instead of one
+ * file. Each part holds whole lines, one object per line without the commas
+ * and brackets of the array, so each is valid on its own as json lines. A
+ * part is closed before it would grow past the part size, unless it holds a
+ * single batch larger than that. Batches are assigned to parts and offsets in
+ * order and written by a pool of writer threads. A manifest lists each part
+ * with its record count, its size, its offset in the concatenation of the
+ * parts and the range of the input it came from. <br />
+ *
+ * Gzip compressed input is read as a stream, without decompressing it to
+ * disk. The scanner decompresses it and copies the bytes of each batch out
+ * for the workers, so only the decompression itself is serial. With
+ * compression on, each worker gzips its own batch, so compression is spread
+ * over the workers too. Every batch becomes a gzip member of its own, starting
+ * at a record boundary, and the members are written one after the other,
+ * which is still a valid gzip file. Each part is a whole gzip file. The
+ * members of the batches are listed with their compressed and uncompressed
+ * offsets and the number of their first record, in the manifest or, for a
+ * single file, in an index file next to it named with {@link #INDEX_SUFFIX}.
+ * A reader can begin decompressing at any of them.
+ *
+ * @author puneet
+ *
+ */
+public final class ParallelJsonArraySplitter {
+    static final int BATCH_BYTES = 8 * 1024 * 1024;
+    /** Largest size of one mapping. A file is mapped as consecutive windows of this size. */
+    private static final long WINDOW_BYTES = 1L << 30;
+    private static final String PART_NAME = "part-%05d.json";
+    private static final String COMPRESSED_PART_NAME = PART_NAME + ".gz";
+    private static final int STREAM_CHUNK_BYTES = 1024 * 1024;
+    static final String MANIFEST_NAME = "manifest.json";
+    /** Appended to the name of a single compressed output file to name its member index */
+    static final String INDEX_SUFFIX = ".index.json";
+    /** Marks the end of the results for the writer */
+    private static final Future<Batch> END = CompletableFuture.completedFuture(null);
+    /** Input bytes of the batch being reformatted, kept per worker thread and grown as needed */
+    private static final ThreadLocal<byte[]> INPUT = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BATCH_BYTES + BATCH_BYTES / 4];
+        }
+    };
+    /** Uncompressed output of the batch being reformatted when compressing, kept per worker thread */
+    private static final ThreadLocal<ByteArrayOutputStream> UNCOMPRESSED = new ThreadLocal<ByteArrayOutputStream>() {
+        @Override
+        protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream(BATCH_BYTES + BATCH_BYTES / 4);
+        }
+    };
+    /** Output of raw reformatting on its way to the batch's buffer, kept per worker thread */
+    private static final ThreadLocal<ByteBuffer> RAW_OUTPUT = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(64 * 1024);
+        }
+    };
+
+    private final JsonFactory factory = new JsonFactory();
+    private final String lineSeparator = System.getProperty("line.separator");
+    private final int threads;
+    private final boolean raw;
+    private final boolean validate;
+    /** Target size of a part file, 0 to write a single file */
+    private final long partBytes;
+    private final int batchBytes;
+    private final boolean compress;
+
+    public ParallelJsonArraySplitter(int threads) {
+        this(threads, false, false, 0, false);
+    }
+
+    public ParallelJsonArraySplitter(int threads, boolean raw, boolean validate, long partBytes) {
+        this(threads, raw, validate, partBytes, false);
+    }
+
+    /**
+     * @param raw whether to reformat the bytes without parsing, see {@link RawSingleLineReformatter}
+     * @param validate whether raw reformatting also validates the objects
+     * @param partBytes target size of the part files, for example the block size of the file system. 0 to write a
+     *            single file.
+     * @param compress whether to gzip the output, as one member per batch. The part size then applies to the
+     *            compressed size.
+     */
+    public ParallelJsonArraySplitter(int threads, boolean raw, boolean validate, long partBytes, boolean compress) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads must be positive " + threads);
+        }
+        if (partBytes < 0) {
+            throw new IllegalArgumentException("Part size must not be negative " + partBytes);
+        }
+        this.threads = threads;
+        this.raw = raw;
+        this.validate = validate;
+        this.partBytes = partBytes;
+        this.compress = compress;
+        // Several batches to a part, so that parts come out close to their target size
+        this.batchBytes = partBytes == 0 ? BATCH_BYTES : (int) Math.min(BATCH_BYTES, Math.max(partBytes / 8, 64 * 1024));
+        // Objects are parsed as a sequence of root values and written one per line by hand
+        factory.setRootValueSeparator(null);
+    }
+
+    /**
+     * @param ipFile the input, read as a stream if it is gzip compressed
+     * @param opFile the output file, or the directory of the part files which is created if needed
+     * @return number of objects written
+     * @throws IOException if the file cannot be read or written, or is not a json array of objects
+     */
+    public long split(File ipFile, File opFile) throws IOException {
+        if (GzipStreams.isGzip(ipFile)) {
+            InputStream input = GzipStreams.openInput(ipFile);
+            try {
+                return split(input, opFile);
+            } finally {
+                input.close();
+            }
+        }
+        RandomAccessFile input = new RandomAccessFile(ipFile, "r");
+        try {
+            return split(map(input.getChannel()), null, opFile);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads the input as a stream instead of mapping it, which costs a copy of the bytes. The stream is not closed.
+     *
+     * @param opFile the output file, or the directory of the part files which is created if needed
+     * @return number of objects written
+     * @throws IOException if the stream cannot be read or the output written, or is not a json array of objects
+     */
+    public long split(InputStream input, File opFile) throws IOException {
+        return split(null, input, opFile);
+    }
+
+    private long split(MappedByteBuffer[] windows, InputStream input, File opFile) throws IOException {
+        if (partBytes > 0) {
+            String[] existing = opFile.list();
+            if (existing != null && existing.length > 0) {
+                throw new IOException("Output directory " + opFile + " is not empty");
+            }
+            if (!opFile.isDirectory() && !opFile.mkdirs()) {
+                throw new IOException("Could not create directory " + opFile);
+            }
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        ExecutorService writerThread = Executors.newSingleThreadExecutor();
+        ExecutorService partWriters = partBytes > 0 ? Executors.newFixedThreadPool(threads) : null;
+        OutputStream output = null;
+        try {
+            if (partBytes == 0) {
+                output = new FileOutputStream(opFile);
+            }
+            BlockingQueue<Batch> buffers = new ArrayBlockingQueue<Batch>(2 * threads);
+            for (int i = 0; i < 2 * threads; i++) {
+                buffers.add(new Batch(batchBytes + batchBytes / 4));
+            }
+            BlockingQueue<Future<Batch>> results = new LinkedBlockingQueue<Future<Batch>>();
+            Future<Void> writer = writerThread.submit(partBytes == 0 ? new Writer(opFile, output, results, buffers)
+                    : new PartWriter(opFile, results, buffers, partWriters));
+            long numRecords;
+            try {
+                Scanner scanner = new Scanner(windows, workers, buffers, results, writer);
+                numRecords = windows != null ? scanner.scan() : scanner.scan(input);
+            } finally {
+                results.add(END);
+            }
+            await(writer);
+            return numRecords;
+        } finally {
+            workers.shutdownNow();
+            writerThread.shutdownNow();
+            if (partWriters != null) {
+                partWriters.shutdownNow();
+            }
+            if (output != null) {
+                output.close();
+            }
+        }
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel) throws IOException {
+        long size = channel.size();
+        MappedByteBuffer[] windows = new MappedByteBuffer[(int) ((size + WINDOW_BYTES - 1) / WINDOW_BYTES)];
+        for (int i = 0; i < windows.length; i++) {
+            long position = i * WINDOW_BYTES;
+            windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_BYTES, size - position));
+        }
+        return windows;
+    }
+
+    private static void await(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            // The writer fails with the exception of the worker whose result it was waiting for
+            while (cause instanceof ExecutionException) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Copies bytes of the file, which may span windows, into the array.
+     */
+    private static void read(MappedByteBuffer[] windows, long position, byte[] dst, int length) {
+        int copied = 0;
+        while (copied < length) {
+            long at = position + copied;
+            ByteBuffer window = windows[(int) (at / WINDOW_BYTES)].duplicate();
+            window.position((int) (at % WINDOW_BYTES));
+            int n = Math.min(length - copied, window.remaining());
+            window.get(dst, copied, n);
+            copied += n;
+        }
+    }
+
+    /**
+     * Finds the objects of the top level array and hands them to the workers in batches.
+     */
+    private final class Scanner {
+        private final MappedByteBuffer[] windows;
+        private final ExecutorService workers;
+        private final BlockingQueue<Batch> buffers;
+        private final BlockingQueue<Future<Batch>> results;
+        private final Future<Void> writer;
+        private long[] starts = new long[1024];
+        private long[] ends = new long[1024];
+        private int batchSize = 0;
+        private long numRecords = 0;
+        private int depth = 0;
+        private boolean inString = false;
+        private boolean escaped = false;
+        private boolean ended = false;
+        /** Commas seen at depth 1 since the last object, exactly one must separate two objects */
+        private int commas = 0;
+        private long objectStart = -1;
+        /** When reading a stream, the bytes read from {@link #pendingBase} on */
+        private byte[] pending;
+        private long pendingBase;
+        private int pendingLength;
+        /** End of the last batch, the bytes before it are dropped from the pending bytes before the next read */
+        private long batchedTo;
+
+        Scanner(MappedByteBuffer[] windows, ExecutorService workers, BlockingQueue<Batch> buffers,
+                BlockingQueue<Future<Batch>> results, Future<Void> writer) {
+            this.windows = windows;
+            this.workers = workers;
+            this.buffers = buffers;
+            this.results = results;
+            this.writer = writer;
+        }
+
+        long scan() throws IOException {
+            for (int w = 0; w < windows.length; w++) {
+                scan(windows[w], w * WINDOW_BYTES);
+            }
+            return finish();
+        }
+
+        long scan(InputStream input) throws IOException {
+            pending = new byte[batchBytes + batchBytes / 4 + STREAM_CHUNK_BYTES];
+            long base = 0;
+            while (true) {
+                int batched = (int) (batchedTo - pendingBase);
+                System.arraycopy(pending, batched, pending, 0, pendingLength - batched);
+                pendingLength -= batched;
+                pendingBase = batchedTo;
+                if (pending.length - pendingLength < STREAM_CHUNK_BYTES) {
+                    // An object larger than the buffer
+                    pending = Arrays.copyOf(pending, pending.length * 2);
+                }
+                int n = input.read(pending, pendingLength, STREAM_CHUNK_BYTES);
+                if (n < 0) {
+                    break;
+                }
+                int offset = pendingLength;
+                pendingLength += n;
+                scan(ByteBuffer.wrap(pending, offset, n), base);
+                base += n;
+            }
+            return finish();
+        }
+
+        /**
+         * Scans the bytes of the buffer from its position to its limit, which are at the given offset of the input
+         * less the position.
+         */
+        private void scan(ByteBuffer chunk, long base) throws IOException {
+            int limit = chunk.limit();
+            for (int i = chunk.position(); i < limit; i++) {
+                byte b = chunk.get(i);
+                if (inString) {
+                    if (escaped) {
+                        escaped = false;
+                    } else if (b == '\\') {
+                        escaped = true;
+                    } else if (b == '"') {
+                        inString = false;
+                    }
+                    continue;
+                }
+                if (ended) {
+                    if (!isWhitespace(b)) {
+                        throw improperFormat();
+                    }
+                    continue;
+                }
+                switch (b) {
+                case '"':
+                    if (depth < 2) {
+                        throw improperFormat();
+                    }
+                    inString = true;
+                    break;
+                case '{':
+                case '[':
+                    if (depth == 0 ? b != '[' : depth == 1 && (b != '{' || commas != (numRecords == 0 ? 0 : 1))) {
+                        throw improperFormat();
+                    }
+                    if (depth == 1) {
+                        objectStart = base + i - chunk.position();
+                    }
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    if (depth == 1) {
+                        if (b != '}') {
+                            throw improperFormat();
+                        }
+                        addObject(objectStart, base + i - chunk.position() + 1);
+                        commas = 0;
+                    } else if (depth == 0) {
+                        if (b != ']' || commas != 0) {
+                            throw improperFormat();
+                        }
+                        ended = true;
+                    } else if (depth < 0) {
+                        throw improperFormat();
+                    }
+                    break;
+                case ',':
+                    if (depth == 1) {
+                        commas++;
+                    }
+                    break;
+                default:
+                    if (depth < 2 && !isWhitespace(b)) {
+                        throw improperFormat();
+                    }
+                }
+            }
+        }
+
+        private long finish() throws IOException {
+            if (!ended) {
+                throw improperFormat();
+            }
+            if (batchSize > 0) {
+                submitBatch();
+            }
+            return numRecords;
+        }
+
+        private void addObject(long start, long end) throws IOException {
+            if (batchSize == starts.length) {
+                starts = Arrays.copyOf(starts, batchSize * 2);
+                ends = Arrays.copyOf(ends, batchSize * 2);
+            }
+            starts[batchSize] = start;
+            ends[batchSize] = end;
+            batchSize++;
+            numRecords++;
+            if (end - starts[0] >= batchBytes) {
+                submitBatch();
+            }
+        }
+
+        private void submitBatch() throws IOException {
+            Batch buffer = takeBuffer();
+            byte[] input = null;
+            if (pending != null) {
+                batchedTo = ends[batchSize - 1];
+                input = Arrays.copyOfRange(pending, (int) (starts[0] - pendingBase), (int) (batchedTo - pendingBase));
+            }
+            results.add(workers.submit(new Reformatter(windows, input, Arrays.copyOf(starts, batchSize), Arrays.copyOf(ends, batchSize),
+                    numRecords == batchSize, buffer)));
+            batchSize = 0;
+        }
+
+        /**
+         * Waits for a free output buffer, which bounds the batches in flight. Fails if the writer failed.
+         */
+        private Batch takeBuffer() throws IOException {
+            while (true) {
+                if (writer.isDone()) {
+                    await(writer);
+                    throw new IOException("Writer ended early");
+                }
+                try {
+                    Batch buffer = buffers.poll(100, TimeUnit.MILLISECONDS);
+                    if (buffer != null) {
+                        return buffer;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                }
+            }
+        }
+
+        private IOException improperFormat() {
+            return new IOException("Improper format. The file should have just a json array of objects");
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    /**
+     * Reformats one batch of objects into an output buffer.
+     */
+    private final class Reformatter implements Callable<Batch> {
+        private final MappedByteBuffer[] windows;
+        /** The bytes of the batch when reading a stream, null to read them from the windows */
+        private final byte[] input;
+        private final long[] starts;
+        private final long[] ends;
+        private final boolean firstBatch;
+        private final Batch buffer;
+
+        Reformatter(MappedByteBuffer[] windows, byte[] input, long[] starts, long[] ends, boolean firstBatch, Batch buffer) {
+            this.windows = windows;
+            this.input = input;
+            this.starts = starts;
+            this.ends = ends;
+            this.firstBatch = firstBatch;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public Batch call() throws IOException {
+            long base = starts[0];
+            int length = (int) (ends[ends.length - 1] - base);
+            buffer.records = starts.length;
+            buffer.inputStart = base;
+            buffer.inputEnd = base + length;
+            if (!compress) {
+                reformat(buffer, base, length);
+                buffer.uncompressedBytes = buffer.size();
+                return buffer;
+            }
+            ByteArrayOutputStream uncompressed = UNCOMPRESSED.get();
+            uncompressed.reset();
+            reformat(uncompressed, base, length);
+            buffer.uncompressedBytes = uncompressed.size();
+            GZIPOutputStream gzip = new GZIPOutputStream(buffer, 64 * 1024);
+            uncompressed.writeTo(gzip);
+            gzip.close();
+            return buffer;
+        }
+
+        private void reformat(ByteArrayOutputStream output, long base, int length) throws IOException {
+            if (raw) {
+                reformatRaw(output, base, base + length);
+                return;
+            }
+            byte[] bytes = input;
+            if (bytes == null) {
+                bytes = INPUT.get();
+                if (bytes.length < length) {
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                    INPUT.set(bytes);
+                }
+                read(windows, base, bytes, length);
+            }
+            // Blank the commas between the objects so that the parser sees a sequence of root level objects
+            for (int i = 1; i < starts.length; i++) {
+                Arrays.fill(bytes, (int) (ends[i - 1] - base), (int) (starts[i] - base), (byte) ' ');
+            }
+            JsonParser jp = factory.createParser(bytes, 0, length);
+            JsonGenerator jgen = factory.createGenerator(output, JsonEncoding.UTF8);
+            try {
+                boolean first = firstBatch;
+                while (jp.nextToken() == JsonToken.START_OBJECT) {
+                    if (!first && partBytes == 0) {
+                        jgen.writeRaw(',');
+                    }
+                    first = false;
+                    jgen.copyCurrentStructure(jp);
+                    jgen.writeRaw(lineSeparator);
+                }
+            } finally {
+                jp.close();
+                jgen.close();
+            }
+        }
+
+        private void reformatRaw(ByteArrayOutputStream output, long start, long end) throws IOException {
+            RawSingleLineReformatter reformatter = partBytes == 0 ? RawSingleLineReformatter.forElements(firstBatch, validate)
+                    : RawSingleLineReformatter.forLines(validate);
+            ByteBuffer out = RAW_OUTPUT.get();
+            out.clear();
+            if (input != null) {
+                ByteBuffer in = ByteBuffer.wrap(input);
+                while (!reformatter.reformat(in, out)) {
+                    drain(output, out);
+                }
+            }
+            long position = input != null ? end : start;
+            while (position < end) {
+                ByteBuffer in = windows[(int) (position / WINDOW_BYTES)].duplicate();
+                in.position((int) (position % WINDOW_BYTES));
+                in.limit((int) Math.min(in.limit(), in.position() + (end - position)));
+                position += in.remaining();
+                while (!reformatter.reformat(in, out)) {
+                    drain(output, out);
+                }
+            }
+            reformatter.finish();
+            drain(output, out);
+        }
+
+        private void drain(ByteArrayOutputStream output, ByteBuffer out) {
+            output.write(out.array(), out.arrayOffset(), out.position());
+            out.clear();
+        }
+    }
+
+    /**
+     * Writes the reformatted batches in order and hands their buffers back.
+     */
+    private final class Writer implements Callable<Void> {
+        private final File file;
+        private final OutputStream output;
+        private final BlockingQueue<Future<Batch>> results;
+        private final BlockingQueue<Batch> buffers;
+        private final List<Member> members = new ArrayList<Member>();
+        private long offset = 0;
+        private long uncompressedOffset = 0;
+
+        Writer(File file, OutputStream output, BlockingQueue<Future<Batch>> results, BlockingQueue<Batch> buffers) {
+            this.file = file;
+            this.output = output;
+            this.results = results;
+            this.buffers = buffers;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            writeFraming('[' + lineSeparator);
+            long records = 0;
+            while (true) {
+                Future<Batch> result = results.take();
+                if (result == END) {
+                    break;
+                }
+                Batch buffer = result.get();
+                if (compress) {
+                    members.add(new Member(offset, uncompressedOffset, records, buffer.records));
+                }
+                buffer.writeTo(output);
+                offset += buffer.size();
+                uncompressedOffset += buffer.uncompressedBytes;
+                records += buffer.records;
+                buffer.reset();
+                buffers.add(buffer);
+            }
+            writeFraming("]");
+            if (compress) {
+                writeIndex(records);
+            }
+            return null;
+        }
+
+        /**
+         * Writes the brackets around the batches, as gzip members of their own when compressing.
+         */
+        private void writeFraming(String framing) throws IOException {
+            byte[] bytes = framing.getBytes("UTF-8");
+            uncompressedOffset += bytes.length;
+            if (!compress) {
+                output.write(bytes);
+                offset += bytes.length;
+                return;
+            }
+            ByteArrayOutputStream member = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(member);
+            gzip.write(bytes);
+            gzip.close();
+            member.writeTo(output);
+            offset += member.size();
+        }
+
+        /**
+         * Lists the members of the batches. The brackets of the array are in members of their own before and after
+         * them, and every line but the first record's starts with the comma before its record.
+         */
+        private void writeIndex(long records) throws IOException {
+            JsonGenerator jgen = factory.createGenerator(new File(file.getPath() + INDEX_SUFFIX), JsonEncoding.UTF8);
+            try {
+                jgen.useDefaultPrettyPrinter();
+                jgen.writeStartObject();
+                jgen.writeStringField("file", file.getName());
+                jgen.writeNumberField("records", records);
+                jgen.writeNumberField("bytes", offset);
+                jgen.writeNumberField("uncompressedBytes", uncompressedOffset);
+                writeMembers(jgen, members);
+                jgen.writeEndObject();
+            } finally {
+                jgen.close();
+            }
+        }
+    }
+
+    private static void writeMembers(JsonGenerator jgen, List<Member> members) throws IOException {
+        jgen.writeArrayFieldStart("members");
+        for (Member member : members) {
+            jgen.writeStartObject();
+            jgen.writeNumberField("offset", member.offset);
+            jgen.writeNumberField("uncompressedOffset", member.uncompressedOffset);
+            jgen.writeNumberField("firstRecord", member.firstRecord);
+            jgen.writeNumberField("records", member.records);
+            jgen.writeEndObject();
+        }
+        jgen.writeEndArray();
+    }
+
+    /**
+     * A gzip member holding one batch. Its offsets are in the file it was written to.
+     */
+    static final class Member {
+        final long offset;
+        final long uncompressedOffset;
+        final long firstRecord;
+        final long records;
+
+        Member(long offset, long uncompressedOffset, long firstRecord, long records) {
+            this.offset = offset;
+            this.uncompressedOffset = uncompressedOffset;
+            this.firstRecord = firstRecord;
+            this.records = records;
+        }
+    }
+
+    /**
+     * Writes the reformatted batches to part files and the manifest once they are all written.
+     */
+    private final class PartWriter implements Callable<Void> {
+        private final File directory;
+        private final BlockingQueue<Future<Batch>> results;
+        private final BlockingQueue<Batch> buffers;
+        private final ExecutorService partWriters;
+        private final List<Part> parts = new ArrayList<Part>();
+
+        PartWriter(File directory, BlockingQueue<Future<Batch>> results, BlockingQueue<Batch> buffers, ExecutorService partWriters) {
+            this.directory = directory;
+            this.results = results;
+            this.buffers = buffers;
+            this.partWriters = partWriters;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            Part current = null;
+            // The previous part may still have writes in flight, it is closed when the next one fills up
+            Part closing = null;
+            long offset = 0;
+            long uncompressedBytes = 0;
+            long records = 0;
+            try {
+                while (true) {
+                    Future<Batch> result = results.take();
+                    if (result == END) {
+                        break;
+                    }
+                    Batch batch = result.get();
+                    if (current == null || (current.bytes > 0 && current.bytes + batch.size() > partBytes)) {
+                        if (closing != null) {
+                            closing.close();
+                        }
+                        closing = current;
+                        current = new Part(new File(directory, String.format(compress ? COMPRESSED_PART_NAME : PART_NAME, parts.size())),
+                                offset, records);
+                        parts.add(current);
+                    }
+                    offset += batch.size();
+                    uncompressedBytes += batch.uncompressedBytes;
+                    records += batch.records;
+                    current.write(batch);
+                }
+            } finally {
+                if (closing != null) {
+                    closing.close();
+                }
+                if (current != null) {
+                    current.close();
+                }
+            }
+            writeManifest(records, offset, uncompressedBytes);
+            return null;
+        }
+
+        private void writeManifest(long records, long bytes, long uncompressedBytes) throws IOException {
+            JsonGenerator jgen = factory.createGenerator(new File(directory, MANIFEST_NAME), JsonEncoding.UTF8);
+            try {
+                jgen.useDefaultPrettyPrinter();
+                jgen.writeStartObject();
+                jgen.writeNumberField("records", records);
+                jgen.writeNumberField("bytes", bytes);
+                if (compress) {
+                    jgen.writeNumberField("uncompressedBytes", uncompressedBytes);
+                }
+                jgen.writeArrayFieldStart("parts");
+                for (Part part : parts) {
+                    jgen.writeStartObject();
+                    jgen.writeStringField("file", part.file.getName());
+                    jgen.writeNumberField("records", part.records);
+                    jgen.writeNumberField("firstRecord", part.firstRecord);
+                    jgen.writeNumberField("bytes", part.bytes);
+                    if (compress) {
+                        jgen.writeNumberField("uncompressedBytes", part.uncompressedBytes);
+                    }
+                    jgen.writeNumberField("offset", part.offset);
+                    jgen.writeNumberField("inputOffset", part.inputStart);
+                    jgen.writeNumberField("inputBytes", part.inputEnd - part.inputStart);
+                    if (compress) {
+                        writeMembers(jgen, part.members);
+                    }
+                    jgen.writeEndObject();
+                }
+                jgen.writeEndArray();
+                jgen.writeEndObject();
+            } finally {
+                jgen.close();
+            }
+        }
+
+        /**
+         * One part file. Its batches are written at their offsets by the writer pool, in any order.
+         */
+        private final class Part {
+            final File file;
+            final FileChannel channel;
+            final long offset;
+            final long firstRecord;
+            long records;
+            long bytes;
+            long uncompressedBytes;
+            long inputStart = -1;
+            long inputEnd;
+            final List<Member> members = new ArrayList<Member>();
+            final List<Future<?>> writes = new ArrayList<Future<?>>();
+
+            Part(File file, long offset, long firstRecord) throws IOException {
+                this.file = file;
+                this.channel = new RandomAccessFile(file, "rw").getChannel();
+                this.offset = offset;
+                this.firstRecord = firstRecord;
+            }
+
+            void write(final Batch batch) {
+                final long position = bytes;
+                if (compress) {
+                    members.add(new Member(position, uncompressedBytes, firstRecord + records, batch.records));
+                }
+                bytes += batch.size();
+                uncompressedBytes += batch.uncompressedBytes;
+                records += batch.records;
+                if (inputStart < 0) {
+                    inputStart = batch.inputStart;
+                }
+                inputEnd = batch.inputEnd;
+                writes.add(partWriters.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        ByteBuffer contents = batch.contents();
+                        long at = position;
+                        while (contents.hasRemaining()) {
+                            at += channel.write(contents, at);
+                        }
+                        batch.reset();
+                        buffers.add(batch);
+                        return null;
+                    }
+                }));
+            }
+
+            /**
+             * Waits for the writes of the part and closes it.
+             */
+            void close() throws IOException {
+                try {
+                    for (Future<?> write : writes) {
+                        await(write);
+                    }
+                } finally {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * The output of one batch along with what the writers need to know about it.
+     */
+    static final class Batch extends ByteArrayOutputStream {
+        int records;
+        /** Size of the output before compression */
+        int uncompressedBytes;
+        long inputStart;
+        long inputEnd;
+
+        Batch(int size) {
+            super(size);
+        }
+
+        /**
+         * @return the bytes written so far, without copying them
+         */
+        ByteBuffer contents() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
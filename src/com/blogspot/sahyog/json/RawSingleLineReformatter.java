@@ -0,0 +1,401 @@
+package com.blogspot.sahyog.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Puts each object of a json array on its own line by working on the bytes
+ * alone, without parsing values or decoding strings. Whitespace outside of
+ * strings is dropped and everything else is copied as it is, so strings keep
+ * their escapes and numbers their exact text. The framing is the same as that
+ * of {@link JsonArraySingleLineObjects}: the opening bracket on its own line,
+ * then one object per line, each after the first starting with the comma that
+ * separates it from the previous one, then the closing bracket. <br />
+ *
+ * The input is fed in buffers of any size, the state (inside a string, after
+ * a backslash, nesting depth) carries over from one buffer to the next.
+ * Runs of string contents are found eight bytes at a time, testing each word
+ * for a quote or a backslash with a few arithmetic operations, and copied at
+ * once. Nothing is allocated per record. <br />
+ *
+ * Only the structure of the top level array is checked: it must hold objects
+ * separated by single commas. With validation on, the input is also fed to
+ * Jackson's non blocking parser, which checks everything else at the cost of
+ * tokenizing.
+ *
+ * @author puneet
+ *
+ */
+public final class RawSingleLineReformatter {
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final int SCRATCH_BYTES = 64 * 1024;
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long QUOTES = ONES * '"';
+    private static final long BACKSLASHES = ONES * '\\';
+
+    private final byte[] lineSeparator;
+    /** Most bytes written for one byte read: a closing brace or the opening bracket followed by the line separator */
+    private final int maxExpansion;
+    private final JsonParser validator;
+    private final ByteArrayFeeder feeder;
+    /** Copies of buffers not backed by arrays */
+    private byte[] scratchIn;
+    private byte[] scratchOut;
+    /** View of the input array for reading it a word at a time */
+    private byte[] srcWordsArray;
+    private ByteBuffer srcWords;
+    /** Where the last call stopped in the input and the output arrays */
+    private int consumedTo;
+    private int producedTo;
+    private int depth;
+    private boolean inString;
+    private boolean escaped;
+    private boolean ended;
+    private boolean firstElement;
+    private final boolean elementsOnly;
+    private final boolean commaSeparated;
+    /** Commas seen at depth 1 since the last object, exactly one must separate two objects */
+    private int commas;
+    private long numRecords;
+
+    private RawSingleLineReformatter(boolean elementsOnly, boolean firstElement, boolean commaSeparated, boolean validate)
+            throws IOException {
+        this.lineSeparator = System.getProperty("line.separator").getBytes("UTF-8");
+        this.maxExpansion = 1 + lineSeparator.length;
+        this.elementsOnly = elementsOnly;
+        this.firstElement = firstElement;
+        this.commaSeparated = commaSeparated;
+        this.depth = elementsOnly ? 1 : 0;
+        if (validate) {
+            validator = new JsonFactory().createNonBlockingByteArrayParser();
+            feeder = (ByteArrayFeeder) validator.getNonBlockingInputFeeder();
+            if (elementsOnly) {
+                // The elements are validated as the contents of an array which is never closed
+                validate(new byte[] { '[' }, 0, 1);
+            }
+        } else {
+            validator = null;
+            feeder = null;
+        }
+    }
+
+    /**
+     * @return a reformatter for a whole json array
+     */
+    public static RawSingleLineReformatter forArray(boolean validate) throws IOException {
+        return new RawSingleLineReformatter(false, true, true, validate);
+    }
+
+    /**
+     * @param firstElement whether the first object fed is the first of the array, which is written without a comma
+     * @return a reformatter for a run of consecutive objects from inside an array, with the commas between them
+     */
+    static RawSingleLineReformatter forElements(boolean firstElement, boolean validate) throws IOException {
+        return new RawSingleLineReformatter(true, firstElement, true, validate);
+    }
+
+    /**
+     * @return a reformatter for a run of consecutive objects from inside an array, which writes them as json lines,
+     *         one object per line without commas
+     */
+    static RawSingleLineReformatter forLines(boolean validate) throws IOException {
+        return new RawSingleLineReformatter(true, true, false, validate);
+    }
+
+    /**
+     * Reformats the bytes of the input into the output, until the input is
+     * empty or the output might not have room for what the next byte needs.
+     * Call again with the same input once the output has been drained.
+     * Buffers backed by arrays are worked on in place, others are copied in
+     * and out in bulk.
+     *
+     * @return true if the whole input was consumed
+     * @throws IOException if the input is not a json array of objects
+     */
+    public boolean reformat(ByteBuffer in, ByteBuffer out) throws IOException {
+        byte[] src;
+        int srcStart;
+        int srcLimit;
+        if (in.hasArray()) {
+            src = in.array();
+            srcStart = in.arrayOffset() + in.position();
+            srcLimit = in.arrayOffset() + in.limit();
+        } else {
+            src = scratchIn();
+            srcStart = 0;
+            srcLimit = Math.min(in.remaining(), src.length);
+            in.duplicate().get(src, 0, srcLimit);
+        }
+        byte[] dst;
+        int dstStart;
+        int dstLimit;
+        if (out.hasArray()) {
+            dst = out.array();
+            dstStart = out.arrayOffset() + out.position();
+            dstLimit = out.arrayOffset() + out.limit();
+        } else {
+            dst = scratchOut();
+            dstStart = 0;
+            dstLimit = Math.min(out.remaining(), dst.length);
+        }
+        if (src != srcWordsArray) {
+            srcWordsArray = src;
+            srcWords = ByteBuffer.wrap(src);
+        }
+        reformat(src, srcStart, srcLimit, dst, dstStart, dstLimit);
+        if (validator != null && consumedTo > srcStart) {
+            validate(src, srcStart, consumedTo);
+        }
+        if (out.hasArray()) {
+            out.position(producedTo - out.arrayOffset());
+        } else {
+            out.put(dst, 0, producedTo);
+        }
+        in.position(in.position() + consumedTo - srcStart);
+        return !in.hasRemaining();
+    }
+
+    /**
+     * Sets {@link #consumedTo} and {@link #producedTo} to where it stopped.
+     */
+    private void reformat(byte[] src, int sp, int sl, byte[] dst, int dp, int dl) throws IOException {
+        while (sp < sl && dl - dp >= maxExpansion) {
+            if (inString) {
+                if (!escaped) {
+                    // Find the run of bytes up to the next quote or backslash, a word at a time, and copy it at once
+                    int runLimit = Math.min(sl, sp + dl - dp - maxExpansion);
+                    int p = sp;
+                    while (runLimit - p >= 8) {
+                        long word = srcWords.getLong(p);
+                        if (hasZeroByte(word ^ QUOTES) || hasZeroByte(word ^ BACKSLASHES)) {
+                            break;
+                        }
+                        p += 8;
+                    }
+                    while (p < runLimit && src[p] != '"' && src[p] != '\\') {
+                        p++;
+                    }
+                    if (p > sp) {
+                        System.arraycopy(src, sp, dst, dp, p - sp);
+                        dp += p - sp;
+                        sp = p;
+                    }
+                    if (sp == sl || dl - dp < maxExpansion) {
+                        break;
+                    }
+                }
+                byte b = src[sp++];
+                dst[dp++] = b;
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                }
+                continue;
+            }
+            byte b = src[sp++];
+            switch (b) {
+            case ' ':
+            case '\n':
+            case '\r':
+            case '\t':
+                break;
+            case '"':
+                if (depth < 2) {
+                    throw improperFormat();
+                }
+                dst[dp++] = b;
+                inString = true;
+                break;
+            case '{':
+            case '[':
+                if (ended) {
+                    throw improperFormat();
+                }
+                if (depth == 0) {
+                    if (b != '[') {
+                        throw improperFormat();
+                    }
+                    dst[dp++] = b;
+                    dp = putLineSeparator(dst, dp);
+                } else if (depth == 1) {
+                    if (b != '{' || commas != (numRecords == 0 ? 0 : 1)) {
+                        throw improperFormat();
+                    }
+                    if (!firstElement && commaSeparated) {
+                        dst[dp++] = ',';
+                    }
+                    firstElement = false;
+                    dst[dp++] = b;
+                } else {
+                    dst[dp++] = b;
+                }
+                depth++;
+                break;
+            case '}':
+            case ']':
+                depth--;
+                if (depth == 1) {
+                    if (b != '}') {
+                        throw improperFormat();
+                    }
+                    dst[dp++] = b;
+                    dp = putLineSeparator(dst, dp);
+                    commas = 0;
+                    numRecords++;
+                } else if (depth == 0) {
+                    if (b != ']' || commas != 0 || elementsOnly) {
+                        throw improperFormat();
+                    }
+                    dst[dp++] = b;
+                    ended = true;
+                } else if (depth < 0) {
+                    throw improperFormat();
+                } else {
+                    dst[dp++] = b;
+                }
+                break;
+            case ',':
+                if (depth == 1) {
+                    commas++;
+                } else if (depth > 1) {
+                    dst[dp++] = b;
+                } else {
+                    throw improperFormat();
+                }
+                break;
+            default:
+                if (depth < 2) {
+                    throw improperFormat();
+                }
+                dst[dp++] = b;
+            }
+        }
+        consumedTo = sp;
+        producedTo = dp;
+    }
+
+    private int putLineSeparator(byte[] dst, int dp) {
+        for (byte b : lineSeparator) {
+            dst[dp++] = b;
+        }
+        return dp;
+    }
+
+    private byte[] scratchIn() {
+        if (scratchIn == null) {
+            scratchIn = new byte[SCRATCH_BYTES];
+        }
+        return scratchIn;
+    }
+
+    private byte[] scratchOut() {
+        if (scratchOut == null) {
+            scratchOut = new byte[SCRATCH_BYTES];
+        }
+        return scratchOut;
+    }
+
+    /**
+     * Checks that the input ended where it should.
+     *
+     * @throws IOException if the array or the last object is incomplete, or validation failed
+     */
+    public void finish() throws IOException {
+        if (inString || (elementsOnly ? depth != 1 || commas != 0 : !ended)) {
+            throw improperFormat();
+        }
+        if (validator != null && !elementsOnly) {
+            feeder.endOfInput();
+            drainValidator();
+        }
+    }
+
+    /**
+     * @return number of objects written so far
+     */
+    public long getNumRecords() {
+        return numRecords;
+    }
+
+    private void validate(byte[] bytes, int start, int end) throws IOException {
+        feeder.feedInput(bytes, start, end);
+        drainValidator();
+    }
+
+    private void drainValidator() throws IOException {
+        JsonToken token;
+        do {
+            token = validator.nextToken();
+        } while (token != null && token != JsonToken.NOT_AVAILABLE);
+    }
+
+    /**
+     * @return true if one of the bytes of the word is zero, without looking at the bytes one by one
+     */
+    private static boolean hasZeroByte(long word) {
+        return ((word - ONES) & ~word & HIGH_BITS) != 0;
+    }
+
+    private static IOException improperFormat() {
+        return new IOException("Improper format. The file should have just a json array of objects");
+    }
+
+    /**
+     * Reformats a whole file in the calling thread.
+     *
+     * @return number of objects written
+     */
+    public static long reformat(File ipFile, File opFile, boolean validate) throws IOException {
+        FileInputStream input = new FileInputStream(ipFile);
+        try {
+            FileOutputStream output = new FileOutputStream(opFile);
+            try {
+                return reformat(input, output, validate);
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Reformats a whole stream in the calling thread. The streams are not closed.
+     *
+     * @return number of objects written
+     */
+    public static long reformat(InputStream input, OutputStream output, boolean validate) throws IOException {
+        RawSingleLineReformatter reformatter = forArray(validate);
+        ByteBuffer in = ByteBuffer.allocate(BUFFER_BYTES);
+        ByteBuffer out = ByteBuffer.allocate(BUFFER_BYTES);
+        int n;
+        while ((n = input.read(in.array(), 0, in.capacity())) >= 0) {
+            in.position(0);
+            in.limit(n);
+            while (!reformatter.reformat(in, out)) {
+                write(out, output);
+            }
+        }
+        reformatter.finish();
+        write(out, output);
+        return reformatter.getNumRecords();
+    }
+
+    private static void write(ByteBuffer out, OutputStream output) throws IOException {
+        output.write(out.array(), 0, out.position());
+        out.clear();
+    }
+}
@@ -0,0 +1,228 @@
+package com.blogspot.sahyog.collections;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BoundedTransactionableMapTest {
+
+    @Test
+    public void lruEvictsLeastRecentlyUsed() {
+        BoundedTransactionableMap<String, String> map = new BoundedTransactionableMap<String, String>(3, EvictionPolicy.LRU);
+        map.put("k1", "v1");
+        map.put("k2", "v2");
+        map.put("k3", "v3");
+        assertEquals("v1", map.get("k1"));
+        map.put("k4", "v4");
+        assertEquals(3, map.size());
+        assertFalse(map.containsKey("k2"));
+        assertTrue(map.containsKey("k1"));
+        assertEquals(1, map.getEvictionCount());
+        assertEquals(3, map.getWeightedSize());
+    }
+
+    @Test
+    public void evictsAtCommit() {
+        BoundedTransactionableMap<String, String> map = new BoundedTransactionableMap<String, String>(2, EvictionPolicy.LRU);
+        map.put("k1", "v1");
+        map.put("k2", "v2");
+        map.beginTransaction();
+        map.put("k3", "v3");
+        map.put("k4", "v4");
+        // Nothing is evicted while the transaction is open
+        assertEquals(4, map.size());
+        assertEquals("v1", map.get("k1"));
+        map.commit();
+        assertEquals(2, map.size());
+        assertEquals("v3", map.get("k3"));
+        assertEquals("v4", map.get("k4"));
+        assertEquals(2, map.getEvictionCount());
+    }
+
+    @Test
+    public void transactionWritesArePinned() {
+        BoundedTransactionableMap<String, String> map = new BoundedTransactionableMap<String, String>(2, EvictionPolicy.LRU);
+        map.put("k1", "v1");
+        map.beginTransaction();
+        map.put("k2", "v2");
+        map.put("k3", "v3");
+        map.put("k4", "v4");
+        map.commit();
+        assertFalse(map.containsKey("k1"));
+        assertEquals(3, map.size());
+        map.put("k5", "v5");
+        assertEquals(2, map.size());
+        assertTrue(map.containsKey("k5"));
+    }
+
+    @Test
+    public void abortDoesNotEvict() {
+        BoundedTransactionableMap<String, String> map = new BoundedTransactionableMap<String, String>(1, EvictionPolicy.WINDOW_TINY_LFU);
+        map.put("k1", "v1");
+        map.beginTransaction();
+        map.put("k2", "v2");
+        map.abort();
+        assertEquals("v1", map.get("k1"));
+        assertEquals(0, map.getEvictionCount());
+        assertEquals(1, map.getWeightedSize());
+    }
+
+    @Test
+    public void weightBounded() {
+        Weigher<String, String> weigher = new Weigher<String, String>() {
+            @Override
+            public long weigh(String key, String value) {
+                return value.length();
+            }
+        };
+        BoundedTransactionableMap<String, String> map = new BoundedTransactionableMap<String, String>(10, weigher, EvictionPolicy.LRU);
+        map.put("k1", "12345");
+        map.put("k2", "1234");
+        assertEquals(9, map.getWeightedSize());
+        map.put("k3", "123");
+        assertFalse(map.containsKey("k1"));
+        assertEquals(7, map.getWeightedSize());
+        map.remove("k2");
+        assertEquals(3, map.getWeightedSize());
+        map.clear();
+        assertEquals(0, map.getWeightedSize());
+    }
+
+    @Test
+    public void tinyLfuKeepsPopularEntriesThroughScan() {
+        BoundedTransactionableMap<Integer, Integer> map = new BoundedTransactionableMap<Integer, Integer>(100, EvictionPolicy.WINDOW_TINY_LFU);
+        for (int i = 0; i < 50; i++) {
+            map.put(i, i);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                map.get(i);
+            }
+        }
+        for (int i = 1000; i < 2000; i++) {
+            map.put(i, i);
+        }
+        assertTrue(map.size() <= 100);
+        int kept = 0;
+        for (int i = 0; i < 50; i++) {
+            if (map.containsKey(i)) {
+                kept++;
+            }
+        }
+        assertTrue("Kept only " + kept + " popular entries", kept >= 45);
+    }
+
+    @Test
+    public void tinyLfuWithLargeWeightsKeepsPopularEntriesThroughScan() {
+        // The maximum is a weight far above the number of entries, which the sketch has to grow to follow
+        Weigher<Integer, Integer> weigher = new Weigher<Integer, Integer>() {
+            @Override
+            public long weigh(Integer key, Integer value) {
+                return 1000000;
+            }
+        };
+        BoundedTransactionableMap<Integer, Integer> map = new BoundedTransactionableMap<Integer, Integer>(500 * 1000000L, weigher,
+                EvictionPolicy.WINDOW_TINY_LFU);
+        for (int i = 0; i < 200; i++) {
+            map.put(i, i);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 200; i++) {
+                map.get(i);
+            }
+        }
+        for (int i = 1000; i < 5000; i++) {
+            map.put(i, i);
+        }
+        assertTrue(map.size() <= 500);
+        int kept = 0;
+        for (int i = 0; i < 200; i++) {
+            if (map.containsKey(i)) {
+                kept++;
+            }
+        }
+        assertTrue("Kept only " + kept + " popular entries", kept >= 180);
+    }
+
+    @Test
+    public void hitAndMissCounts() {
+        BoundedTransactionableMap<String, String> map = new BoundedTransactionableMap<String, String>(10, EvictionPolicy.LRU);
+        map.put("k1", "v1");
+        map.get("k1");
+        map.get("k1");
+        map.get("absent");
+        assertEquals(2, map.getHitCount());
+        assertEquals(1, map.getMissCount());
+        assertEquals(2.0 / 3, map.getHitRate(), 0.0001);
+        map.resetStats();
+        assertEquals(0, map.getHitCount());
+        assertEquals(1.0, map.getHitRate(), 0.0);
+    }
+
+    @Test
+    public void evictionsArePublishedWithTheCommit() throws Exception {
+        BoundedTransactionableMap<String, String> map = new BoundedTransactionableMap<String, String>(1, EvictionPolicy.LRU);
+        map.put("k1", "v1");
+        final List<ChangeEvent<String, String>> events = new ArrayList<ChangeEvent<String, String>>();
+        ChangeSubscription<String, String> subscription = map.subscribe(new ChangeListener<String, String>() {
+            @Override
+            public void onChanges(List<ChangeEvent<String, String>> changes) {
+                synchronized (events) {
+                    events.addAll(changes);
+                }
+            }
+        }, 16, 16);
+        try {
+            map.beginTransaction();
+            map.put("k2", "v2");
+            map.commit();
+            assertTrue(subscription.awaitDelivered(map.getChangeSequence(), 5, TimeUnit.SECONDS));
+            synchronized (events) {
+                assertEquals(1, events.size());
+                assertTrue(events.get(0).getEvictedKeys().contains("k1"));
+                assertTrue(events.get(0).getRemovedKeys().isEmpty());
+                assertEquals("v2", events.get(0).getPuts().get("k2"));
+            }
+        } finally {
+            subscription.close();
+        }
+    }
+
+    @Test
+    public void concurrentReadsKeepHotKeys() throws Exception {
+        final BoundedTransactionableMap<Integer, String> map = new BoundedTransactionableMap<Integer, String>(100, EvictionPolicy.LRU);
+        for (int i = 0; i < 100; i++) {
+            map.put(i, "v" + i);
+        }
+        List<FailureDetectingThread> readers = new ArrayList<FailureDetectingThread>();
+        for (int t = 0; t < 4; t++) {
+            FailureDetectingThread reader = new FailureDetectingThread() {
+                @Override
+                public void runWrapped() throws Exception {
+                    for (int round = 0; round < 1000; round++) {
+                        for (int i = 0; i < 50; i++) {
+                            assertEquals("v" + i, map.get(i));
+                        }
+                    }
+                }
+            };
+            readers.add(reader);
+            reader.start();
+        }
+        for (FailureDetectingThread reader : readers) {
+            reader.join();
+            assertFalse(reader.getFailedException() + "", reader.isFailed());
+        }
+        for (int i = 100; i < 150; i++) {
+            map.put(i, "v" + i);
+        }
+        assertEquals(100, map.size());
+        for (int i = 0; i < 50; i++) {
+            assertTrue("Hot key " + i + " was evicted", map.containsKey(i));
+        }
+    }
+}
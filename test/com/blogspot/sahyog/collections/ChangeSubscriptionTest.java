@@ -0,0 +1,205 @@
+package com.blogspot.sahyog.collections;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChangeSubscriptionTest {
+
+    SingleThreadedTransactionableMap<String, String> transactionalMap;
+
+    @Before
+    public void setup() {
+        transactionalMap = new SingleThreadedTransactionableMap<String, String>(new HashMap<String, String>());
+    }
+
+    @Test
+    public void mirrorFollowsCommitsAndWrites() throws Exception {
+        transactionalMap.put("before", "v");
+        final Map<String, String> mirror = new HashMap<String, String>(transactionalMap);
+        final List<Long> sequences = new ArrayList<Long>();
+        ChangeSubscription<String, String> subscription = transactionalMap.subscribe(new ChangeListener<String, String>() {
+            @Override
+            public void onChanges(List<ChangeEvent<String, String>> events) {
+                for (ChangeEvent<String, String> event : events) {
+                    sequences.add(event.getSequence());
+                    event.applyTo(mirror);
+                }
+            }
+        }, 4, 3);
+        try {
+            transactionalMap.put("k1", "v1");
+            transactionalMap.beginTransaction();
+            transactionalMap.put("k2", "v2");
+            transactionalMap.remove("before");
+            transactionalMap.commit();
+            transactionalMap.beginTransaction();
+            transactionalMap.put("aborted", "v");
+            transactionalMap.abort();
+            for (int i = 0; i < 20; i++) {
+                transactionalMap.put("n" + i, "v" + i);
+            }
+            transactionalMap.remove("n3");
+            transactionalMap.beginTransaction();
+            transactionalMap.clear();
+            transactionalMap.put("afterClear", "v");
+            transactionalMap.commit();
+            transactionalMap.put("last", "v");
+            long sequence = transactionalMap.getChangeSequence();
+            assertEquals(25, sequence);
+            assertTrue(subscription.awaitDelivered(sequence, 10, TimeUnit.SECONDS));
+            assertEquals(new HashMap<String, String>(transactionalMap), mirror);
+            for (int i = 0; i < sequences.size(); i++) {
+                assertEquals(i + 1, sequences.get(i).longValue());
+            }
+        } finally {
+            subscription.close();
+        }
+    }
+
+    @Test
+    public void fullBufferHoldsWritersBack() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        ChangeSubscription<String, String> subscription = transactionalMap.subscribe(new ChangeListener<String, String>() {
+            @Override
+            public void onChanges(List<ChangeEvent<String, String>> events) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, 2, 1);
+        FailureDetectingThread writer = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                for (int i = 0; i < 10; i++) {
+                    transactionalMap.put("k" + i, "v");
+                }
+            }
+        };
+        writer.start();
+        writer.join(200);
+        assertTrue(writer.isAlive());
+        release.countDown();
+        writer.join();
+        assertNull(writer.getFailedException());
+        assertTrue(subscription.awaitDelivered(10, 10, TimeUnit.SECONDS));
+        subscription.close();
+        assertTrue(subscription.isClosed());
+    }
+
+    @Test
+    public void interruptedPublishStillEndsTheTransaction() throws Exception {
+        ChangeSubscription<String, String> subscription = transactionalMap.subscribe(new ChangeListener<String, String>() {
+            @Override
+            public void onChanges(List<ChangeEvent<String, String>> events) {
+            }
+        }, 2, 1);
+        try {
+            transactionalMap.beginTransaction();
+            transactionalMap.put("k1", "v1");
+            Thread.currentThread().interrupt();
+            try {
+                transactionalMap.commit();
+                fail("Expected the publish to be interrupted");
+            } catch (TransactionException expected) {
+            } finally {
+                Thread.interrupted();
+            }
+            assertEquals("v1", transactionalMap.get("k1"));
+            assertTrue("A subscription which missed the change should be closed", subscription.isClosed());
+            assertTrue(subscription.getFailure() instanceof TransactionException);
+            FailureDetectingThread other = new FailureDetectingThread() {
+                @Override
+                public void runWrapped() throws Exception {
+                    assertTrue(transactionalMap.tryBeginTransaction());
+                    transactionalMap.abort();
+                }
+            };
+            other.start();
+            other.join();
+            assertNull(other.getFailedException());
+        } finally {
+            subscription.close();
+        }
+    }
+
+    @Test
+    public void interruptedWaitClosesTheSubscriptionsThatMissedTheChange() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        ChangeSubscription<String, String> slow = transactionalMap.subscribe(new ChangeListener<String, String>() {
+            @Override
+            public void onChanges(List<ChangeEvent<String, String>> events) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, 1, 1);
+        ChangeSubscription<String, String> fast = transactionalMap.subscribe(new ChangeListener<String, String>() {
+            @Override
+            public void onChanges(List<ChangeEvent<String, String>> events) {
+            }
+        }, 16, 16);
+        try {
+            transactionalMap.put("k1", "v1");
+            transactionalMap.put("k2", "v2");
+            assertTrue(fast.awaitDelivered(2, 10, TimeUnit.SECONDS));
+            FailureDetectingThread writer = new FailureDetectingThread() {
+                @Override
+                public void runWrapped() throws Exception {
+                    try {
+                        transactionalMap.put("k3", "v3");
+                        fail("Expected the publish to be interrupted");
+                    } catch (TransactionException expected) {
+                    }
+                }
+            };
+            writer.start();
+            writer.join(200);
+            assertTrue("The writer should wait for the slow listener", writer.isAlive());
+            writer.interrupt();
+            writer.join();
+            assertNull(writer.getFailedException());
+            assertTrue(slow.isClosed());
+            assertNotNull(slow.getFailure());
+            assertTrue(fast.isClosed());
+            assertSame(slow.getFailure(), fast.getFailure());
+            assertEquals("v3", transactionalMap.get("k3"));
+        } finally {
+            release.countDown();
+            slow.close();
+            fast.close();
+        }
+    }
+
+    @Test
+    public void failingListenerClosesSubscription() throws Exception {
+        ChangeSubscription<String, String> subscription = transactionalMap.subscribe(new ChangeListener<String, String>() {
+            @Override
+            public void onChanges(List<ChangeEvent<String, String>> events) {
+                throw new IllegalStateException("boom");
+            }
+        }, 2, 1);
+        transactionalMap.put("k1", "v1");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!subscription.isClosed() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(subscription.isClosed());
+        assertEquals("boom", subscription.getFailure().getMessage());
+        for (int i = 0; i < 10; i++) {
+            transactionalMap.put("k" + i, "v");
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.blogspot.sahyog.collections;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CopyOnWriteSegmentMapTest {
+
+    CopyOnWriteSegmentMap<String, String> segmentMap;
+
+    @Before
+    public void setup() {
+        segmentMap = new CopyOnWriteSegmentMap<String, String>(4);
+    }
+
+    @Test
+    public void sanityTest() {
+        assertNull(segmentMap.put("k1", "v1"));
+        assertEquals("v1", segmentMap.put("k1", "v2"));
+        segmentMap.put(null, "nullValue");
+        assertEquals(2, segmentMap.size());
+        assertEquals("v2", segmentMap.get("k1"));
+        assertEquals("nullValue", segmentMap.get(null));
+        assertEquals("v2", segmentMap.remove("k1"));
+        assertNull(segmentMap.remove("k1"));
+        assertEquals(1, segmentMap.size());
+    }
+
+    @Test
+    public void iterationIsOverASnapshot() {
+        for (int i = 0; i < 100; i++) {
+            segmentMap.put("k" + i, "v" + i);
+        }
+        Iterator<Map.Entry<String, String>> iterator = segmentMap.entrySet().iterator();
+        segmentMap.clear();
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        assertEquals(100, count);
+        assertTrue(segmentMap.isEmpty());
+    }
+
+    @Test
+    public void transactionCommitIsPublishedAtOnce() {
+        SingleThreadedTransactionableMap<String, String> transactionalMap = new SingleThreadedTransactionableMap<String, String>(segmentMap);
+        transactionalMap.put("k1", "v1");
+        transactionalMap.put("k2", "v2");
+        transactionalMap.beginTransaction();
+        transactionalMap.remove("k1");
+        transactionalMap.put("k3", "v3");
+        transactionalMap.put("k2", "v22");
+        assertEquals("v1", segmentMap.get("k1"));
+        assertNull(segmentMap.get("k3"));
+        transactionalMap.commit();
+        assertNull(segmentMap.get("k1"));
+        assertEquals("v22", segmentMap.get("k2"));
+        assertEquals("v3", segmentMap.get("k3"));
+        assertEquals(2, segmentMap.size());
+    }
+}
@@ -0,0 +1,170 @@
+package com.blogspot.sahyog.collections;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DurableTransactionableMapTest {
+
+    File directory;
+
+    @Before
+    public void setup() throws IOException {
+        directory = File.createTempFile("durablemap", "");
+        directory.delete();
+    }
+
+    @After
+    public void cleanup() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void commitsSurviveReopen() throws IOException {
+        DurableTransactionableMap<String, String> map = new DurableTransactionableMap<String, String>(directory, DurabilityPolicy.SYNC_EACH_COMMIT);
+        map.put("k1", "v1");
+        map.put("k2", "v2");
+        map.beginTransaction();
+        map.remove("k1");
+        map.put("tk1", "tv1");
+        map.commit();
+        map.beginTransaction();
+        map.put("aborted", "value");
+        map.abort();
+        map.close();
+
+        DurableTransactionableMap<String, String> reopened = new DurableTransactionableMap<String, String>(directory,
+                DurabilityPolicy.SYNC_EACH_COMMIT);
+        assertEquals(2, reopened.size());
+        assertEquals("v2", reopened.get("k2"));
+        assertEquals("tv1", reopened.get("tk1"));
+        assertFalse(reopened.containsKey("k1"));
+        assertFalse(reopened.containsKey("aborted"));
+        reopened.close();
+    }
+
+    @Test
+    public void recoveryFromSnapshotAndLogTail() throws IOException {
+        DurableTransactionableMap<String, Integer> map = new DurableTransactionableMap<String, Integer>(directory, DurabilityPolicy.GROUP_SYNC, 1, 512);
+        for (int i = 0; i < 100; i++) {
+            map.beginTransaction();
+            map.put("k" + i, i);
+            map.commit();
+        }
+        map.clear();
+        map.put("last", -1);
+        map.close();
+        assertTrue("Small checkpoint size should have truncated the log", directory.listFiles().length <= 3);
+
+        DurableTransactionableMap<String, Integer> reopened = new DurableTransactionableMap<String, Integer>(directory, DurabilityPolicy.ASYNC);
+        assertEquals(1, reopened.size());
+        assertEquals(Integer.valueOf(-1), reopened.get("last"));
+        reopened.close();
+    }
+
+    @Test
+    public void failedCheckpointIsRecordedAndRetriedLater() throws IOException {
+        DurableTransactionableMap<String, Integer> map = new DurableTransactionableMap<String, Integer>(directory, DurabilityPolicy.SYNC_EACH_COMMIT, 1,
+                512);
+        File obstruction = new File(directory, "snapshot-1.dat.tmp");
+        assertTrue(obstruction.mkdir());
+        int written = 0;
+        while (map.getCheckpointFailure() == null) {
+            map.put("k" + written, written);
+            written++;
+        }
+        assertTrue(obstruction.delete());
+        map.put("k" + written, written);
+        written++;
+        assertNotNull("Checkpoint should not be retried on the next write", map.getCheckpointFailure());
+        while (map.getCheckpointFailure() != null) {
+            map.put("k" + written, written);
+            written++;
+        }
+        assertTrue(new File(directory, "snapshot-1.dat").exists());
+        map.close();
+
+        DurableTransactionableMap<String, Integer> reopened = new DurableTransactionableMap<String, Integer>(directory, DurabilityPolicy.ASYNC);
+        assertEquals(written, reopened.size());
+        reopened.close();
+    }
+
+    @Test
+    public void loadsDuringCheckpoints() throws Exception {
+        final DurableTransactionableMap<String, Integer> map = new DurableTransactionableMap<String, Integer>(directory, DurabilityPolicy.ASYNC, 1,
+                4096);
+        final InMemoryStore<String, Integer> store = new InMemoryStore<String, Integer>();
+        for (int i = 0; i < 20000; i++) {
+            store.put("loaded" + i, i);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            map.setLoader(store, executor);
+            FailureDetectingThread reader = new FailureDetectingThread() {
+                @Override
+                public void runWrapped() throws Exception {
+                    for (int i = 0; i < 20000; i++) {
+                        assertEquals(Integer.valueOf(i), map.getOrLoad("loaded" + i));
+                    }
+                }
+            };
+            reader.start();
+            int committed = 0;
+            while (reader.isAlive()) {
+                map.beginTransaction();
+                map.put("k" + committed, committed);
+                map.commit();
+                committed++;
+            }
+            reader.join();
+            assertFalse(reader.getFailedException() + "", reader.isFailed());
+            assertNull(map.getCheckpointFailure());
+            map.close();
+
+            DurableTransactionableMap<String, Integer> reopened = new DurableTransactionableMap<String, Integer>(directory, DurabilityPolicy.ASYNC);
+            for (int i = 0; i < committed; i++) {
+                assertEquals(Integer.valueOf(i), reopened.get("k" + i));
+            }
+            reopened.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void tornTailIsIgnored() throws IOException {
+        DurableTransactionableMap<String, String> map = new DurableTransactionableMap<String, String>(directory, DurabilityPolicy.SYNC_EACH_COMMIT);
+        map.put("k1", "v1");
+        map.put("k2", "v2");
+        map.close();
+        File log = new File(directory, "wal-0.log");
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        DurableTransactionableMap<String, String> reopened = new DurableTransactionableMap<String, String>(directory,
+                DurabilityPolicy.SYNC_EACH_COMMIT);
+        assertEquals("v1", reopened.get("k1"));
+        assertFalse(reopened.containsKey("k2"));
+        reopened.put("k3", "v3");
+        reopened.close();
+
+        reopened = new DurableTransactionableMap<String, String>(directory, DurabilityPolicy.SYNC_EACH_COMMIT);
+        assertEquals("v3", reopened.get("k3"));
+        reopened.close();
+    }
+}
@@ -0,0 +1,91 @@
+package com.blogspot.sahyog.collections;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A map standing in for a database behind a cache: it loads values for
+ * {@link SingleThreadedTransactionableMap#setLoader(CacheLoader, java.util.concurrent.Executor)}
+ * and receives write behind batches. Counts the calls so that tests can
+ * check how many loads and writes reached the store. An optional delay makes
+ * loads slow like remote calls.
+ */
+public class InMemoryStore<K, V> implements CacheLoader<K, V>, WriteBehindSink<K, V> {
+    private final Map<K, V> data = new HashMap<K, V>();
+    private final long loadDelayMillis;
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+
+    public InMemoryStore() {
+        this(0);
+    }
+
+    /**
+     * @param loadDelayMillis time each load sleeps before reading the data
+     */
+    public InMemoryStore(long loadDelayMillis) {
+        this.loadDelayMillis = loadDelayMillis;
+    }
+
+    @Override
+    public V load(K key) throws Exception {
+        loadCount.incrementAndGet();
+        if (loadDelayMillis > 0) {
+            Thread.sleep(loadDelayMillis);
+        }
+        synchronized (data) {
+            return data.get(key);
+        }
+    }
+
+    @Override
+    public void write(boolean cleared, Set<K> removedKeys, Map<K, V> puts) {
+        writeCount.incrementAndGet();
+        synchronized (data) {
+            if (cleared) {
+                data.clear();
+            }
+            for (K key : removedKeys) {
+                data.remove(key);
+            }
+            data.putAll(puts);
+        }
+    }
+
+    /**
+     * Changes the data directly, as another application would.
+     */
+    public void put(K key, V value) {
+        synchronized (data) {
+            data.put(key, value);
+        }
+    }
+
+    public V get(K key) {
+        synchronized (data) {
+            return data.get(key);
+        }
+    }
+
+    public boolean containsKey(K key) {
+        synchronized (data) {
+            return data.containsKey(key);
+        }
+    }
+
+    /**
+     * @return number of load() calls
+     */
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * @return number of write() calls, one per write behind batch
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+}
@@ -0,0 +1,143 @@
+package com.blogspot.sahyog.collections;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedSnapshotMapTest {
+
+    File snapshot;
+    File exported;
+
+    @Before
+    public void setup() throws IOException {
+        snapshot = File.createTempFile("snapshot", ".dat");
+        exported = File.createTempFile("exported", ".dat");
+    }
+
+    @After
+    public void cleanup() {
+        snapshot.delete();
+        exported.delete();
+    }
+
+    @Test
+    public void readsSnapshotAndOverlaysChanges() throws IOException {
+        Map<Long, String> contents = new HashMap<Long, String>();
+        for (long i = 0; i < 1000; i++) {
+            contents.put(i, "v" + i);
+        }
+        MappedSnapshotMap.write(snapshot, contents, Serializers.LONG, Serializers.STRING);
+        MappedSnapshotMap<Long, String> map = MappedSnapshotMap.open(snapshot, Serializers.LONG, Serializers.STRING);
+        assertEquals(1000, map.size());
+        assertEquals("v42", map.get(42L));
+        assertNull(map.get(1000L));
+        assertEquals(0, map.changedKeyCount());
+
+        assertEquals("v1", map.remove(1L));
+        assertEquals("v2", map.put(2L, "changed"));
+        assertNull(map.put(5000L, "new"));
+        assertEquals(1000, map.size());
+        assertFalse(map.containsKey(1L));
+        assertEquals("changed", map.get(2L));
+        assertEquals("new", map.get(5000L));
+        assertEquals(1000, map.entrySet().size());
+        int iterated = 0;
+        for (Map.Entry<Long, String> entry : map.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+            iterated++;
+        }
+        assertEquals(1000, iterated);
+
+        map.exportTo(exported);
+        MappedSnapshotMap<Long, String> reopened = MappedSnapshotMap.open(exported, Serializers.LONG, Serializers.STRING);
+        assertEquals(map, reopened);
+    }
+
+    @Test
+    public void transactionalMapOverSnapshot() throws IOException {
+        Map<String, String> contents = new HashMap<String, String>();
+        contents.put("k1", "v1");
+        MappedSnapshotMap.write(snapshot, contents, Serializers.STRING, Serializers.STRING);
+        SingleThreadedTransactionableMap<String, String> transactionalMap = new SingleThreadedTransactionableMap<String, String>(
+                MappedSnapshotMap.open(snapshot, Serializers.STRING, Serializers.STRING));
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k2", "v2");
+        transactionalMap.remove("k1");
+        transactionalMap.commit();
+        assertNull(transactionalMap.get("k1"));
+        assertEquals("v2", transactionalMap.get("k2"));
+        assertEquals(1, transactionalMap.size());
+    }
+
+    @Test
+    public void checkpointsKeepTheOverlaySmall() throws IOException {
+        MappedSnapshotMap.write(snapshot, new HashMap<Long, String>(), Serializers.LONG, Serializers.STRING);
+        MappedSnapshotMap<Long, String> base = MappedSnapshotMap.open(snapshot, Serializers.LONG, Serializers.STRING, 100);
+        SingleThreadedTransactionableMap<Long, String> transactionalMap = new SingleThreadedTransactionableMap<Long, String>(base);
+        for (long i = 0; i < 1000; i += 10) {
+            transactionalMap.beginTransaction();
+            for (long j = i; j < i + 10; j++) {
+                transactionalMap.put(j, "v" + j);
+            }
+            transactionalMap.remove(i / 2);
+            transactionalMap.commit();
+            assertTrue(base.changedKeyCount() < 100);
+        }
+        assertNull(base.getCheckpointFailure());
+        assertEquals(900, transactionalMap.size());
+
+        MappedSnapshotMap<Long, String> reopened = MappedSnapshotMap.open(snapshot, Serializers.LONG, Serializers.STRING);
+        assertTrue("Checkpoints should have been taken", reopened.size() >= 800);
+        assertTrue(reopened.size() <= 900);
+        assertNull(reopened.get(0L));
+        assertEquals("v999", transactionalMap.get(999L));
+        assertEquals("v500", reopened.get(500L));
+    }
+
+    @Test
+    public void readsDuringCheckpoints() throws Exception {
+        Map<Long, String> contents = new HashMap<Long, String>();
+        for (long i = 0; i < 1000; i++) {
+            contents.put(i, "v" + i);
+        }
+        MappedSnapshotMap.write(snapshot, contents, Serializers.LONG, Serializers.STRING);
+        final MappedSnapshotMap<Long, String> base = MappedSnapshotMap.open(snapshot, Serializers.LONG, Serializers.STRING, 100);
+        final SingleThreadedTransactionableMap<Long, String> transactionalMap = new SingleThreadedTransactionableMap<Long, String>(base);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        FailureDetectingThread reader = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                Random random = new Random(7);
+                while (!done.get()) {
+                    //keys which are never written, so only the snapshot they are read from changes
+                    long key = random.nextInt(1000);
+                    assertEquals("v" + key, transactionalMap.get(key));
+                }
+            }
+        };
+        reader.start();
+        //every checkpoint grows the snapshot and with it the capacity of its index
+        for (long i = 1000; i < 20000; i += 50) {
+            transactionalMap.beginTransaction();
+            for (long key = i; key < i + 50; key++) {
+                transactionalMap.put(key, "v" + key);
+            }
+            transactionalMap.commit();
+        }
+        done.set(true);
+        reader.join();
+        assertFalse(reader.getFailedException() + "", reader.isFailed());
+        assertNull(base.getCheckpointFailure());
+        assertEquals(20000, transactionalMap.size());
+    }
+}
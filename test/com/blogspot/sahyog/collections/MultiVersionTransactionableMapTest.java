@@ -0,0 +1,298 @@
+package com.blogspot.sahyog.collections;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MultiVersionTransactionableMapTest {
+
+    MultiVersionTransactionableMap<String, String> transactionalMap;
+
+    @Before
+    public void setup() {
+        transactionalMap = new MultiVersionTransactionableMap<String, String>();
+    }
+
+    @Test
+    public void sanityTest() {
+        transactionalMap.put("k1", "v1");
+        assertEquals("v1", transactionalMap.get("k1"));
+        assertEquals(1, transactionalMap.size());
+        assertEquals("v1", transactionalMap.remove("k1"));
+        assertFalse(transactionalMap.containsKey("k1"));
+        assertTrue(transactionalMap.isEmpty());
+    }
+
+    @Test
+    public void transactionalSanityTest() {
+        transactionalMap.put("k1", "v1");
+        transactionalMap.beginTransaction();
+        transactionalMap.put("tk1", "tv1");
+        transactionalMap.remove("k1");
+        assertEquals("tv1", transactionalMap.get("tk1"));
+        assertNull(transactionalMap.get("k1"));
+        transactionalMap.commit();
+        assertEquals("tv1", transactionalMap.get("tk1"));
+        assertFalse(transactionalMap.containsKey("k1"));
+        assertEquals(1, transactionalMap.size());
+    }
+
+    @Test
+    public void abortTest() {
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k1", "v1");
+        transactionalMap.abort();
+        assertNull(transactionalMap.get("k1"));
+    }
+
+    @Test
+    public void otherThreadsDoNotSeeUncommittedWrites() throws Exception {
+        transactionalMap.beginTransaction();
+        transactionalMap.put("tk1", "tv1");
+        FailureDetectingThread reader = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                assertNull(transactionalMap.get("tk1"));
+                transactionalMap.put("ok1", "ov1"); //writers outside the transaction are not rejected
+            }
+        };
+        reader.start();
+        reader.join();
+        assertFalse(reader.getFailedException() + "", reader.isFailed());
+        transactionalMap.commit();
+        assertEquals("tv1", transactionalMap.get("tk1"));
+        assertEquals("ov1", transactionalMap.get("ok1"));
+    }
+
+    @Test
+    public void concurrentTransactionsOnDisjointKeysCommit() throws Exception {
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k1", "v1");
+        FailureDetectingThread other = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                transactionalMap.beginTransaction();
+                transactionalMap.put("k2", "v2");
+                assertNull(transactionalMap.get("k1"));
+                transactionalMap.commit();
+            }
+        };
+        other.start();
+        other.join();
+        assertFalse(other.getFailedException() + "", other.isFailed());
+        //snapshot isolation: the commit of the other transaction is not visible inside this one
+        assertNull(transactionalMap.get("k2"));
+        transactionalMap.commit();
+        assertEquals("v1", transactionalMap.get("k1"));
+        assertEquals("v2", transactionalMap.get("k2"));
+    }
+
+    @Test
+    public void conflictingCommitFails() throws Exception {
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k1", "mine");
+        FailureDetectingThread other = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                transactionalMap.beginTransaction();
+                transactionalMap.put("k1", "theirs");
+                transactionalMap.commit();
+            }
+        };
+        other.start();
+        other.join();
+        assertFalse(other.getFailedException() + "", other.isFailed());
+        try {
+            transactionalMap.commit();
+            fail("Commit should have detected the conflicting write");
+        } catch (TransactionException expected) {
+        }
+        assertEquals("theirs", transactionalMap.get("k1"));
+        //the failed transaction is over and a new one can begin
+        transactionalMap.beginTransaction();
+        transactionalMap.abort();
+    }
+
+    @Test
+    public void putAllOutsideTransactionIsNeverRejected() throws Exception {
+        FailureDetectingThread committer = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                for (int i = 0; i < 2000; i++) {
+                    transactionalMap.beginTransaction();
+                    transactionalMap.put("k1", "theirs" + i);
+                    try {
+                        transactionalMap.commit();
+                    } catch (TransactionException e) {
+                        // lost to a putAll, which itself is never rejected
+                    }
+                }
+            }
+        };
+        committer.start();
+        Map<String, String> entries = new HashMap<String, String>();
+        entries.put("k1", "mine");
+        entries.put("k2", "mine");
+        while (committer.isAlive()) {
+            transactionalMap.putAll(entries);
+        }
+        committer.join();
+        assertFalse(committer.getFailedException() + "", committer.isFailed());
+        transactionalMap.putAll(entries);
+        assertEquals("mine", transactionalMap.get("k1"));
+        assertEquals("mine", transactionalMap.get("k2"));
+    }
+
+    @Test
+    public void clearInsideTransaction() {
+        transactionalMap.put("k1", "v1");
+        transactionalMap.put("k2", "v2");
+        transactionalMap.beginTransaction();
+        transactionalMap.clear();
+        assertTrue(transactionalMap.isEmpty());
+        transactionalMap.commit();
+        assertTrue(transactionalMap.isEmpty());
+        assertNull(transactionalMap.get("k1"));
+    }
+
+    @Test
+    public void groupCommitDetectsConflicts() throws Exception {
+        transactionalMap.setGroupCommit(true);
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k1", "mine");
+        FailureDetectingThread other = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                transactionalMap.beginTransaction();
+                transactionalMap.put("k1", "theirs");
+                transactionalMap.commit();
+            }
+        };
+        other.start();
+        other.join();
+        assertFalse(other.getFailedException() + "", other.isFailed());
+        try {
+            transactionalMap.commit();
+            fail("Commit should have detected the conflicting write");
+        } catch (TransactionException expected) {
+        }
+        assertEquals("theirs", transactionalMap.get("k1"));
+    }
+
+    @Test
+    public void concurrentGroupCommits() throws Exception {
+        transactionalMap.setGroupCommit(true);
+        final int threads = 8;
+        final int transactionsPerThread = 500;
+        final AtomicInteger conflicts = new AtomicInteger();
+        List<FailureDetectingThread> committers = new ArrayList<FailureDetectingThread>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            committers.add(new FailureDetectingThread() {
+                @Override
+                public void runWrapped() throws Exception {
+                    for (int i = 0; i < transactionsPerThread; i++) {
+                        while (true) {
+                            transactionalMap.beginTransaction();
+                            transactionalMap.put("t" + id + "-" + i, "v");
+                            String counter = transactionalMap.get("counter");
+                            transactionalMap.put("counter", Integer.toString(counter == null ? 1 : Integer.parseInt(counter) + 1));
+                            try {
+                                transactionalMap.commit();
+                                break;
+                            } catch (TransactionException e) {
+                                conflicts.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        for (FailureDetectingThread committer : committers) {
+            committer.start();
+        }
+        for (FailureDetectingThread committer : committers) {
+            committer.join();
+            assertFalse(committer.getFailedException() + "", committer.isFailed());
+        }
+        assertEquals(Integer.toString(threads * transactionsPerThread), transactionalMap.get("counter"));
+        assertEquals(threads * transactionsPerThread + 1, transactionalMap.size());
+    }
+
+    @Test
+    public void iteratorKeepsItsSnapshotThroughCommits() {
+        transactionalMap.put("k1", "v1");
+        transactionalMap.put("k2", "v2");
+        Iterator<Map.Entry<String, String>> snapshot = transactionalMap.entrySet().iterator();
+        for (int i = 0; i < 10; i++) {
+            transactionalMap.put("k1", "new" + i);
+            transactionalMap.put("other" + i, "v");
+        }
+        transactionalMap.remove("k2");
+        Map<String, String> seen = new HashMap<String, String>();
+        while (snapshot.hasNext()) {
+            Map.Entry<String, String> entry = snapshot.next();
+            seen.put(entry.getKey(), entry.getValue());
+        }
+        assertEquals(2, seen.size());
+        assertEquals("v1", seen.get("k1"));
+        assertEquals("v2", seen.get("k2"));
+        assertEquals("new9", transactionalMap.get("k1"));
+        assertFalse(transactionalMap.containsKey("k2"));
+    }
+
+    @Test
+    public void removedKeysAreDropped() {
+        for (int i = 0; i < 100; i++) {
+            transactionalMap.put("k" + i, "v");
+        }
+        for (int i = 0; i < 100; i++) {
+            transactionalMap.remove("k" + i);
+        }
+        assertEquals(0, transactionalMap.versionedKeyCount());
+    }
+
+    @Test
+    public void removalsAreKeptWhileVisible() {
+        transactionalMap.put("k1", "v1");
+        Iterator<String> keys = transactionalMap.keySet().iterator();
+        transactionalMap.remove("k1");
+        transactionalMap.put("k2", "v2");
+        assertEquals(2, transactionalMap.versionedKeyCount());
+        assertTrue(keys.hasNext());
+        assertEquals("k1", keys.next());
+        assertFalse(keys.hasNext());
+        transactionalMap.put("k3", "v3");
+        assertEquals(2, transactionalMap.versionedKeyCount());
+        assertFalse(transactionalMap.containsKey("k1"));
+    }
+
+    @Test
+    public void finishedReadsDoNotHoldBackPruning() throws Exception {
+        transactionalMap.put("k1", "v1");
+        FailureDetectingThread reader = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                for (int i = 0; i < 10; i++) {
+                    assertEquals("v1", transactionalMap.get("k1"));
+                    assertTrue(transactionalMap.containsKey("k1"));
+                    assertEquals(1, transactionalMap.size());
+                }
+            }
+        };
+        reader.start();
+        reader.join();
+        assertFalse(reader.getFailedException() + "", reader.isFailed());
+        assertEquals("v1", transactionalMap.get("k1"));
+        transactionalMap.remove("k1");
+        assertEquals(0, transactionalMap.versionedKeyCount());
+    }
+}
@@ -0,0 +1,113 @@
+package com.blogspot.sahyog.collections;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class OffHeapMapTest {
+
+    @Test
+    public void sanityTest() {
+        OffHeapMap<String, String> map = new OffHeapMap<String, String>(Serializers.STRING, Serializers.STRING);
+        assertNull(map.put("k1", "v1"));
+        assertEquals("v1", map.put("k1", "v2"));
+        assertEquals("v2", map.get("k1"));
+        assertTrue(map.containsKey("k1"));
+        assertEquals(1, map.size());
+        assertEquals("v2", map.remove("k1"));
+        assertNull(map.get("k1"));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void matchesHashMapAndCompacts() {
+        OffHeapMap<Long, String> map = new OffHeapMap<Long, String>(Serializers.LONG, Serializers.STRING, 16, 4096);
+        Map<Long, String> expected = new HashMap<Long, String>();
+        Random random = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            long key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, "value" + i), map.put(key, "value" + i));
+            }
+        }
+        assertEquals(expected, map);
+        map.compact();
+        assertEquals(0, map.garbageBytes());
+        assertEquals(expected, map);
+    }
+
+    @Test
+    public void iteratorRemove() {
+        OffHeapMap<Integer, Integer> map = new OffHeapMap<Integer, Integer>(Serializers.INTEGER, Serializers.INTEGER);
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+        Iterator<Map.Entry<Integer, Integer>> iterator = map.entrySet().iterator();
+        int seen = 0;
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Integer> entry = iterator.next();
+            seen++;
+            if (entry.getKey() % 2 == 0) {
+                iterator.remove();
+            }
+        }
+        assertEquals(100, seen);
+        assertEquals(50, map.size());
+        assertNull(map.get(2));
+        assertEquals(Integer.valueOf(3), map.get(3));
+    }
+
+    @Test
+    public void wrappedByTransactionalMap() {
+        SingleThreadedTransactionableMap<String, String> transactionalMap = new SingleThreadedTransactionableMap<String, String>(
+                new OffHeapMap<String, String>(Serializers.STRING, Serializers.STRING));
+        transactionalMap.put("k1", "v1");
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k2", "v2");
+        transactionalMap.remove("k1");
+        transactionalMap.commit();
+        assertNull(transactionalMap.get("k1"));
+        assertEquals("v2", transactionalMap.get("k2"));
+    }
+
+    @Test
+    public void readsDuringCommitsThatCompact() throws Exception {
+        OffHeapMap<Long, String> base = new OffHeapMap<Long, String>(Serializers.LONG, Serializers.STRING, 16, 4096);
+        final SingleThreadedTransactionableMap<Long, String> map = new SingleThreadedTransactionableMap<Long, String>(base);
+        for (long key = 0; key < 100; key++) {
+            map.put(key, "stable" + key);
+        }
+        final AtomicBoolean done = new AtomicBoolean(false);
+        FailureDetectingThread reader = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                Random random = new Random(3);
+                while (!done.get()) {
+                    long key = random.nextInt(100);
+                    assertEquals("stable" + key, map.get(key));
+                }
+            }
+        };
+        reader.start();
+        for (int i = 0; i < 2000; i++) {
+            map.beginTransaction();
+            for (long key = 1000; key < 1020; key++) {
+                map.put(key, "churn" + i);
+            }
+            map.commit();
+        }
+        done.set(true);
+        reader.join();
+        assertFalse(reader.getFailedException() + "", reader.isFailed());
+        assertTrue("Churn should have been compacted away", base.garbageBytes() < base.allocatedBytes());
+        assertEquals(120, map.size());
+    }
+}
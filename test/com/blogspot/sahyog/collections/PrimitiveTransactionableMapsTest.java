@@ -0,0 +1,197 @@
+package com.blogspot.sahyog.collections;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class PrimitiveTransactionableMapsTest {
+
+    @Test
+    public void longLongTransactionalSanityTest() {
+        LongLongTransactionableMap map = new LongLongTransactionableMap(16, -1L);
+        map.put(1L, 10L);
+        map.put(2L, 20L);
+        map.beginTransaction();
+        assertEquals(10L, map.put(1L, 11L));
+        assertEquals(20L, map.remove(2L));
+        assertEquals(-1L, map.put(3L, 30L));
+        assertEquals(2, map.size());
+        assertEquals(11L, map.get(1L));
+        assertEquals(-1L, map.get(2L));
+        assertFalse(map.containsKey(2L));
+        map.commit();
+        assertEquals(2, map.size());
+        assertEquals(11L, map.get(1L));
+        assertFalse(map.containsKey(2L));
+        assertEquals(30L, map.get(3L));
+    }
+
+    @Test
+    public void longLongAbortAndClear() {
+        LongLongTransactionableMap map = new LongLongTransactionableMap();
+        map.put(1L, 10L);
+        map.beginTransaction();
+        map.clear();
+        map.put(2L, 20L);
+        assertEquals(1, map.size());
+        assertFalse(map.containsKey(1L));
+        map.abort();
+        assertEquals(10L, map.get(1L));
+        map.beginTransaction();
+        map.clear();
+        map.put(2L, 20L);
+        map.commit();
+        assertEquals(1, map.size());
+        assertEquals(20L, map.get(2L));
+    }
+
+    @Test
+    public void longLongMatchesHashMapUnderRandomTransactions() {
+        LongLongTransactionableMap map = new LongLongTransactionableMap();
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            Map<Long, Long> inTransaction = new HashMap<Long, Long>(expected);
+            map.beginTransaction();
+            for (int i = 0; i < 500; i++) {
+                long key = random.nextInt(1000);
+                if (random.nextBoolean()) {
+                    map.put(key, i);
+                    inTransaction.put(key, (long) i);
+                } else {
+                    map.remove(key);
+                    inTransaction.remove(key);
+                }
+            }
+            assertEquals(inTransaction.size(), map.size());
+            if (random.nextInt(4) == 0) {
+                map.abort();
+            } else {
+                map.commit();
+                expected = inTransaction;
+            }
+            assertEquals(expected.size(), map.size());
+            for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+                assertEquals(entry.getValue().longValue(), map.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void longDoubleSanityTest() {
+        LongDoubleTransactionableMap map = new LongDoubleTransactionableMap(16, Double.NaN);
+        map.beginTransaction();
+        map.put(1L, 1.5d);
+        map.commit();
+        assertEquals(1.5d, map.get(1L), 0d);
+        assertTrue(Double.isNaN(map.get(2L)));
+    }
+
+    @Test
+    public void intObjectTransactionalSanityTest() {
+        IntObjectTransactionableMap<String> map = new IntObjectTransactionableMap<String>();
+        map.put(1, "v1");
+        map.beginTransaction();
+        map.put(2, "v2");
+        assertEquals("v1", map.remove(1));
+        final int[] visited = new int[1];
+        map.forEach(new IntObjectTransactionableMap.EntryVisitor<String>() {
+            @Override
+            public boolean visit(int key, String value) {
+                assertEquals(2, key);
+                visited[0]++;
+                return true;
+            }
+        });
+        assertEquals(1, visited[0]);
+        map.commit();
+        assertNull(map.get(1));
+        assertEquals("v2", map.get(2));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void intObjectMatchesHashMapUnderRandomTransactions() {
+        final IntObjectTransactionableMap<String> map = new IntObjectTransactionableMap<String>();
+        Map<Integer, String> expected = new HashMap<Integer, String>();
+        Random random = new Random(7);
+        for (int round = 0; round < 50; round++) {
+            Map<Integer, String> inTransaction = new HashMap<Integer, String>(expected);
+            map.beginTransaction();
+            if (random.nextInt(10) == 0) {
+                map.clear();
+                inTransaction.clear();
+            }
+            for (int i = 0; i < 500; i++) {
+                int key = random.nextInt(1000);
+                if (random.nextBoolean()) {
+                    assertEquals(inTransaction.put(key, "v" + i), map.put(key, "v" + i));
+                } else {
+                    assertEquals(inTransaction.remove(key), map.remove(key));
+                }
+            }
+            final Map<Integer, String> visited = new HashMap<Integer, String>();
+            map.forEach(new IntObjectTransactionableMap.EntryVisitor<String>() {
+                @Override
+                public boolean visit(int key, String value) {
+                    assertNull(visited.put(key, value));
+                    return true;
+                }
+            });
+            assertEquals(inTransaction, visited);
+            assertEquals(inTransaction.size(), map.size());
+            if (random.nextInt(4) == 0) {
+                map.abort();
+            } else {
+                map.commit();
+                expected = inTransaction;
+            }
+            assertEquals(expected.size(), map.size());
+            for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), map.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void readersDoNotSeeATableHalfGrown() throws Exception {
+        final LongLongTransactionableMap map = new LongLongTransactionableMap(16, -1L);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        FailureDetectingThread reader = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                Random random = new Random(7);
+                while (!done.get()) {
+                    long key = random.nextInt(100000);
+                    long value = map.get(key);
+                    // A key being inserted can be seen before its value is stored
+                    assertTrue("Value " + value + " for key " + key, value == -1L || value == 0L || value == key * 2);
+                    map.forEach(new LongLongTransactionableMap.EntryVisitor() {
+                        @Override
+                        public boolean visit(long key, long value) {
+                            assertTrue(value == 0L || value == key * 2);
+                            return key % 16 != 0;
+                        }
+                    });
+                }
+            }
+        };
+        reader.start();
+        for (long i = 0; i < 100000; i += 100) {
+            map.beginTransaction();
+            for (long key = i; key < i + 100; key++) {
+                map.put(key, key * 2);
+            }
+            map.commit();
+        }
+        done.set(true);
+        reader.join();
+        assertFalse(reader.getFailedException() + "", reader.isFailed());
+        assertEquals(100000, map.size());
+    }
+}
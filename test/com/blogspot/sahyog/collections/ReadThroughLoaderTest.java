@@ -0,0 +1,192 @@
+package com.blogspot.sahyog.collections;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReadThroughLoaderTest {
+
+    SingleThreadedTransactionableMap<String, String> transactionalMap;
+    ExecutorService executor;
+
+    @Before
+    public void setup() {
+        transactionalMap = new SingleThreadedTransactionableMap<String, String>(new HashMap<String, String>());
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void concurrentMissesShareOneLoad() throws Exception {
+        InMemoryStore<String, String> store = new InMemoryStore<String, String>(100);
+        store.put("k1", "v1");
+        transactionalMap.setLoader(store, executor);
+        List<FailureDetectingThread> readers = new ArrayList<FailureDetectingThread>();
+        for (int i = 0; i < 8; i++) {
+            FailureDetectingThread reader = new FailureDetectingThread() {
+                @Override
+                public void runWrapped() throws Exception {
+                    assertEquals("v1", transactionalMap.getOrLoad("k1"));
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        for (FailureDetectingThread reader : readers) {
+            reader.join();
+            assertNull(reader.getFailedException());
+        }
+        assertEquals(1, store.getLoadCount());
+        assertEquals("v1", transactionalMap.get("k1"));
+        assertEquals("v1", transactionalMap.getOrLoad("k1"));
+        assertEquals(1, store.getLoadCount());
+        assertNull(transactionalMap.getOrLoad("absent"));
+        assertFalse(transactionalMap.containsKey("absent"));
+    }
+
+    @Test
+    public void loadsWaitForOpenTransaction() throws Exception {
+        InMemoryStore<String, String> store = new InMemoryStore<String, String>();
+        store.put("k1", "v1");
+        transactionalMap.setLoader(store, executor);
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k2", "v2");
+        FailureDetectingThread reader = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                assertEquals("v1", transactionalMap.getOrLoad("k1"));
+                assertFalse(transactionalMap.containsKey("k1"));
+            }
+        };
+        reader.start();
+        reader.join();
+        assertNull(reader.getFailedException());
+        assertFalse(transactionalMap.containsKey("k1"));
+        transactionalMap.commit();
+        assertEquals("v1", transactionalMap.get("k1"));
+        assertEquals("v2", transactionalMap.get("k2"));
+    }
+
+    @Test
+    public void writesDuringLoadWin() throws Exception {
+        InMemoryStore<String, String> store = new InMemoryStore<String, String>(100);
+        store.put("k1", "stale");
+        store.put("k2", "stale");
+        transactionalMap.setLoader(store, executor);
+        CompletableFuture<String> put = transactionalMap.getAsync("k1");
+        CompletableFuture<String> removed = transactionalMap.getAsync("k2");
+        transactionalMap.put("k1", "fresh");
+        transactionalMap.remove("k2");
+        assertEquals("stale", put.get(5, TimeUnit.SECONDS));
+        assertEquals("stale", removed.get(5, TimeUnit.SECONDS));
+        assertEquals("fresh", transactionalMap.get("k1"));
+        assertFalse(transactionalMap.containsKey("k2"));
+    }
+
+    @Test
+    public void writeWhileLoadedValueIsPutWins() throws Exception {
+        final Thread testThread = Thread.currentThread();
+        final CountDownLatch installing = new CountDownLatch(1);
+        // Holds the loader's thread between checking for the key and putting the loaded value
+        transactionalMap = new SingleThreadedTransactionableMap<String, String>(new HashMap<String, String>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public boolean containsKey(Object key) {
+                boolean contains = super.containsKey(key);
+                if (Thread.currentThread() != testThread) {
+                    installing.countDown();
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return contains;
+            }
+        });
+        InMemoryStore<String, String> store = new InMemoryStore<String, String>();
+        store.put("k1", "stale");
+        transactionalMap.setLoader(store, executor);
+        CompletableFuture<String> loaded = transactionalMap.getAsync("k1");
+        assertTrue(installing.await(5, TimeUnit.SECONDS));
+        transactionalMap.put("k1", "fresh");
+        assertEquals("stale", loaded.get(5, TimeUnit.SECONDS));
+        assertEquals("fresh", transactionalMap.get("k1"));
+    }
+
+    @Test
+    public void keyRemovedInTransactionIsNotLoaded() throws Exception {
+        InMemoryStore<String, String> store = new InMemoryStore<String, String>();
+        store.put("k1", "v1");
+        transactionalMap.setLoader(store, executor);
+        transactionalMap.beginTransaction();
+        transactionalMap.remove("k1");
+        assertNull(transactionalMap.getOrLoad("k1"));
+        transactionalMap.commit();
+        assertEquals(0, store.getLoadCount());
+    }
+
+    @Test
+    public void writeBehindBatchesNetChangesAndSkipsLoads() throws Exception {
+        InMemoryStore<String, String> store = new InMemoryStore<String, String>();
+        store.put("loaded", "v");
+        transactionalMap.setLoader(store, executor);
+        ChangeSubscription<String, String> subscription = transactionalMap.subscribeWriteBehind(store, 64, 64);
+        try {
+            assertEquals("v", transactionalMap.getOrLoad("loaded"));
+            for (int i = 0; i < 10; i++) {
+                transactionalMap.beginTransaction();
+                transactionalMap.put("k1", "v" + i);
+                transactionalMap.put("k" + (i + 2), "v");
+                transactionalMap.remove("k" + (i + 1));
+                transactionalMap.commit();
+            }
+            assertTrue(subscription.awaitDelivered(transactionalMap.getChangeSequence(), 5, TimeUnit.SECONDS));
+            assertNull(subscription.getFailure());
+            assertTrue(store.getWriteCount() <= 10);
+            assertEquals("v", store.get("loaded"));
+            assertEquals("v9", store.get("k1"));
+            assertEquals("v", store.get("k11"));
+            assertFalse(store.containsKey("k10"));
+        } finally {
+            subscription.close();
+        }
+    }
+
+    @Test
+    public void evictionsAreNotWrittenBehind() throws Exception {
+        BoundedTransactionableMap<String, String> boundedMap = new BoundedTransactionableMap<String, String>(1, EvictionPolicy.LRU);
+        InMemoryStore<String, String> store = new InMemoryStore<String, String>();
+        store.put("k1", "v1");
+        store.put("k2", "v2");
+        boundedMap.setLoader(store, executor);
+        ChangeSubscription<String, String> subscription = boundedMap.subscribeWriteBehind(store, 16, 16);
+        try {
+            assertEquals("v1", boundedMap.getOrLoad("k1"));
+            assertEquals("v2", boundedMap.getOrLoad("k2"));
+            assertFalse(boundedMap.containsKey("k1"));
+            assertEquals(1, boundedMap.getEvictionCount());
+            assertTrue(subscription.awaitDelivered(boundedMap.getChangeSequence(), 5, TimeUnit.SECONDS));
+            assertEquals(0, store.getWriteCount());
+            assertEquals("v1", store.get("k1"));
+        } finally {
+            subscription.close();
+        }
+    }
+}
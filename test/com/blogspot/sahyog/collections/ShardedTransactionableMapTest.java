@@ -0,0 +1,159 @@
+package com.blogspot.sahyog.collections;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Small integer keys hash to themselves, so with 4 shards key k lives in shard k % 4.
+ */
+public class ShardedTransactionableMapTest {
+
+    ShardedTransactionableMap<Integer, String> transactionalMap;
+
+    @Before
+    public void setup() {
+        transactionalMap = new ShardedTransactionableMap<Integer, String>(4);
+    }
+
+    @Test
+    public void transactionalSanityTest() {
+        transactionalMap.put(1, "v1");
+        transactionalMap.beginTransaction();
+        transactionalMap.put(2, "v2");
+        transactionalMap.remove(1);
+        assertEquals("v2", transactionalMap.get(2));
+        assertFalse(transactionalMap.containsKey(1));
+        assertEquals(1, transactionalMap.size());
+        transactionalMap.commit();
+        assertEquals("v2", transactionalMap.get(2));
+        assertNull(transactionalMap.get(1));
+        assertFalse(transactionalMap.isUnderTransaction(2));
+    }
+
+    @Test
+    public void nullWritesAreRejectedBeforeAnyShardChanges() {
+        transactionalMap.put(0, "v0");
+        transactionalMap.put(1, "v1");
+        transactionalMap.beginTransaction();
+        transactionalMap.put(0, "changed");
+        try {
+            transactionalMap.put(1, null);
+            fail("A null value should have been rejected");
+        } catch (NullPointerException expected) {
+        }
+        try {
+            transactionalMap.putAll(Collections.singletonMap(2, (String) null));
+            fail("A null value should have been rejected");
+        } catch (NullPointerException expected) {
+        }
+        assertNull(transactionalMap.remove(null));
+        //nothing of the rejected writes reached a shard's changes, so the commit applies whole
+        transactionalMap.commit();
+        assertEquals("changed", transactionalMap.get(0));
+        assertEquals("v1", transactionalMap.get(1));
+        assertFalse(transactionalMap.containsKey(2));
+        assertEquals(2, transactionalMap.size());
+        assertFalse(transactionalMap.isUnderTransaction(0));
+        assertFalse(transactionalMap.isUnderTransaction(1));
+    }
+
+    @Test
+    public void nonTransactionWritersAreOnlyBlockedOnTouchedShards() throws Exception {
+        transactionalMap.beginTransaction();
+        transactionalMap.put(1, "v1");
+        FailureDetectingThread writer = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                transactionalMap.put(2, "other shard");
+                assertNull("Uncommitted value should not be visible", transactionalMap.get(1));
+                try {
+                    transactionalMap.put(5, "same shard as 1");
+                    fail("Shard 1 is under transaction");
+                } catch (IllegalStateException expected) {
+                }
+            }
+        };
+        writer.start();
+        writer.join();
+        assertFalse(writer.getFailedException() + "", writer.isFailed());
+        transactionalMap.commit();
+        assertEquals("v1", transactionalMap.get(1));
+        assertEquals("other shard", transactionalMap.get(2));
+        assertNull(transactionalMap.get(5));
+    }
+
+    @Test
+    public void transactionsOnDisjointShardsRunInParallel() throws Exception {
+        transactionalMap.beginTransaction();
+        transactionalMap.put(1, "v1");
+        FailureDetectingThread other = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                transactionalMap.beginTransaction();
+                transactionalMap.put(2, "v2");
+                transactionalMap.commit();
+            }
+        };
+        other.start();
+        other.join();
+        assertFalse(other.getFailedException() + "", other.isFailed());
+        transactionalMap.commit();
+        assertEquals("v1", transactionalMap.get(1));
+        assertEquals("v2", transactionalMap.get(2));
+    }
+
+    @Test
+    public void outOfOrderLockOnBusyShardFails() throws Exception {
+        final Object signal = new Object();
+        final MutableBoolean locked = new MutableBoolean();
+        final MutableBoolean release = new MutableBoolean();
+        FailureDetectingThread holder = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                transactionalMap.beginTransaction();
+                transactionalMap.put(1, "held");
+                synchronized (signal) {
+                    locked.makeTrue();
+                    signal.notifyAll();
+                    while (!release.get()) {
+                        signal.wait();
+                    }
+                }
+                transactionalMap.abort();
+            }
+        };
+        holder.start();
+        synchronized (signal) {
+            while (!locked.get()) {
+                signal.wait();
+            }
+        }
+        transactionalMap.beginTransaction();
+        transactionalMap.put(3, "v3");
+        try {
+            transactionalMap.put(1, "v1");
+            fail("Shard 1 is lower than the held shard 3 and busy");
+        } catch (TransactionException expected) {
+        }
+        transactionalMap.abort();
+        synchronized (signal) {
+            release.makeTrue();
+            signal.notifyAll();
+        }
+        holder.join();
+        assertFalse(holder.getFailedException() + "", holder.isFailed());
+
+        transactionalMap.beginTransaction();
+        transactionalMap.lockShardsFor(Arrays.asList(3, 1));
+        transactionalMap.put(3, "v3");
+        transactionalMap.put(1, "v1");
+        transactionalMap.commit();
+        assertEquals("v1", transactionalMap.get(1));
+        assertEquals("v3", transactionalMap.get(3));
+    }
+}
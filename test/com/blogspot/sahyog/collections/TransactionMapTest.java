@@ -2,7 +2,17 @@ package com.blogspot.sahyog.collections;
 
 import static org.junit.Assert.*;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.stream.StreamSupport;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -63,7 +73,319 @@ public class TransactionMapTest {
         ensureContainsKeyValue(key, value);
     }
 
-        private void ensureContainsKeyValue(String key, String value) {
+    @Test
+    public void largeCommitWithRemovals() {
+        for (int i = 0; i < 1000; i++) {
+            transactionalMap.put("k" + i, "v" + i);
+        }
+        transactionalMap.beginTransaction();
+        for (int i = 0; i < 1000; i += 2) {
+            transactionalMap.remove("k" + i);
+        }
+        for (int i = 1000; i < 5000; i++) {
+            transactionalMap.put("k" + i, "v" + i);
+        }
+        transactionalMap.commit();
+        assertEquals(4500, transactionalMap.size());
+        assertFalse(transactionalMap.containsKey("k0"));
+        ensureContainsKeyValue("k1", "v1");
+        ensureContainsKeyValue("k4999", "v4999");
+    }
+
+    @Test
+    public void transactionsOnDifferentMapsAreIndependent() {
+        SingleThreadedTransactionableMap<String, String> otherMap = new SingleThreadedTransactionableMap<String, String>(
+                new HashMap<String, String>());
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k1", "v1");
+        assertNull(otherMap.get("k1"));
+        otherMap.beginTransaction();
+        otherMap.put("k2", "v2");
+        assertFalse(transactionalMap.containsKey("k2"));
+        otherMap.abort();
+        transactionalMap.commit();
+        ensureContainsKeyValue("k1", "v1");
+        assertTrue(otherMap.isEmpty());
+    }
+
+    @Test
+    public void secondThreadCannotBeginTransaction() throws Exception {
+        transactionalMap.beginTransaction();
+        FailureDetectingThread other = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                transactionalMap.beginTransaction();
+            }
+        };
+        other.start();
+        other.join();
+        assertTrue(other.getFailedException() instanceof TransactionException);
+        transactionalMap.abort();
+    }
+
+    @Test
+    public void rollbackToSavepointKeepsEarlierChanges() {
+        transactionalMap.put("k0", "v0");
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k1", "v1");
+        Savepoint savepoint = transactionalMap.setSavepoint();
+        transactionalMap.put("k1", "changed");
+        transactionalMap.put("k2", "v2");
+        transactionalMap.remove("k0");
+        transactionalMap.rollbackToSavepoint(savepoint);
+        assertEquals("v0", transactionalMap.get("k0"));
+        assertEquals("v1", transactionalMap.get("k1"));
+        assertFalse(transactionalMap.containsKey("k2"));
+        assertEquals(2, transactionalMap.size());
+        transactionalMap.clear();
+        transactionalMap.rollbackToSavepoint(savepoint);
+        assertEquals(2, transactionalMap.size());
+        transactionalMap.commit();
+        ensureContainsKeyValue("k0", "v0");
+        ensureContainsKeyValue("k1", "v1");
+        assertEquals(2, transactionalMap.size());
+    }
+
+    @Test(expected = TransactionException.class)
+    public void releasedSavepointCannotBeRolledBackTo() {
+        transactionalMap.beginTransaction();
+        Savepoint first = transactionalMap.setSavepoint();
+        Savepoint second = transactionalMap.setSavepoint();
+        transactionalMap.put("k1", "v1");
+        transactionalMap.releaseSavepoint(first);
+        ensureContainsKeyValue("k1", "v1");
+        transactionalMap.rollbackToSavepoint(second);
+    }
+
+    @Test
+    public void nestedTransactions() {
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k1", "v1");
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k2", "v2");
+        transactionalMap.commit();
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k3", "v3");
+        transactionalMap.remove("k1");
+        transactionalMap.abort();
+        transactionalMap.commit();
+        ensureContainsKeyValue("k1", "v1");
+        ensureContainsKeyValue("k2", "v2");
+        assertFalse(transactionalMap.containsKey("k3"));
+    }
+
+    @Test
+    public void iterationSeesMergedView() {
+        for (int i = 0; i < 10; i++) {
+            transactionalMap.put("k" + i, "v" + i);
+        }
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k1", "changed");
+        transactionalMap.put("k10", "v10");
+        transactionalMap.remove("k2");
+        transactionalMap.remove("absent");
+        Map<String, String> expected = new HashMap<String, String>();
+        for (int i = 0; i < 11; i++) {
+            expected.put("k" + i, "v" + i);
+        }
+        expected.put("k1", "changed");
+        expected.remove("k2");
+        Map<String, String> seen = new HashMap<String, String>();
+        int count = 0;
+        for (Map.Entry<String, String> entry : transactionalMap.entrySet()) {
+            seen.put(entry.getKey(), entry.getValue());
+            count++;
+        }
+        assertEquals(expected, seen);
+        assertEquals(expected.size(), count);
+        assertEquals(expected.size(), transactionalMap.size());
+        assertTrue(transactionalMap.containsValue("changed"));
+        assertFalse(transactionalMap.containsValue("v2"));
+        transactionalMap.commit();
+        assertEquals(expected, new HashMap<String, String>(transactionalMap));
+    }
+
+    @Test
+    public void iteratorRemoveGoesIntoTransaction() {
+        for (int i = 0; i < 10; i++) {
+            transactionalMap.put("k" + i, "v" + i);
+        }
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k3", "changed");
+        transactionalMap.put("new", "value");
+        for (Iterator<String> it = transactionalMap.keySet().iterator(); it.hasNext();) {
+            String key = it.next();
+            if (!key.equals("k0")) {
+                it.remove();
+            }
+        }
+        assertEquals(1, transactionalMap.size());
+        assertEquals(Collections.singleton("k0"), new HashSet<String>(transactionalMap.keySet()));
+        transactionalMap.commit();
+        assertEquals(1, transactionalMap.size());
+        ensureContainsKeyValue("k0", "v0");
+    }
+
+    @Test
+    public void clearThenPutKeepsTheClear() {
+        transactionalMap.put("k0", "v0");
+        transactionalMap.put("k1", "v1");
+        transactionalMap.beginTransaction();
+        transactionalMap.clear();
+        transactionalMap.put("k1", "changed");
+        transactionalMap.remove("k0");
+        assertEquals(1, transactionalMap.size());
+        assertNull(transactionalMap.get("k0"));
+        transactionalMap.commit();
+        assertEquals(1, transactionalMap.size());
+        ensureContainsKeyValue("k1", "changed");
+    }
+
+    @Test
+    public void largeDeltaWithNullKeyAndRollback() {
+        for (int i = 0; i < 100; i++) {
+            transactionalMap.put("k" + i, "v" + i);
+        }
+        transactionalMap.beginTransaction();
+        transactionalMap.put(null, "nullValue");
+        for (int i = 50; i < 2000; i++) {
+            transactionalMap.put("k" + i, "t" + i);
+        }
+        Savepoint savepoint = transactionalMap.setSavepoint();
+        for (int i = 0; i < 2000; i += 3) {
+            transactionalMap.remove("k" + i);
+        }
+        transactionalMap.remove(null);
+        transactionalMap.rollbackToSavepoint(savepoint);
+        for (int i = 1000; i < 2000; i++) {
+            transactionalMap.remove("k" + i);
+        }
+        assertEquals(1001, transactionalMap.size());
+        assertEquals("nullValue", transactionalMap.get(null));
+        transactionalMap.commit();
+        assertEquals(1001, transactionalMap.size());
+        ensureContainsKeyValue("k0", "v0");
+        ensureContainsKeyValue("k999", "t999");
+        assertFalse(transactionalMap.containsKey("k1000"));
+        assertEquals("nullValue", transactionalMap.get(null));
+    }
+
+    @Test
+    public void parallelBulkOperationsSeeTransactionView() {
+        for (int i = 0; i < 10000; i++) {
+            transactionalMap.put("k" + i, Integer.toString(i));
+        }
+        BiFunction<String, String, Long> toLong = new BiFunction<String, String, Long>() {
+            @Override
+            public Long apply(String key, String value) {
+                return Long.valueOf(value);
+            }
+        };
+        BiFunction<Long, Long, Long> sum = new BiFunction<Long, Long, Long>() {
+            @Override
+            public Long apply(Long a, Long b) {
+                return a + b;
+            }
+        };
+        assertEquals(Long.valueOf(49995000L), transactionalMap.reduce(1, toLong, sum));
+        transactionalMap.beginTransaction();
+        transactionalMap.remove("k0");
+        transactionalMap.remove("k1");
+        transactionalMap.put("k2", "100");
+        transactionalMap.put("extra", "5");
+        assertEquals(Long.valueOf(49995000L - 1 + 98 + 5), transactionalMap.reduce(1, toLong, sum));
+        assertEquals(Long.valueOf(49995000L - 1 + 98 + 5), transactionalMap.reduce(Long.MAX_VALUE, toLong, sum));
+        final AtomicLong count = new AtomicLong();
+        transactionalMap.forEach(1, new BiConsumer<String, String>() {
+            @Override
+            public void accept(String key, String value) {
+                count.incrementAndGet();
+            }
+        });
+        assertEquals(transactionalMap.size(), count.get());
+        assertEquals("extra", transactionalMap.search(1, new BiFunction<String, String, String>() {
+            @Override
+            public String apply(String key, String value) {
+                return value.equals("5") ? key : null;
+            }
+        }));
+        assertNull(transactionalMap.search(1, new BiFunction<String, String, String>() {
+            @Override
+            public String apply(String key, String value) {
+                return key.equals("k1") ? key : null;
+            }
+        }));
+        assertEquals(transactionalMap.size(), StreamSupport.stream(transactionalMap.entrySpliterator(), true).count());
+        transactionalMap.abort();
+    }
+
+    @Test
+    public void tryBeginAndTimedBegin() throws Exception {
+        transactionalMap.beginTransaction();
+        final CountDownLatch attempted = new CountDownLatch(1);
+        FailureDetectingThread other = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                assertFalse(transactionalMap.tryBeginTransaction());
+                try {
+                    transactionalMap.beginTransaction(10, TimeUnit.MILLISECONDS);
+                    fail("Expected a timeout");
+                } catch (TransactionException expected) {
+                }
+                attempted.countDown();
+                transactionalMap.beginTransaction(10, TimeUnit.SECONDS);
+                transactionalMap.put("k2", "v2");
+                transactionalMap.commit();
+            }
+        };
+        other.start();
+        assertTrue(attempted.await(10, TimeUnit.SECONDS));
+        transactionalMap.put("k1", "v1");
+        transactionalMap.commit();
+        other.join();
+        assertNull(other.getFailedException());
+        ensureContainsKeyValue("k1", "v1");
+        ensureContainsKeyValue("k2", "v2");
+        assertTrue(transactionalMap.tryBeginTransaction());
+        transactionalMap.abort();
+    }
+
+    @Test
+    public void blockingWritesWaitForTransaction() throws Exception {
+        transactionalMap.setBlockingWrites(true);
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k1", "v1");
+        FailureDetectingThread writer = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                transactionalMap.put("k1", "outside");
+            }
+        };
+        writer.start();
+        writer.join(100);
+        assertTrue(writer.isAlive());
+        assertEquals("v1", transactionalMap.get("k1"));
+        transactionalMap.commit();
+        writer.join();
+        assertNull(writer.getFailedException());
+        ensureContainsKeyValue("k1", "outside");
+    }
+
+    @Test
+    public void interruptedThreadCanBeginUncontendedTransaction() {
+        Thread.currentThread().interrupt();
+        try {
+            transactionalMap.beginTransaction();
+            transactionalMap.put("k1", "v1");
+            transactionalMap.commit();
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        ensureContainsKeyValue("k1", "v1");
+    }
+
+    private void ensureContainsKeyValue(String key, String value) {
         assertTrue(transactionalMap.containsKey(key));
         assertTrue(transactionalMap.containsValue(value));
         assertEquals(value, transactionalMap.get(key));
@@ -0,0 +1,102 @@
+package com.blogspot.sahyog.collections;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransactionMetricsTest {
+
+    SingleThreadedTransactionableMap<String, String> transactionalMap;
+
+    @Before
+    public void setup() {
+        transactionalMap = new SingleThreadedTransactionableMap<String, String>(new HashMap<String, String>());
+    }
+
+    @Test
+    public void disabledByDefault() {
+        assertNull(transactionalMap.getMetrics());
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k1", "v1");
+        transactionalMap.commit();
+        assertNull(transactionalMap.getMetrics());
+    }
+
+    @Test
+    public void recordsTransactions() throws Exception {
+        transactionalMap.put("base", "v");
+        TransactionMetrics metrics = transactionalMap.enableMetrics();
+        transactionalMap.beginTransaction();
+        transactionalMap.put("k1", "v1");
+        transactionalMap.put("k2", "v2");
+        transactionalMap.get("k1");
+        transactionalMap.get("base");
+        transactionalMap.get("absent");
+        FailureDetectingThread writer = new FailureDetectingThread() {
+            @Override
+            public void runWrapped() throws Exception {
+                transactionalMap.put("k3", "v3");
+            }
+        };
+        writer.start();
+        writer.join();
+        assertTrue(writer.getFailedException() instanceof IllegalStateException);
+        transactionalMap.commit();
+        transactionalMap.beginTransaction();
+        transactionalMap.abort();
+
+        TransactionMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(2, snapshot.getBeginCount());
+        assertEquals(1, snapshot.getCommitCount());
+        assertEquals(1, snapshot.getAbortCount());
+        assertEquals(1, snapshot.getRejectedWriteCount());
+        assertEquals(1, snapshot.getDeltaReadCount());
+        assertEquals(2, snapshot.getBaseReadCount());
+        assertEquals(1, snapshot.getDeltaSizes().getCount());
+        assertEquals(2, snapshot.getDeltaSizes().getMax());
+        assertEquals(1, snapshot.getCommitLatencyNanos().getCount());
+        assertEquals(2, snapshot.getTransactionDurationNanos().getCount());
+        assertEquals(metrics.getCommitCount(), snapshot.getCommitCount());
+    }
+
+    @Test
+    public void histogramPercentilesAreUpperBounds() {
+        TransactionMetrics.Histogram histogram = new TransactionMetrics.Histogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        TransactionMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500.5, snapshot.getMean(), 0.001);
+        long median = snapshot.percentile(50);
+        assertTrue(median >= 500 && median <= 500 * 5 / 4);
+        long max = snapshot.getMax();
+        assertTrue(max >= 1000 && max <= 1000 * 5 / 4);
+        for (long value = 0; value < 100000; value += 7) {
+            int index = TransactionMetrics.Histogram.indexFor(value);
+            assertTrue(TransactionMetrics.Histogram.highestValueAt(index) >= value);
+            assertTrue(index == 0 || TransactionMetrics.Histogram.highestValueAt(index - 1) < value);
+        }
+        assertEquals(Long.MAX_VALUE,
+                TransactionMetrics.Histogram.highestValueAt(TransactionMetrics.Histogram.indexFor(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void registersAsMBean() throws Exception {
+        TransactionMetrics metrics = transactionalMap.enableMetrics();
+        String name = "com.blogspot.sahyog:type=TransactionMetrics,name=test";
+        metrics.registerMBean(name);
+        try {
+            transactionalMap.beginTransaction();
+            transactionalMap.commit();
+            Object commits = java.lang.management.ManagementFactory.getPlatformMBeanServer().getAttribute(
+                    new javax.management.ObjectName(name), "CommitCount");
+            assertEquals(1L, commits);
+        } finally {
+            metrics.unregisterMBean(name);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.blogspot.sahyog.json;
+
+import static org.junit.Assert.*;
+import static com.blogspot.sahyog.json.JsonTestData.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JsonArraySingleLineObjectsTest {
+
+    File directory;
+
+    @Before
+    public void setup() throws IOException {
+        directory = temporaryDirectory("single-line");
+    }
+
+    @After
+    public void cleanup() {
+        delete(directory);
+    }
+
+    @Test
+    public void everyObjectIsOnALineOfItsOwn() throws Exception {
+        List<String> records = records(2000, 1024 * 1024, 3, 1500);
+        File input = new File(directory, "input.json");
+        write(input, prettyArray(records));
+        File output = new File(directory, "output.json");
+        JsonArraySingleLineObjects.main(new String[] { input.getPath(), output.getPath() });
+        assertEquals(singleLineArray(records), read(output));
+    }
+
+    @Test
+    public void emptyArray() throws Exception {
+        File input = new File(directory, "input.json");
+        write(input, " [ \n ] ");
+        File output = new File(directory, "output.json");
+        JsonArraySingleLineObjects.main(new String[] { input.getPath(), output.getPath() });
+        assertEquals(singleLineArray(Collections.<String> emptyList()), read(output));
+    }
+
+    @Test
+    public void gzipOutputIsIndexedWithoutThreads() throws Exception {
+        // More than one batch, so that the records take more than one member
+        List<String> records = records(3000, 0);
+        for (int i = 0; i < records.size(); i++) {
+            records.set(i, record(i, 3000 + i % 37, false));
+        }
+        File input = new File(directory, "input.json");
+        write(input, prettyArray(records));
+        for (String[] mode : new String[][] { {}, { "-raw" } }) {
+            File output = new File(directory, "output" + mode.length + ".json.gz");
+            String[] args = new String[mode.length + 3];
+            System.arraycopy(mode, 0, args, 0, mode.length);
+            args[mode.length] = "-gzip";
+            args[mode.length + 1] = input.getPath();
+            args[mode.length + 2] = output.getPath();
+            JsonArraySingleLineObjects.main(args);
+            assertEquals(singleLineArray(records), gunzip(output));
+            Map<?, ?> index = (Map<?, ?>) readJson(new File(output.getPath() + ParallelJsonArraySplitter.INDEX_SUFFIX));
+            assertEquals((long) records.size(), index.get("records"));
+            assertEquals(output.length(), ((Long) index.get("bytes")).longValue());
+            assertTrue(((List<?>) index.get("members")).size() > 1);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.blogspot.sahyog.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds json arrays of objects for the tests, along with the output expected
+ * for them, and reads back what was written.
+ */
+final class JsonTestData {
+    static final String SEP = System.getProperty("line.separator");
+
+    private JsonTestData() {
+    }
+
+    /**
+     * Objects with escaped quotes and backslashes, braces and brackets inside
+     * strings and nested containers. Each object is padded by a byte more
+     * than the previous one, so the escapes fall at every offset of an eight
+     * byte word.
+     *
+     * @param large indexes of the objects padded by the given number of bytes instead
+     */
+    static List<String> records(int count, int largePadding, int... large) {
+        List<String> records = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(record(i, Arrays.binarySearch(large, i) >= 0 ? largePadding : i % 29, false));
+        }
+        return records;
+    }
+
+    /**
+     * @return the object as the reformatters write it, or spread over several lines with whitespace between the
+     *         tokens
+     */
+    static String record(int i, int padding, boolean pretty) {
+        StringBuilder pad = new StringBuilder(padding);
+        for (int j = 0; j < padding; j++) {
+            pad.append((char) ('a' + j % 26));
+        }
+        String text = "\"" + pad.substring(0, Math.min(padding, 7)) + "quote \\\" backslash \\\\ both \\\\\\\" newline \\n\u00e9 } ] {\"";
+        if (pretty) {
+            return "{\n  \"id\" : " + i + ",\n  \"text\" : " + text + " ,\n  \"nested\" : {\t\"list\" : [ 1, -2.5, true, null,"
+                    + " { \"s\" : \"[{,\\\\\" } ], \"empty\" : { } , \"none\" : [ ]\r\n  },\n  \"pad\" : \"" + pad + "\"\n}";
+        }
+        return "{\"id\":" + i + ",\"text\":" + text + ",\"nested\":{\"list\":[1,-2.5,true,null,{\"s\":\"[{,\\\\\"}],"
+                + "\"empty\":{},\"none\":[]},\"pad\":\"" + pad + "\"}";
+    }
+
+    /**
+     * @return the records as a pretty printed json array
+     */
+    static String prettyArray(List<String> records) {
+        StringBuilder array = new StringBuilder("[\n");
+        for (int i = 0; i < records.size(); i++) {
+            if (i > 0) {
+                array.append(" ,\n");
+            }
+            array.append(prettyOf(records.get(i)));
+        }
+        return array.append("\n]\n").toString();
+    }
+
+    private static String prettyOf(String compact) {
+        int idStart = compact.indexOf(':') + 1;
+        int id = Integer.parseInt(compact.substring(idStart, compact.indexOf(',', idStart)));
+        int padStart = compact.lastIndexOf(":\"") + 2;
+        return record(id, compact.length() - padStart - 2, true);
+    }
+
+    /**
+     * @return the output of a single file: the brackets on lines of their own and a comma before every object but
+     *         the first
+     */
+    static String singleLineArray(List<String> records) {
+        StringBuilder output = new StringBuilder("[" + SEP);
+        for (int i = 0; i < records.size(); i++) {
+            output.append(i == 0 ? "" : ",").append(records.get(i)).append(SEP);
+        }
+        return output.append("]").toString();
+    }
+
+    /**
+     * @return the concatenation of the part files: one object per line
+     */
+    static String lines(List<String> records) {
+        StringBuilder output = new StringBuilder();
+        for (String record : records) {
+            output.append(record).append(SEP);
+        }
+        return output.toString();
+    }
+
+    static void write(File file, String contents) throws IOException {
+        OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(contents.getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+    }
+
+    static void gzip(File file, String contents) throws IOException {
+        OutputStream output = new GZIPOutputStream(new FileOutputStream(file));
+        try {
+            output.write(contents.getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+    }
+
+    static String read(File file) throws IOException {
+        return read(new FileInputStream(file));
+    }
+
+    static String gunzip(File file) throws IOException {
+        return read(new GZIPInputStream(new FileInputStream(file)));
+    }
+
+    /**
+     * Reads the stream to its end and closes it.
+     */
+    static String read(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = input.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toString("UTF-8");
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return the json in the file as maps, lists, longs and strings
+     */
+    static Object readJson(File file) throws IOException {
+        JsonParser jp = new JsonFactory().createParser(file);
+        try {
+            jp.nextToken();
+            return readValue(jp);
+        } finally {
+            jp.close();
+        }
+    }
+
+    private static Object readValue(JsonParser jp) throws IOException {
+        switch (jp.currentToken()) {
+        case START_OBJECT:
+            Map<String, Object> object = new LinkedHashMap<String, Object>();
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String name = jp.getCurrentName();
+                jp.nextToken();
+                object.put(name, readValue(jp));
+            }
+            return object;
+        case START_ARRAY:
+            List<Object> array = new ArrayList<Object>();
+            while (jp.nextToken() != JsonToken.END_ARRAY) {
+                array.add(readValue(jp));
+            }
+            return array;
+        case VALUE_NUMBER_INT:
+            return jp.getLongValue();
+        default:
+            return jp.getText();
+        }
+    }
+
+    static File temporaryDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        directory.delete();
+        if (!directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return directory;
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,245 @@
+package com.blogspot.sahyog.json;
+
+import static org.junit.Assert.*;
+import static com.blogspot.sahyog.json.JsonTestData.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelJsonArraySplitterTest {
+
+    File directory;
+
+    @Before
+    public void setup() throws IOException {
+        directory = temporaryDirectory("splitter");
+    }
+
+    @After
+    public void cleanup() {
+        delete(directory);
+    }
+
+    @Test
+    public void sameOutputInEveryMode() throws Exception {
+        // More than one batch, with two objects larger than a chunk of a stream
+        List<String> records = records(5000, 1536 * 1024, 7, 4000);
+        for (int i = 0; i < records.size(); i++) {
+            if (i % 3 == 0) {
+                records.set(i, record(i, 4000 + i % 61, false));
+            }
+        }
+        File input = new File(directory, "input.json");
+        write(input, prettyArray(records));
+        File compressedInput = new File(directory, "input.json.gz");
+        gzip(compressedInput, prettyArray(records));
+        String expected = singleLineArray(records);
+        assertTrue(expected.length() > ParallelJsonArraySplitter.BATCH_BYTES);
+
+        File output = new File(directory, "output.json");
+        JsonArraySingleLineObjects.main(new String[] { input.getPath(), output.getPath() });
+        assertEquals(expected, read(output));
+        JsonArraySingleLineObjects.main(new String[] { "-raw", "-validate", compressedInput.getPath(), output.getPath() });
+        assertEquals(expected, read(output));
+        for (boolean raw : new boolean[] { false, true }) {
+            ParallelJsonArraySplitter splitter = new ParallelJsonArraySplitter(4, raw, raw, 0);
+            assertEquals(records.size(), splitter.split(input, output));
+            assertEquals(expected, read(output));
+            assertEquals(records.size(), splitter.split(compressedInput, output));
+            assertEquals(expected, read(output));
+            InputStream stream = new FileInputStream(input);
+            try {
+                assertEquals(records.size(), splitter.split(stream, output));
+            } finally {
+                stream.close();
+            }
+            assertEquals(expected, read(output));
+        }
+    }
+
+    @Test
+    public void emptyArray() throws Exception {
+        File input = new File(directory, "input.json");
+        write(input, " [ \n ] ");
+        File output = new File(directory, "output.json");
+        String expected = singleLineArray(Collections.<String> emptyList());
+        JsonArraySingleLineObjects.main(new String[] { input.getPath(), output.getPath() });
+        assertEquals(expected, read(output));
+        for (boolean raw : new boolean[] { false, true }) {
+            assertEquals(0, new ParallelJsonArraySplitter(2, raw, false, 0).split(input, output));
+            assertEquals(expected, read(output));
+        }
+        assertEquals(0, RawSingleLineReformatter.reformat(input, output, true));
+        assertEquals(expected, read(output));
+    }
+
+    @Test
+    public void partsHoldTheLinesAndTheManifestAddsUp() throws Exception {
+        List<String> records = records(20000, 700 * 1024, 15000);
+        File input = new File(directory, "input.json");
+        write(input, prettyArray(records));
+        long partBytes = 512 * 1024;
+        for (boolean raw : new boolean[] { false, true }) {
+            File parts = new File(directory, raw ? "raw" : "parsed");
+            assertEquals(records.size(), new ParallelJsonArraySplitter(4, raw, false, partBytes).split(input, parts));
+            Map<?, ?> manifest = (Map<?, ?>) readJson(new File(parts, ParallelJsonArraySplitter.MANIFEST_NAME));
+            List<?> partList = (List<?>) manifest.get("parts");
+            assertTrue(partList.size() > 4);
+            StringBuilder concatenated = new StringBuilder();
+            long recordCount = 0;
+            long bytes = 0;
+            long inputOffset = 0;
+            for (Object entry : partList) {
+                Map<?, ?> part = (Map<?, ?>) entry;
+                File file = new File(parts, (String) part.get("file"));
+                String contents = read(file);
+                concatenated.append(contents);
+                long partSize = (Long) part.get("bytes");
+                assertEquals(file.length(), partSize);
+                assertTrue(partSize <= partBytes || contents.contains(record(15000, 700 * 1024, false)));
+                assertEquals(bytes, ((Long) part.get("offset")).longValue());
+                assertEquals(recordCount, ((Long) part.get("firstRecord")).longValue());
+                assertEquals(contents.split(SEP).length, ((Long) part.get("records")).longValue());
+                assertTrue((Long) part.get("inputOffset") >= inputOffset);
+                inputOffset = (Long) part.get("inputOffset") + (Long) part.get("inputBytes");
+                recordCount += (Long) part.get("records");
+                bytes += partSize;
+            }
+            assertEquals(lines(records), concatenated.toString());
+            assertEquals(records.size(), recordCount);
+            assertEquals(records.size(), ((Long) manifest.get("records")).longValue());
+            assertEquals(bytes, ((Long) manifest.get("bytes")).longValue());
+            assertTrue(inputOffset <= input.length());
+        }
+        write(input, "[ ]");
+        File parts = new File(directory, "empty");
+        assertEquals(0, new ParallelJsonArraySplitter(2, false, false, partBytes).split(input, parts));
+        Map<?, ?> manifest = (Map<?, ?>) readJson(new File(parts, ParallelJsonArraySplitter.MANIFEST_NAME));
+        assertEquals(0L, manifest.get("records"));
+        assertTrue(((List<?>) manifest.get("parts")).isEmpty());
+        assertEquals(1, parts.list().length);
+    }
+
+    @Test
+    public void gzipRoundTrip() throws Exception {
+        List<String> records = records(2000, 600 * 1024, 3, 1500);
+        File input = new File(directory, "input.json.gz");
+        gzip(input, prettyArray(records));
+        String expected = singleLineArray(records);
+        File output = new File(directory, "output.json.gz");
+        JsonArraySingleLineObjects.main(new String[] { "-gzip", input.getPath(), output.getPath() });
+        assertEquals(expected, gunzip(output));
+        JsonArraySingleLineObjects.main(new String[] { "-raw", "-gzip", input.getPath(), output.getPath() });
+        assertEquals(expected, gunzip(output));
+        for (boolean raw : new boolean[] { false, true }) {
+            assertEquals(records.size(), new ParallelJsonArraySplitter(4, raw, false, 0, true).split(input, output));
+            assertEquals(expected, gunzip(output));
+            File parts = new File(directory, raw ? "raw" : "parsed");
+            assertEquals(records.size(), new ParallelJsonArraySplitter(4, raw, false, 128 * 1024, true).split(input, parts));
+            Map<?, ?> manifest = (Map<?, ?>) readJson(new File(parts, ParallelJsonArraySplitter.MANIFEST_NAME));
+            StringBuilder concatenated = new StringBuilder();
+            long uncompressedBytes = 0;
+            for (Object entry : (List<?>) manifest.get("parts")) {
+                Map<?, ?> part = (Map<?, ?>) entry;
+                // Each part is a gzip file of its own
+                String contents = gunzip(new File(parts, (String) part.get("file")));
+                concatenated.append(contents);
+                assertEquals(contents.getBytes("UTF-8").length, ((Long) part.get("uncompressedBytes")).longValue());
+                uncompressedBytes += (Long) part.get("uncompressedBytes");
+            }
+            assertEquals(lines(records), concatenated.toString());
+            assertEquals(uncompressedBytes, ((Long) manifest.get("uncompressedBytes")).longValue());
+        }
+    }
+
+    @Test
+    public void membersAreIndexed() throws Exception {
+        List<String> records = records(3000, 0);
+        for (int i = 0; i < records.size(); i++) {
+            records.set(i, record(i, 3000 + i % 37, false));
+        }
+        File input = new File(directory, "input.json");
+        write(input, prettyArray(records));
+        File output = new File(directory, "output.json.gz");
+        assertEquals(records.size(), new ParallelJsonArraySplitter(4, false, false, 0, true).split(input, output));
+        byte[] expected = singleLineArray(records).getBytes("UTF-8");
+        Map<?, ?> index = (Map<?, ?>) readJson(new File(output.getPath() + ParallelJsonArraySplitter.INDEX_SUFFIX));
+        assertEquals(output.getName(), index.get("file"));
+        assertEquals((long) records.size(), index.get("records"));
+        assertEquals(output.length(), ((Long) index.get("bytes")).longValue());
+        assertEquals(expected.length, ((Long) index.get("uncompressedBytes")).longValue());
+        List<?> members = (List<?>) index.get("members");
+        assertTrue(members.size() > 1);
+        // The opening bracket is a member of its own, then every record line but the first starts with a comma
+        checkMembers(output, members, expected, 2, 1, ",");
+
+        File parts = new File(directory, "parts");
+        new ParallelJsonArraySplitter(4, true, false, 256 * 1024, true).split(input, parts);
+        Map<?, ?> manifest = (Map<?, ?>) readJson(new File(parts, ParallelJsonArraySplitter.MANIFEST_NAME));
+        for (Object entry : (List<?>) manifest.get("parts")) {
+            Map<?, ?> part = (Map<?, ?>) entry;
+            long firstRecord = (Long) part.get("firstRecord");
+            String lines = lines(records.subList((int) firstRecord, (int) (firstRecord + (Long) part.get("records"))));
+            checkMembers(new File(parts, (String) part.get("file")), (List<?>) part.get("members"), lines.getBytes("UTF-8"), 0,
+                    -firstRecord, "");
+        }
+    }
+
+    /**
+     * Decompresses each member on its own, from its offset in the file, and checks that it holds its records.
+     *
+     * @param expected the uncompressed file
+     * @param linesBefore number of lines before the first record's
+     */
+    private void checkMembers(File file, List<?> members, byte[] expected, int firstMemberOffset, long linesBefore, String prefix)
+            throws IOException {
+        long offset = firstMemberOffset;
+        long firstRecord = -1;
+        for (Object entry : members) {
+            Map<?, ?> member = (Map<?, ?>) entry;
+            int uncompressedOffset = ((Long) member.get("uncompressedOffset")).intValue();
+            int records = ((Long) member.get("records")).intValue();
+            assertTrue((Long) member.get("offset") >= offset);
+            offset = (Long) member.get("offset");
+            assertTrue((Long) member.get("firstRecord") > firstRecord);
+            firstRecord = (Long) member.get("firstRecord");
+            InputStream stream = new FileInputStream(file);
+            stream.skip(offset);
+            String decompressed = read(new GZIPInputStream(stream));
+            String fromMember = new String(expected, uncompressedOffset, expected.length - uncompressedOffset, "UTF-8");
+            assertTrue(decompressed.startsWith(fromMember.substring(0, Math.min(fromMember.length(), 64 * 1024))));
+            String[] lines = fromMember.split(SEP);
+            assertTrue(lines.length >= records);
+            assertTrue(lines[0].startsWith((firstRecord == 0 ? "" : prefix) + "{\"id\":" + firstRecord + ","));
+            int linesBeforeMember = new String(expected, 0, uncompressedOffset, "UTF-8").split(SEP, -1).length - 1;
+            assertEquals(firstRecord + linesBefore, linesBeforeMember);
+        }
+    }
+
+    @Test
+    public void commasMustSeparateTheObjects() throws Exception {
+        String[] improper = { "[{\"a\":1},]", "[{\"a\":1}{\"b\":2}]", "[{\"a\":1},,{\"b\":2}]", "[,{\"a\":1}]", "[{\"a\":1}", "{\"a\":1}",
+                "[1,2]", "[{\"a\":1}] x" };
+        for (String json : improper) {
+            for (boolean raw : new boolean[] { false, true }) {
+                try {
+                    new ParallelJsonArraySplitter(2, raw, false, 0).split(new ByteArrayInputStream(json.getBytes("UTF-8")),
+                            new File(directory, "output.json"));
+                    fail("Accepted " + json);
+                } catch (IOException expected) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.blogspot.sahyog.json;
+
+import static org.junit.Assert.*;
+import static com.blogspot.sahyog.json.JsonTestData.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RawSingleLineReformatterTest {
+
+    @Test
+    public void escapesAcrossBufferAndWordBoundaries() throws Exception {
+        List<String> records = records(60, 0);
+        byte[] input = prettyArray(records).getBytes("UTF-8");
+        String expected = singleLineArray(records);
+        // Every split of the input falls inside an escape somewhere, in both heap and direct buffers
+        for (int inSize = 1; inSize <= 17; inSize++) {
+            assertEquals("Input buffers of " + inSize, expected, reformat(input, inSize, 16, false, false));
+            assertEquals("Direct input buffers of " + inSize, expected, reformat(input, inSize, 64, true, true));
+        }
+        assertEquals(expected, reformat(input, input.length, 16, false, true));
+        assertEquals(expected, reformat(input, 4096, 4096, true, false));
+    }
+
+    @Test
+    public void streamsAreReformattedWhole() throws Exception {
+        List<String> records = records(1000, 300 * 1024, 10, 500);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(records.size(), RawSingleLineReformatter.reformat(new ByteArrayInputStream(prettyArray(records).getBytes("UTF-8")),
+                output, true));
+        assertEquals(singleLineArray(records), output.toString("UTF-8"));
+    }
+
+    @Test
+    public void onlyTheArrayIsCheckedWithoutValidation() throws Exception {
+        byte[] input = "[{\"a\":tru}, {\"b\" 1}]".getBytes("UTF-8");
+        assertEquals("[" + SEP + "{\"a\":tru}" + SEP + ",{\"b\"1}" + SEP + "]", reformat(input, 3, 16, false, false));
+        try {
+            reformat(input, 3, 16, false, true);
+            fail("Validation accepted invalid objects");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void commasMustSeparateTheObjects() throws Exception {
+        String[] improper = { "[{\"a\":1},]", "[{\"a\":1}{\"b\":2}]", "[{\"a\":1},,{\"b\":2}]", "[,{\"a\":1}]", "[{\"a\":1}", "[{\"a\":\"}]",
+                "[\"a\"]", "[{\"a\":1}] x" };
+        for (String json : improper) {
+            try {
+                reformat(json.getBytes("UTF-8"), 2, 16, false, false);
+                fail("Accepted " + json);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    /**
+     * Feeds the input in buffers of the given size and drains the output whenever it is full.
+     */
+    private static String reformat(byte[] input, int inSize, int outSize, boolean direct, boolean validate) throws IOException {
+        RawSingleLineReformatter reformatter = RawSingleLineReformatter.forArray(validate);
+        ByteBuffer out = direct ? ByteBuffer.allocateDirect(outSize) : ByteBuffer.allocate(outSize);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (int position = 0; position < input.length; position += inSize) {
+            int length = Math.min(inSize, input.length - position);
+            ByteBuffer in;
+            if (direct) {
+                in = ByteBuffer.allocateDirect(length);
+                in.put(input, position, length);
+                in.flip();
+            } else {
+                // Not at the start of its array, so that the words read are not aligned with the input
+                in = ByteBuffer.wrap(input, position, length).slice();
+            }
+            while (!reformatter.reformat(in, out)) {
+                drain(out, output);
+            }
+        }
+        reformatter.finish();
+        drain(out, output);
+        return output.toString("UTF-8");
+    }
+
+    private static void drain(ByteBuffer out, ByteArrayOutputStream output) {
+        out.flip();
+        byte[] bytes = new byte[out.remaining()];
+        out.get(bytes);
+        output.write(bytes, 0, bytes.length);
+        out.clear();
+    }
+}